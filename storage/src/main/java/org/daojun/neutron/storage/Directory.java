@@ -3,6 +3,7 @@ package org.daojun.neutron.storage;
 import io.netty.buffer.ByteBuf;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 public interface Directory {
@@ -62,7 +63,7 @@ public interface Directory {
      * @param buffer entry
      * @return fileId, offset
      */
-    CompletableFuture<LongIntPair> asyncAddEntry(ByteBuf buffer);
+    CompletableFuture<LongLongPair> asyncAddEntry(ByteBuf buffer);
 
     /**
      * Read an entry from the directory.
@@ -70,7 +71,17 @@ public interface Directory {
      * @param pair fileId, offset
      * @return entry
      */
-    CompletableFuture<ByteBuf> asyncReadEntry(LongIntPair pair);
+    CompletableFuture<ByteBuf> asyncReadEntry(LongLongPair pair);
+
+    /**
+     * Read consecutive entries of one file from the directory.
+     *
+     * @param start      fileId, offset of the first entry
+     * @param maxEntries the maximum number of entries to read
+     * @param maxBytes   the maximum number of bytes to read
+     * @return entries
+     */
+    CompletableFuture<List<ByteBuf>> asyncReadEntries(LongLongPair start, int maxEntries, int maxBytes);
 
     /**
      * Close the directory.
@@ -86,6 +97,14 @@ public interface Directory {
      */
     CompletableFuture<Void> asyncDelete();
 
+    /**
+     * Delete a sealed entry file of the directory, the file is kept for reuse if the directory recycles files.
+     *
+     * @param fileId the id of the file
+     * @return a future that is completed when the file is deleted
+     */
+    CompletableFuture<Void> asyncDeleteFile(long fileId);
+
     /**
      * Flush the directory.
      *
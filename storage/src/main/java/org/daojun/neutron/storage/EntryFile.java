@@ -2,6 +2,7 @@ package org.daojun.neutron.storage;
 
 import io.netty.buffer.ByteBuf;
 
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 public interface EntryFile {
@@ -24,7 +25,7 @@ public interface EntryFile {
      *
      * @return the size of the entry file
      */
-    int size();
+    long size();
 
     /**
      * Is the entry file read only
@@ -40,7 +41,7 @@ public interface EntryFile {
      * @return a future that can be completed when the entry file is ready to use
      * @throws java.io.IOException   if the entry file cannot be created or opened
      * @throws IllegalStateException if magic number is not matched
-     * @throws IllegalStateException if write position is not equal to flush position
+     * @throws IllegalStateException if the write or flush position is invalid
      */
     CompletableFuture<Void> asyncInitialize();
 
@@ -66,7 +67,38 @@ public interface EntryFile {
      * @throws FencedException     if the entry file is already closed
      * @throws java.io.IOException if the entry file cannot be created or opened
      */
-    CompletableFuture<ByteBuf> asyncReadEntry(int offset);
+    CompletableFuture<ByteBuf> asyncReadEntry(long offset);
+
+    /**
+     * Read consecutive entries starting at the offset, by one large read instead of one read per entry.
+     * At least one entry is returned if the offset is valid, even if it is larger than {@code maxBytes}.
+     * The offset of the next entry is {@code startOffset} plus the size of each entry and its 8 bytes frame header,
+     * the length and the checksum. Frames of files written before checksums were added have a 4 bytes header.
+     *
+     * @param startOffset the offset of the first entry
+     * @param maxEntries  the maximum number of entries to read
+     * @param maxBytes    the maximum number of bytes to read
+     * @return the entries in offset order, the caller is responsible for releasing them
+     * @throws FencedException     if the entry file is already closed
+     * @throws java.io.IOException if the entry file cannot be read
+     */
+    CompletableFuture<List<ByteBuf>> asyncReadEntries(long startOffset, int maxEntries, int maxBytes);
+
+    /**
+     * Get the offset of the first entry, once the entry file is initialized
+     *
+     * @return the offset of the first entry
+     */
+    long firstEntryOffset();
+
+    /**
+     * Get the offset of the entry after an entry read from the entry file
+     *
+     * @param offset the offset of the entry
+     * @param entry  the entry read at the offset
+     * @return the offset of the next entry
+     */
+    long nextEntryOffset(long offset, ByteBuf entry);
 
     /**
      * Add entry to the entry file
@@ -75,7 +107,7 @@ public interface EntryFile {
      * @return the offset of the entry, or -1 if the entry file is larger than the maximum size allowed
      * @throws FencedException if the entry file is already closed
      */
-    CompletableFuture<Integer> asyncAddEntry(ByteBuf buffer);
+    CompletableFuture<Long> asyncAddEntry(ByteBuf buffer);
 
     CompletableFuture<Void> asyncDelete();
 
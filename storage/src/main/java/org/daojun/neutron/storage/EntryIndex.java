@@ -5,11 +5,28 @@ import java.util.concurrent.CompletableFuture;
 
 public interface EntryIndex {
 
-    CompletableFuture<Void> asyncAdd(Position key, LongIntPair value);
+    CompletableFuture<Void> asyncAdd(Position key, LongLongPair value);
 
-    CompletableFuture<Void> asyncAddBatch(List<Pair<Position, LongIntPair>> positions);
+    CompletableFuture<Void> asyncAddBatch(List<Pair<Position, LongLongPair>> positions);
 
-    CompletableFuture<LongIntPair> asyncGet(Position key);
+    CompletableFuture<LongLongPair> asyncGet(Position key);
+
+    /**
+     * Get the positions of scattered entries at once, grouped by file id and sorted by offset.
+     */
+    CompletableFuture<EntryLocations> asyncGetBatch(List<Position> keys);
+
+    /**
+     * Get the positions of the entries from {@code fromEntry} to {@code toEntry} of the ledger, both inclusive.
+     */
+    CompletableFuture<EntryRange> asyncGetRange(long ledgerId, int fromEntry, int toEntry);
+
+    /**
+     * Get the last indexed entry id of the ledger.
+     *
+     * @return the last entry id, or -1 if no entry of the ledger is indexed
+     */
+    CompletableFuture<Integer> asyncGetLastEntryId(long ledgerId);
 
     CompletableFuture<Void> asyncDelete(long ledgerId);
 
@@ -25,4 +42,28 @@ public interface EntryIndex {
 
     CompletableFuture<Void> asyncCompact();
 
+    /**
+     * Seal the ledger, no entry will be added to it any more.
+     */
+    default CompletableFuture<Void> asyncSeal(long ledgerId) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Mark the entries of the entry files before the position as indexed, their additions must be completed.
+     * The entries after the last checkpoint are replayed on recovery.
+     *
+     * @param position fileId, offset
+     */
+    default CompletableFuture<Void> asyncCheckpoint(LongLongPair position) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return the last checkpoint, or null if there is none
+     */
+    default CompletableFuture<LongLongPair> asyncGetCheckpoint() {
+        return CompletableFuture.completedFuture(null);
+    }
+
 }
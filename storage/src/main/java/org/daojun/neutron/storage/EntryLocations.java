@@ -0,0 +1,156 @@
+package org.daojun.neutron.storage;
+
+import java.util.Arrays;
+
+/**
+ * The positions of scattered entries, with their file ids and offsets in primitive arrays sorted by file id, then
+ * offset, so that each file can be read in offset order. The entries missing from the index are not included.
+ */
+public class EntryLocations {
+    public final int size;
+    public final Position[] positions;
+    public final long[] fileIds;
+    public final long[] offsets;
+
+    private EntryLocations(int size, Position[] positions, long[] fileIds, long[] offsets) {
+        this.size = size;
+        this.positions = positions;
+        this.fileIds = fileIds;
+        this.offsets = offsets;
+    }
+
+    /**
+     * @return the index after the last entry in the file of the entry at {@code index}
+     */
+    public int fileEnd(int index) {
+        var fileId = fileIds[index];
+        var end = index + 1;
+        while (end < size && fileIds[end] == fileId) {
+            end++;
+        }
+        return end;
+    }
+
+    public static Builder builder(int expectedSize) {
+        return new Builder(expectedSize);
+    }
+
+    public static class Builder {
+        private int size = 0;
+        private Position[] positions;
+        private long[] fileIds;
+        private long[] offsets;
+
+        private Builder(int expectedSize) {
+            var capacity = Math.max(expectedSize, 1);
+            this.positions = new Position[capacity];
+            this.fileIds = new long[capacity];
+            this.offsets = new long[capacity];
+        }
+
+        public Builder add(Position position, long fileId, long offset) {
+            if (size == positions.length) {
+                var capacity = size * 2;
+                positions = Arrays.copyOf(positions, capacity);
+                fileIds = Arrays.copyOf(fileIds, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+            }
+            positions[size] = position;
+            fileIds[size] = fileId;
+            offsets[size] = offset;
+            size++;
+            return this;
+        }
+
+        public Builder addAll(EntryLocations locations) {
+            for (int i = 0; i < locations.size; i++) {
+                add(locations.positions[i], locations.fileIds[i], locations.offsets[i]);
+            }
+            return this;
+        }
+
+        /**
+         * Sort the entries by file id, then offset. The arrays are sorted together in place, without boxing.
+         */
+        public EntryLocations build() {
+            var sorted = new EntryLocations(size, Arrays.copyOf(positions, size), Arrays.copyOf(fileIds, size),
+                    Arrays.copyOf(offsets, size));
+            if (!sorted.isSorted()) {
+                sorted.sort(0, size - 1);
+            }
+            return sorted;
+        }
+    }
+
+    private boolean isSorted() {
+        for (int i = 1; i < size; i++) {
+            if (compare(i - 1, i) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int compare(int i, int j) {
+        var c = Long.compare(fileIds[i], fileIds[j]);
+        return c != 0 ? c : Long.compare(offsets[i], offsets[j]);
+    }
+
+    private void swap(int i, int j) {
+        var position = positions[i];
+        positions[i] = positions[j];
+        positions[j] = position;
+        var fileId = fileIds[i];
+        fileIds[i] = fileIds[j];
+        fileIds[j] = fileId;
+        var offset = offsets[i];
+        offsets[i] = offsets[j];
+        offsets[j] = offset;
+    }
+
+    /**
+     * Quicksort of the entries from {@code lo} to {@code hi} inclusive, by insertion below 16 entries. It recurses
+     * into the smaller side only, so the stack stays within log2(size) frames.
+     */
+    private void sort(int lo, int hi) {
+        while (hi - lo >= 16) {
+            var mid = (lo + hi) >>> 1;
+            // Median of three, moved to hi
+            if (compare(mid, lo) < 0) {
+                swap(mid, lo);
+            }
+            if (compare(hi, lo) < 0) {
+                swap(hi, lo);
+            }
+            if (compare(mid, hi) < 0) {
+                swap(mid, hi);
+            }
+            var store = lo;
+            for (int i = lo; i < hi; i++) {
+                if (compare(i, hi) < 0) {
+                    swap(i, store++);
+                }
+            }
+            swap(store, hi);
+            if (store - lo < hi - store) {
+                sort(lo, store - 1);
+                lo = store + 1;
+            } else {
+                sort(store + 1, hi);
+                hi = store - 1;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && compare(j - 1, j) > 0; j--) {
+                swap(j - 1, j);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EntryLocations{" +
+                "size=" + size +
+                '}';
+    }
+}
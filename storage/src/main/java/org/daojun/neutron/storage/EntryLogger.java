@@ -4,8 +4,18 @@ import io.netty.buffer.ByteBuf;
 
 import java.util.concurrent.CompletableFuture;
 
+/**
+ * Stores the entries of many ledgers together.
+ */
 public interface EntryLogger {
 
+    /**
+     * Initialize the logger, recovering the entries that were added but not flushed.
+     *
+     * @return a future that is completed when the logger is initialized
+     */
+    CompletableFuture<Void> asyncInitialize();
+
     /**
      * Open a new ledger.
      * @return
@@ -27,4 +37,18 @@ public interface EntryLogger {
     CompletableFuture<ByteBuf> asyncReadEntry(Position position);
 
     CompletableFuture<Void> asyncAddEntry(Position position, ByteBuf buf);
+
+    /**
+     * Flush the added entries.
+     *
+     * @return a future that is completed when the entries added before the call are flushed
+     */
+    CompletableFuture<Void> asyncFlush();
+
+    /**
+     * Flush the added entries and close the logger.
+     *
+     * @return a future that is completed when the logger is closed
+     */
+    CompletableFuture<Void> asyncClose();
 }
@@ -0,0 +1,72 @@
+package org.daojun.neutron.storage;
+
+import java.util.Arrays;
+
+/**
+ * The positions of a range of entries of a ledger, in primitive arrays sorted by entry id.
+ * The entries missing from the index are not in the range.
+ */
+public class EntryRange {
+    public final long ledgerId;
+    public final int size;
+    public final int[] entryIds;
+    public final long[] fileIds;
+    public final long[] offsets;
+
+    private EntryRange(long ledgerId, int size, int[] entryIds, long[] fileIds, long[] offsets) {
+        this.ledgerId = ledgerId;
+        this.size = size;
+        this.entryIds = entryIds;
+        this.fileIds = fileIds;
+        this.offsets = offsets;
+    }
+
+    public static Builder builder(long ledgerId, int expectedSize) {
+        return new Builder(ledgerId, expectedSize);
+    }
+
+    public static class Builder {
+        private final long ledgerId;
+        private int size = 0;
+        private int[] entryIds;
+        private long[] fileIds;
+        private long[] offsets;
+
+        private Builder(long ledgerId, int expectedSize) {
+            this.ledgerId = ledgerId;
+            var capacity = Math.max(expectedSize, 1);
+            this.entryIds = new int[capacity];
+            this.fileIds = new long[capacity];
+            this.offsets = new long[capacity];
+        }
+
+        /**
+         * Add the next entry, the entry ids must be added in ascending order.
+         */
+        public Builder add(int entryId, long fileId, long offset) {
+            if (size == entryIds.length) {
+                var capacity = size * 2;
+                entryIds = Arrays.copyOf(entryIds, capacity);
+                fileIds = Arrays.copyOf(fileIds, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+            }
+            entryIds[size] = entryId;
+            fileIds[size] = fileId;
+            offsets[size] = offset;
+            size++;
+            return this;
+        }
+
+        public EntryRange build() {
+            return new EntryRange(ledgerId, size, entryIds, fileIds, offsets);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EntryRange{" +
+                "ledgerId=" + ledgerId +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -8,10 +8,26 @@ public interface LedgerHandle {
 
     long getId();
 
+    /**
+     * Add an entry, many adds may be outstanding.
+     *
+     * @param buffer
+     * @return the position of the entry, completed once the LAC covers it
+     */
     CompletableFuture<Position> asyncAddEntry(ByteBuf buffer);
 
     CompletableFuture<ByteBuf> asyncReadEntry(Position position);
 
+    /**
+     * Read an entry once the LAC covers it, without polling.
+     *
+     * @param entryId
+     * @param timeoutMillis how long to wait for the LAC to cover the entry
+     * @return the entry, or a future failed with a {@link java.util.concurrent.TimeoutException} if the LAC did not
+     * cover it in time
+     */
+    CompletableFuture<ByteBuf> asyncReadEntryOrWait(int entryId, long timeoutMillis);
+
     void setLac(long entryId);
 
     long getLac();
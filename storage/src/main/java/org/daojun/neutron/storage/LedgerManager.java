@@ -1,4 +1,40 @@
 package org.daojun.neutron.storage;
 
+import java.util.NavigableSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Allocates the ids of the ledgers and tracks the live ones.
+ */
 public interface LedgerManager {
+
+    /**
+     * Create a new ledger, its id is never reused.
+     *
+     * @return the id of the ledger
+     */
+    CompletableFuture<Long> asyncCreateLedger();
+
+    /**
+     * Delete a ledger.
+     *
+     * @param ledgerId
+     * @return a future that is completed when the deletion is persisted
+     */
+    CompletableFuture<Void> asyncDeleteLedger(long ledgerId);
+
+    /**
+     * Whether the ledger is created and not deleted.
+     *
+     * @param ledgerId
+     * @return true if the ledger is live
+     */
+    boolean exists(long ledgerId);
+
+    /**
+     * The live ledgers.
+     *
+     * @return the ids of the live ledgers
+     */
+    NavigableSet<Long> ledgers();
 }
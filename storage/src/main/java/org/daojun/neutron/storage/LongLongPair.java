@@ -0,0 +1,24 @@
+package org.daojun.neutron.storage;
+
+public class LongLongPair {
+    public final long f1;
+    public final long f2;
+
+    private LongLongPair(long f1, long f2) {
+        this.f1 = f1;
+        this.f2 = f2;
+    }
+
+
+    public static LongLongPair create(long f1, long f2) {
+        return new LongLongPair(f1, f2);
+    }
+
+    @Override
+    public String toString() {
+        return "LongLongPair{" +
+                "f1=" + f1 +
+                ", f2=" + f2 +
+                '}';
+    }
+}
@@ -1,17 +1,96 @@
 package org.daojun.neutron.storage;
 
-public class ManagedStorageConfig {
-    private int maxEntryFileSize;
-    private int maxEntryCacheOfOneFile;
+import java.util.concurrent.Executor;
+
+public class ManagedStorageConfig implements Cloneable {
+    private long maxEntryFileSize = 1024 * 1024 * 1024;
+    private int maxEntryCacheOfOneFile = 64 * 1024 * 1024;
+    // Size of the direct memory chunks of the write buffer.
+    private int writeBufferChunkSize = 1024 * 1024;
+    // Keep a preallocated spare entry file, so that rolling never allocates the file on the append path.
+    private boolean entryFilePreallocateEnabled = false;
+    // How many deleted entry files are kept for reuse.
+    private int maxRecycledEntryFiles = 0;
+    // Triggers of the background flusher, whichever is reached first.
+    private long flushMaxDelayMillis = 10;
+    private int flushMaxBytes = 4 * 1024 * 1024;
+    private int flushMaxEntries = 4096;
+    // Complete add futures only after the entry is fsynced, sharing one force between concurrent appends.
+    private boolean groupCommitEnabled = false;
+    private int groupCommitMaxBytes = 1024 * 1024;
+    private long groupCommitMaxDelayMicros = 1000;
+    // Read sealed entry files through a memory mapping.
+    private boolean sealedFileMmapEnabled = true;
+    // Bytes read ahead by bulk reads of an entry file, 0 to disable.
+    private int entryFileReadaheadBytes = 0;
+    // Read and write entry files with direct I/O, bypassing the page cache.
+    private boolean entryFileDirectIoEnabled = false;
+    // Threads recovering the entry files of a directory in parallel on initialization.
+    private int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    // Max open channels of the sealed entry files of a directory, 0 keeps the channel of every file open.
+    private int maxOpenSealedEntryFiles = 1024;
+    // Threads of the storage I/O pools, writes and fsyncs are separate so that a slow fsync never delays the others.
+    private int ioWriteThreads = 2;
+    private int ioSyncThreads = 2;
+    private int ioReadThreads = 8;
+    private int ioIndexThreads = 4;
+    // Queued tasks of each I/O pool, the tasks submitted once the queue is full are rejected.
+    private int ioQueueCapacity = 65536;
+    // Run the blocking I/O on virtual threads, the thread counts above bound the concurrent tasks of each pool.
+    private boolean ioVirtualThreadsEnabled = false;
+    // Where the futures of the storage I/O are completed, null to complete them on the I/O threads.
+    private Executor ioCompletionExecutor = null;
+    // Pending appends of a directory, the appends published once the queue of its writer is full are rejected.
+    private int appendQueueCapacity = 65536;
+    // Max appends the writer of a directory drains at once.
+    private int appendBatchMaxEntries = 256;
+    // Buffer the index updates in memory and commit them by one write batch on flush.
+    private boolean entryIndexWriteBehindEnabled = false;
+    // Buffered index updates that trigger a commit before the flush.
+    private int entryIndexWriteBehindMaxEntries = 65536;
+    // Entries of one off-heap segment of the dense index of a ledger.
+    private int denseIndexSegmentEntries = 4096;
+    // Block cache of the RocksDB entry index.
+    private long entryIndexBlockCacheSize = 64 * 1024 * 1024;
+    // Bits per key of the bloom filters of the RocksDB entry index, on whole keys and ledger id prefixes, 0 to disable.
+    private int entryIndexBloomBitsPerKey = 10;
+    // Off-heap cache of the positions looked up in the RocksDB entry index, in bytes, 0 to disable.
+    private long entryIndexLookupCacheSize = 16 * 1024 * 1024;
+    // Write the entry index additions to the RocksDB WAL. Without it, the lost additions are replayed from the entry
+    // files after a crash, so the entries must carry their ledger id and entry id.
+    private boolean entryIndexWalEnabled = true;
+    // Additions written by one batch when the entry index is replayed.
+    private int entryIndexReplayBatchEntries = 4096;
+    // Interval of the compactions of the key ranges of deleted ledgers in the entry index, 0 to disable.
+    private long entryIndexCompactionIntervalMs = 60 * 1000;
+    // I/O budget of the compactions of deleted ledgers, estimated by the size of the ranges, 0 for no limit.
+    private long entryIndexCompactionBytesPerSecond = 16 * 1024 * 1024;
+    // Max deleted ledgers compacted by one run.
+    private int entryIndexCompactionMaxLedgers = 1024;
+    // Entries of an entry logger buffered in memory and sorted before they are written to the entry files, in bytes.
+    private long entryLoggerWriteCacheMaxBytes = 64 * 1024 * 1024;
+    // Interval of the flushes of the write cache of an entry logger, 0 to flush only once the cache is full.
+    private long entryLoggerFlushIntervalMs = 1000;
 
     public ManagedStorageConfig() {
     }
 
-    public void setMaxEntryFileSize(int maxEntryFileSize) {
+    /**
+     * @return a copy of this config, so that a component can override settings it depends on
+     */
+    public ManagedStorageConfig copy() {
+        try {
+            return (ManagedStorageConfig) clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    public void setMaxEntryFileSize(long maxEntryFileSize) {
         this.maxEntryFileSize = maxEntryFileSize;
     }
 
-    public int getMaxEntryFileSize() {
+    public long getMaxEntryFileSize() {
         return maxEntryFileSize;
     }
 
@@ -22,4 +101,292 @@ public class ManagedStorageConfig {
     public int getMaxEntryCacheOfOneFile() {
         return maxEntryCacheOfOneFile;
     }
+
+    public void setWriteBufferChunkSize(int writeBufferChunkSize) {
+        this.writeBufferChunkSize = writeBufferChunkSize;
+    }
+
+    public int getWriteBufferChunkSize() {
+        return writeBufferChunkSize;
+    }
+
+    public void setEntryFilePreallocateEnabled(boolean entryFilePreallocateEnabled) {
+        this.entryFilePreallocateEnabled = entryFilePreallocateEnabled;
+    }
+
+    public boolean isEntryFilePreallocateEnabled() {
+        return entryFilePreallocateEnabled;
+    }
+
+    public void setMaxRecycledEntryFiles(int maxRecycledEntryFiles) {
+        this.maxRecycledEntryFiles = maxRecycledEntryFiles;
+    }
+
+    public int getMaxRecycledEntryFiles() {
+        return maxRecycledEntryFiles;
+    }
+
+    public void setFlushMaxDelayMillis(long flushMaxDelayMillis) {
+        this.flushMaxDelayMillis = flushMaxDelayMillis;
+    }
+
+    public long getFlushMaxDelayMillis() {
+        return flushMaxDelayMillis;
+    }
+
+    public void setFlushMaxBytes(int flushMaxBytes) {
+        this.flushMaxBytes = flushMaxBytes;
+    }
+
+    public int getFlushMaxBytes() {
+        return flushMaxBytes;
+    }
+
+    public void setFlushMaxEntries(int flushMaxEntries) {
+        this.flushMaxEntries = flushMaxEntries;
+    }
+
+    public int getFlushMaxEntries() {
+        return flushMaxEntries;
+    }
+
+    public void setGroupCommitEnabled(boolean groupCommitEnabled) {
+        this.groupCommitEnabled = groupCommitEnabled;
+    }
+
+    public boolean isGroupCommitEnabled() {
+        return groupCommitEnabled;
+    }
+
+    public void setGroupCommitMaxBytes(int groupCommitMaxBytes) {
+        this.groupCommitMaxBytes = groupCommitMaxBytes;
+    }
+
+    public int getGroupCommitMaxBytes() {
+        return groupCommitMaxBytes;
+    }
+
+    public void setGroupCommitMaxDelayMicros(long groupCommitMaxDelayMicros) {
+        this.groupCommitMaxDelayMicros = groupCommitMaxDelayMicros;
+    }
+
+    public long getGroupCommitMaxDelayMicros() {
+        return groupCommitMaxDelayMicros;
+    }
+
+    public void setSealedFileMmapEnabled(boolean sealedFileMmapEnabled) {
+        this.sealedFileMmapEnabled = sealedFileMmapEnabled;
+    }
+
+    public boolean isSealedFileMmapEnabled() {
+        return sealedFileMmapEnabled;
+    }
+
+    public void setEntryFileReadaheadBytes(int entryFileReadaheadBytes) {
+        this.entryFileReadaheadBytes = entryFileReadaheadBytes;
+    }
+
+    public int getEntryFileReadaheadBytes() {
+        return entryFileReadaheadBytes;
+    }
+
+    public void setEntryFileDirectIoEnabled(boolean entryFileDirectIoEnabled) {
+        this.entryFileDirectIoEnabled = entryFileDirectIoEnabled;
+    }
+
+    public boolean isEntryFileDirectIoEnabled() {
+        return entryFileDirectIoEnabled;
+    }
+
+    public void setRecoveryThreads(int recoveryThreads) {
+        this.recoveryThreads = recoveryThreads;
+    }
+
+    public int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    public void setMaxOpenSealedEntryFiles(int maxOpenSealedEntryFiles) {
+        this.maxOpenSealedEntryFiles = maxOpenSealedEntryFiles;
+    }
+
+    public int getMaxOpenSealedEntryFiles() {
+        return maxOpenSealedEntryFiles;
+    }
+
+    public void setIoWriteThreads(int ioWriteThreads) {
+        this.ioWriteThreads = ioWriteThreads;
+    }
+
+    public int getIoWriteThreads() {
+        return ioWriteThreads;
+    }
+
+    public void setIoSyncThreads(int ioSyncThreads) {
+        this.ioSyncThreads = ioSyncThreads;
+    }
+
+    public int getIoSyncThreads() {
+        return ioSyncThreads;
+    }
+
+    public void setIoReadThreads(int ioReadThreads) {
+        this.ioReadThreads = ioReadThreads;
+    }
+
+    public int getIoReadThreads() {
+        return ioReadThreads;
+    }
+
+    public void setIoIndexThreads(int ioIndexThreads) {
+        this.ioIndexThreads = ioIndexThreads;
+    }
+
+    public int getIoIndexThreads() {
+        return ioIndexThreads;
+    }
+
+    public void setIoQueueCapacity(int ioQueueCapacity) {
+        this.ioQueueCapacity = ioQueueCapacity;
+    }
+
+    public int getIoQueueCapacity() {
+        return ioQueueCapacity;
+    }
+
+    public void setIoVirtualThreadsEnabled(boolean ioVirtualThreadsEnabled) {
+        this.ioVirtualThreadsEnabled = ioVirtualThreadsEnabled;
+    }
+
+    public boolean isIoVirtualThreadsEnabled() {
+        return ioVirtualThreadsEnabled;
+    }
+
+    public void setIoCompletionExecutor(Executor ioCompletionExecutor) {
+        this.ioCompletionExecutor = ioCompletionExecutor;
+    }
+
+    public Executor getIoCompletionExecutor() {
+        return ioCompletionExecutor;
+    }
+
+    public void setAppendQueueCapacity(int appendQueueCapacity) {
+        this.appendQueueCapacity = appendQueueCapacity;
+    }
+
+    public int getAppendQueueCapacity() {
+        return appendQueueCapacity;
+    }
+
+    public void setAppendBatchMaxEntries(int appendBatchMaxEntries) {
+        this.appendBatchMaxEntries = appendBatchMaxEntries;
+    }
+
+    public int getAppendBatchMaxEntries() {
+        return appendBatchMaxEntries;
+    }
+
+    public void setEntryIndexWriteBehindEnabled(boolean entryIndexWriteBehindEnabled) {
+        this.entryIndexWriteBehindEnabled = entryIndexWriteBehindEnabled;
+    }
+
+    public boolean isEntryIndexWriteBehindEnabled() {
+        return entryIndexWriteBehindEnabled;
+    }
+
+    public void setEntryIndexWriteBehindMaxEntries(int entryIndexWriteBehindMaxEntries) {
+        this.entryIndexWriteBehindMaxEntries = entryIndexWriteBehindMaxEntries;
+    }
+
+    public int getEntryIndexWriteBehindMaxEntries() {
+        return entryIndexWriteBehindMaxEntries;
+    }
+
+    public void setDenseIndexSegmentEntries(int denseIndexSegmentEntries) {
+        this.denseIndexSegmentEntries = denseIndexSegmentEntries;
+    }
+
+    public int getDenseIndexSegmentEntries() {
+        return denseIndexSegmentEntries;
+    }
+
+    public void setEntryIndexBlockCacheSize(long entryIndexBlockCacheSize) {
+        this.entryIndexBlockCacheSize = entryIndexBlockCacheSize;
+    }
+
+    public long getEntryIndexBlockCacheSize() {
+        return entryIndexBlockCacheSize;
+    }
+
+    public void setEntryIndexBloomBitsPerKey(int entryIndexBloomBitsPerKey) {
+        this.entryIndexBloomBitsPerKey = entryIndexBloomBitsPerKey;
+    }
+
+    public int getEntryIndexBloomBitsPerKey() {
+        return entryIndexBloomBitsPerKey;
+    }
+
+    public void setEntryIndexLookupCacheSize(long entryIndexLookupCacheSize) {
+        this.entryIndexLookupCacheSize = entryIndexLookupCacheSize;
+    }
+
+    public long getEntryIndexLookupCacheSize() {
+        return entryIndexLookupCacheSize;
+    }
+
+    public void setEntryIndexWalEnabled(boolean entryIndexWalEnabled) {
+        this.entryIndexWalEnabled = entryIndexWalEnabled;
+    }
+
+    public boolean isEntryIndexWalEnabled() {
+        return entryIndexWalEnabled;
+    }
+
+    public void setEntryIndexReplayBatchEntries(int entryIndexReplayBatchEntries) {
+        this.entryIndexReplayBatchEntries = entryIndexReplayBatchEntries;
+    }
+
+    public int getEntryIndexReplayBatchEntries() {
+        return entryIndexReplayBatchEntries;
+    }
+
+    public void setEntryIndexCompactionIntervalMs(long entryIndexCompactionIntervalMs) {
+        this.entryIndexCompactionIntervalMs = entryIndexCompactionIntervalMs;
+    }
+
+    public long getEntryIndexCompactionIntervalMs() {
+        return entryIndexCompactionIntervalMs;
+    }
+
+    public void setEntryIndexCompactionBytesPerSecond(long entryIndexCompactionBytesPerSecond) {
+        this.entryIndexCompactionBytesPerSecond = entryIndexCompactionBytesPerSecond;
+    }
+
+    public long getEntryIndexCompactionBytesPerSecond() {
+        return entryIndexCompactionBytesPerSecond;
+    }
+
+    public void setEntryIndexCompactionMaxLedgers(int entryIndexCompactionMaxLedgers) {
+        this.entryIndexCompactionMaxLedgers = entryIndexCompactionMaxLedgers;
+    }
+
+    public int getEntryIndexCompactionMaxLedgers() {
+        return entryIndexCompactionMaxLedgers;
+    }
+
+    public void setEntryLoggerWriteCacheMaxBytes(long entryLoggerWriteCacheMaxBytes) {
+        this.entryLoggerWriteCacheMaxBytes = entryLoggerWriteCacheMaxBytes;
+    }
+
+    public long getEntryLoggerWriteCacheMaxBytes() {
+        return entryLoggerWriteCacheMaxBytes;
+    }
+
+    public void setEntryLoggerFlushIntervalMs(long entryLoggerFlushIntervalMs) {
+        this.entryLoggerFlushIntervalMs = entryLoggerFlushIntervalMs;
+    }
+
+    public long getEntryLoggerFlushIntervalMs() {
+        return entryLoggerFlushIntervalMs;
+    }
 }
@@ -0,0 +1,58 @@
+package org.daojun.neutron.storage.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pool of block-aligned direct buffers for direct I/O, which requires the buffer address, the file position and the
+ * length of every read and write to be aligned to the block size of the file store.
+ */
+final class AlignedBufferPool {
+    // Alignment of the buffers, positions and lengths, block sizes that divide it are supported.
+    static final int ALIGNMENT = 4096;
+    static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final Queue<ByteBuffer> BUFFERS = new ConcurrentLinkedQueue<>();
+
+    private AlignedBufferPool() {
+    }
+
+    /**
+     * @return whether files of the block size can be accessed with the pooled buffers
+     */
+    static boolean supports(long blockSize) {
+        return blockSize > 0 && blockSize <= ALIGNMENT && ALIGNMENT % blockSize == 0;
+    }
+
+    /**
+     * @return a cleared buffer of {@link #BUFFER_SIZE} bytes
+     */
+    static ByteBuffer acquire() {
+        var buffer = BUFFERS.poll();
+        return buffer != null ? buffer.clear() : allocate(BUFFER_SIZE);
+    }
+
+    static void release(ByteBuffer buffer) {
+        if (BUFFERS.size() < MAX_POOLED_BUFFERS) {
+            BUFFERS.offer(buffer);
+        }
+    }
+
+    /**
+     * Allocate an aligned buffer out of the pool.
+     *
+     * @param size a multiple of the alignment
+     */
+    static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size + ALIGNMENT).alignedSlice(ALIGNMENT).slice(0, size);
+    }
+
+    static long alignDown(long position) {
+        return position - position % ALIGNMENT;
+    }
+
+    static long alignUp(long position) {
+        return alignDown(position + ALIGNMENT - 1);
+    }
+}
@@ -1,46 +1,78 @@
 package org.daojun.neutron.storage.internal;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.daojun.neutron.storage.Directory;
 import org.daojun.neutron.storage.EntryFile;
-import org.daojun.neutron.storage.LongIntPair;
+import org.daojun.neutron.storage.LongLongPair;
 import org.daojun.neutron.storage.ManagedStorageConfig;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Map;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Function;
 
 @Slf4j
 public class DefaultDirectory implements Directory {
-    private static final Map<Long, CompletableFuture<Void>> PENDING_CREATE = new ConcurrentHashMap<>();
     private static final AtomicReferenceFieldUpdater<DefaultDirectory, State> STATE_UPDATER =
             AtomicReferenceFieldUpdater.newUpdater(DefaultDirectory.class, State.class, "state");
     private static final AtomicReferenceFieldUpdater<DefaultDirectory, EntryFile> CURRENT_UPDATER =
             AtomicReferenceFieldUpdater.newUpdater(DefaultDirectory.class, EntryFile.class, "current");
 
     private final String path;
+    // The file the writer appends to, swapped by rolls
     private volatile EntryFile current;
+    // The next file, created and initialized ahead of the roll
+    private volatile CompletableFuture<DefaultEntryFile> next;
     private final AtomicLong idGenerator;
     private final ManagedStorageConfig config;
     private volatile State state = State.NEW;
     private final ScheduledExecutorService scheduler;
     private final CompletableFuture<Void> initializeFuture = new CompletableFuture<>();
     private final ConcurrentNavigableMap<Long, EntryFile> files = new ConcurrentSkipListMap<>(Long::compareTo);
+    private final EntryFilePool pool;
+    private final DirectoryManifest manifest;
+    // Channels of the sealed files, null if every file keeps its channel open
+    private final FileChannelCache channelCache;
+    private final IoExecutors io;
+    // Whether the I/O executors are created by the directory, and closed with it
+    private final boolean ownIo;
+    // The only thread that appends to the files and rolls them
+    private final DirectoryWriter writer;
 
 
     public DefaultDirectory(ManagedStorageConfig config, String path, AtomicLong idGenerator,
                             ScheduledExecutorService scheduler) {
+        this(config, path, idGenerator, scheduler, null);
+    }
+
+    /**
+     * @param io the I/O executors shared with other directories, or null to create them from the config
+     */
+    public DefaultDirectory(ManagedStorageConfig config, String path, AtomicLong idGenerator,
+                            ScheduledExecutorService scheduler, IoExecutors io) {
         this.path = path;
-        this.config = config;
+        this.config = Objects.requireNonNullElseGet(config, ManagedStorageConfig::new);
         this.idGenerator = idGenerator;
         this.scheduler = scheduler;
+        this.ownIo = io == null;
+        this.io = io == null ? IoExecutors.create(this.config) : io;
+        this.pool = new EntryFilePool(this.config, path, this.io.executor(IoExecutors.Kind.WRITE));
+        this.manifest = new DirectoryManifest(path);
+        this.channelCache = this.config.getMaxOpenSealedEntryFiles() > 0
+                ? new FileChannelCache(this.config.getMaxOpenSealedEntryFiles()) : null;
+        this.writer = new DirectoryWriter("neutron-writer", this.config.getAppendQueueCapacity(),
+                this.config.getAppendBatchMaxEntries(), this::write);
     }
 
 
@@ -87,6 +119,15 @@ public class DefaultDirectory implements Directory {
         return this.files.values();
     }
 
+    /**
+     * The cache of the channels of the sealed files, with its hit, miss and eviction counts.
+     *
+     * @return the cache, or null if every file keeps its channel open
+     */
+    public FileChannelCache channelCache() {
+        return channelCache;
+    }
+
     @Override
     public CompletableFuture<Void> asyncInitialize() {
         if (state.equals(State.INITIALIZE_FAILED) || state.equals(State.INITIALIZED)
@@ -101,31 +142,85 @@ public class DefaultDirectory implements Directory {
             if (!dir.exists()) {
                 dir.mkdirs();
             }
-            File[] files = dir.listFiles();
-            if (ArrayUtils.isEmpty(files)) {
-                initializeFuture.complete(null);
-                return initializeFuture;
-            }
-            assert files != null;
-            files = Arrays.stream(files).filter(File::isFile).toArray(File[]::new);
+            pool.initialize();
+            var sealed = manifest.load();
+            File[] files = dir.listFiles((__, name) -> StringUtils.isNumeric(name));
+            files = files == null ? new File[0] : Arrays.stream(files).filter(File::isFile).toArray(File[]::new);
+            var unsealed = new ArrayList<Long>();
             for (var file : files) {
                 long fileId = Long.parseLong(file.getName());
                 idGenerator.accumulateAndGet(fileId, (oldValue, newValue) -> Math.max(oldValue, newValue + 1));
-                var ex = openExistingFile(fileId);
-                if (ex != null) {
-                    throw ex;
+                var entry = sealed.get(fileId);
+                if (entry != null && entry.length == file.length()) {
+                    // Opened lazily on the first read.
+                    var sealedFile = new DefaultEntryFile(config, path, fileId, scheduler, null, channelCache, io);
+                    sealedFile.assumeSealed(entry.size);
+                    this.files.put(fileId, sealedFile);
+                } else {
+                    unsealed.add(fileId);
                 }
             }
+            if (!unsealed.isEmpty()) {
+                openExistingFiles(unsealed);
+            }
+            log.info("Directory {} initialized, {} sealed files are opened lazily, {} files are opened", path,
+                    files.length - unsealed.size(), unsealed.size());
+            pool.preallocateAsync();
+            var last = lastEntryFile();
+            if (last != null && !last.isReadOnly()) {
+                CURRENT_UPDATER.set(this, last);
+            }
+            prepareNext();
+            writer.start();
             STATE_UPDATER.set(this, State.INITIALIZED);
             initializeFuture.complete(null);
         } catch (Exception ex) {
-            initializeFuture.completeExceptionally(ex);
+            initializeFuture.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
             STATE_UPDATER.set(this, State.INITIALIZE_FAILED);
         }
         return initializeFuture;
     }
 
 
+    /**
+     * Open the files in parallel, as the recovery scans the tail of each file.
+     */
+    private void openExistingFiles(List<Long> ids) {
+        var executor = Executors.newFixedThreadPool(Math.max(1, Math.min(config.getRecoveryThreads(), ids.size())),
+                new DefaultThreadFactory("neutron-recovery"));
+        try {
+            var futures = new ArrayList<CompletableFuture<Void>>(ids.size());
+            for (var id : ids) {
+                futures.add(CompletableFuture.runAsync(() -> {
+                    var ex = openExistingFile(id);
+                    if (ex != null) {
+                        throw new CompletionException(ex);
+                    }
+                }, executor));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Record the sealed files in the manifest, it is only written when the sealed files change.
+     */
+    private void updateManifest() {
+        try {
+            var entryFiles = new ArrayList<DefaultEntryFile>(files.size());
+            for (var file : files.values()) {
+                if (file instanceof DefaultEntryFile) {
+                    entryFiles.add((DefaultEntryFile) file);
+                }
+            }
+            manifest.update(entryFiles);
+        } catch (IOException ex) {
+            log.error("Failed to update the manifest, directory {}", path, ex);
+        }
+    }
+
     /**
      * retry 3 times to open an existing file.
      *
@@ -136,7 +231,7 @@ public class DefaultDirectory implements Directory {
         for (int i = 0; i < 3; i++) {
             EntryFile file = null;
             try {
-                file = new DefaultEntryFile(config, path, id, scheduler);
+                file = new DefaultEntryFile(config, path, id, scheduler, null, channelCache, io);
                 file.asyncInitialize().get();
                 files.put(id, file);
                 return null;
@@ -157,73 +252,141 @@ public class DefaultDirectory implements Directory {
     }
 
     @Override
-    public CompletableFuture<LongIntPair> asyncAddEntry(ByteBuf buffer) {
+    public CompletableFuture<LongLongPair> asyncAddEntry(ByteBuf buffer) {
+        if (state.equals(State.INITIALIZED)) {
+            return writer.append(buffer);
+        }
         return asyncInitialize()
-                .thenCompose(__ -> {
-                    var file = lastEntryFile();
-                    if (null == file || file.isReadOnly()) {
-                        return nextFile().thenCompose(___ -> asyncAddEntry(buffer));
-                    }
-                    return file.asyncInitialize()
-                            .thenCompose(___ -> file.asyncAddEntry(buffer))
-                            .thenCompose(offset -> {
-                                if (offset < 0) {
-                                    log.info("Ready to create new file. Current file {}", file.id());
-                                    return nextFile().thenCompose(___ -> asyncAddEntry(buffer));
-                                } else {
-                                    return CompletableFuture.completedFuture(LongIntPair.create(file.id(), offset));
-                                }
-                            });
-                });
-
+                .thenCompose(__ -> writer.append(buffer));
     }
 
     /**
-     * Roll next file.
-     *
-     * @return a future that can be completed when the next file is created
+     * Append a batch of entries, on the writer thread.
      */
-    private CompletableFuture<Void> nextFile() {
-        var id = idGenerator.get();
-        return PENDING_CREATE.compute(id, (k, v) -> {
-            if (v != null) {
-                return v;
+    private void write(List<DirectoryWriter.Append> batch) {
+        for (var append : batch) {
+            try {
+                write(append.buffer, append.future);
+            } catch (Throwable ex) {
+                io.complete(append.future, null, ex instanceof ExecutionException ? ex.getCause() : ex);
+            } finally {
+                append.buffer.release();
             }
-            // trigger flush.
-            asyncFlush();
-            var future = new CompletableFuture<Void>();
-            var ex = createNewFile(id);
-            if (ex != null) {
-                future.completeExceptionally(ex);
+        }
+    }
+
+    private void write(ByteBuf buffer, CompletableFuture<LongLongPair> future) throws Exception {
+        while (true) {
+            var file = writableFile();
+            if (file.isCacheFull()) {
+                // Back pressure: wait for the flusher to drain the cache.
+                file.asyncFlush().get();
+            }
+            var f = new CompletableFuture<Long>();
+            if (!file.append(buffer, f)) {
+                log.debug("Ready to create new file. Current file {}", file.id());
+                continue;
+            }
+            var fileId = file.id();
+            if (f.isDone()) {
+                // Completed by the append, the completion is handed over to the completion executor.
+                f.whenComplete((offset, ex) ->
+                        io.complete(future, ex == null ? LongLongPair.create(fileId, offset) : null, ex));
             } else {
-                future.complete(null);
+                // Completed by the group commit, on the completion executor already.
+                f.whenComplete((offset, ex) -> {
+                    if (ex != null) {
+                        future.completeExceptionally(ex);
+                    } else {
+                        future.complete(LongLongPair.create(fileId, offset));
+                    }
+                });
             }
-            return future.thenAccept(__ -> {
-                        log.info("Create file finished. directory {}, id {}", path, id);
-                        idGenerator.incrementAndGet();
-                    })
-                    .exceptionally(exx -> {
-                        log.info("Create file failed. directory {}, id {}", path, id);
-                        return null;
-                    });
-        });
+            return;
+        }
+    }
+
+    /**
+     * The current file, or the next one once the current is read only.
+     */
+    private DefaultEntryFile writableFile() throws Exception {
+        var file = current;
+        if (null == file || file.isReadOnly()) {
+            file = roll(file);
+        }
+        return (DefaultEntryFile) file;
+    }
+
+    /**
+     * Swap in the next file, which is usually created already, and create the one after it in the background.
+     * Only the writer rolls.
+     */
+    private EntryFile roll(EntryFile previous) throws Exception {
+        DefaultEntryFile file;
+        try {
+            file = next.get();
+        } catch (ExecutionException ex) {
+            // Try again on the next roll.
+            prepareNext();
+            throw ex;
+        }
+        files.put(file.id(), file);
+        if (!CURRENT_UPDATER.compareAndSet(this, previous, file)) {
+            throw new IllegalStateException("Concurrent roll of directory " + path);
+        }
+        prepareNext();
+        log.debug("Rolled to file {}, directory {}", file.id(), path);
+        // trigger flush in background, the roll never waits for it.
+        scheduler.execute(this::asyncFlush);
+        return file;
+    }
+
+    /**
+     * Create the next file on the write pool.
+     */
+    private void prepareNext() {
+        var id = idGenerator.getAndIncrement();
+        next = io.submit(IoExecutors.Kind.WRITE, () -> createNewFile(id));
+    }
+
+    /**
+     * Close the next file, which was never written, and keep it as a spare file.
+     */
+    private CompletableFuture<Void> discardNext() {
+        var next = this.next;
+        if (next == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return next.thenCompose(file -> file.asyncClose()
+                        .thenAccept(__ -> {
+                            try {
+                                pool.recycle(new File(file.path()));
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }))
+                .exceptionally(ex -> {
+                    log.warn("Failed to discard the next file, directory {}", path, ex);
+                    return null;
+                });
     }
 
     /**
      * retry 3 times to create a new file
      *
-     * @return
+     * @return the initialized file
      */
-    private Exception createNewFile(long id) {
+    private DefaultEntryFile createNewFile(long id) throws Exception {
         Exception ex;
-        EntryFile file = null;
+        DefaultEntryFile file = null;
         int i = 0;
         do {
             try {
-                file = new DefaultEntryFile(config, path, id, scheduler);
+                // Take over a spare file if there is one, so the file is not allocated on the append path.
+                file = new DefaultEntryFile(config, path, id, scheduler, pool.poll(), channelCache, io);
                 file.asyncInitialize().get();
-                files.put(id, file);
-                return null;
+                log.debug("Create file finished. directory {}, id {}", path, id);
+                return file;
             } catch (Exception e) {
                 log.error("Failed to create new entryFile. directory {}, id {}, times {}", path, id, i, e);
                 if (file != null) {
@@ -237,12 +400,12 @@ public class DefaultDirectory implements Directory {
                 i++;
             }
         } while (i < 3);
-        return ex;
+        throw ex;
     }
 
 
     @Override
-    public CompletableFuture<ByteBuf> asyncReadEntry(LongIntPair pair) {
+    public CompletableFuture<ByteBuf> asyncReadEntry(LongLongPair pair) {
         return asyncInitialize()
                 .thenCompose(__ -> {
                     var file = files.get(pair.f1);
@@ -250,27 +413,86 @@ public class DefaultDirectory implements Directory {
                     if (file == null) {
                         return CompletableFuture.failedFuture(new IllegalStateException("File not found: " + pair.f1));
                     }
-                    return file.asyncInitialize()
+                    return initializeFile(file)
                             .thenCompose(___ -> file.asyncReadEntry(offset));
                 });
     }
 
+    @Override
+    public CompletableFuture<List<ByteBuf>> asyncReadEntries(LongLongPair start, int maxEntries, int maxBytes) {
+        return asyncInitialize()
+                .thenCompose(__ -> {
+                    var file = files.get(start.f1);
+                    if (file == null) {
+                        return CompletableFuture.failedFuture(new IllegalStateException("File not found: " + start.f1));
+                    }
+                    return initializeFile(file)
+                            .thenCompose(___ -> file.asyncReadEntries(start.f2, maxEntries, maxBytes));
+                });
+    }
+
+    /**
+     * Initialize the file for reads, a sealed file that is not opened yet is opened on the read pool.
+     */
+    private CompletableFuture<Void> initializeFile(EntryFile file) {
+        if (file instanceof DefaultEntryFile && ((DefaultEntryFile) file).isUnopened()) {
+            return io.submit(IoExecutors.Kind.READ, file::asyncInitialize).thenCompose(Function.identity());
+        }
+        return file.asyncInitialize();
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncDeleteFile(long fileId) {
+        return asyncInitialize()
+                .thenCompose(__ -> {
+                    var file = files.get(fileId);
+                    if (file == null) {
+                        return CompletableFuture.failedFuture(new IllegalStateException("File not found: " + fileId));
+                    }
+                    if (!file.isReadOnly()) {
+                        return CompletableFuture.failedFuture(
+                                new IllegalStateException("File is not sealed: " + fileId));
+                    }
+                    files.remove(fileId);
+                    return file.asyncClose()
+                            .thenCompose(___ -> {
+                                try {
+                                    pool.recycle(new File(file.path()));
+                                    return CompletableFuture.<Void>completedFuture(null);
+                                } catch (IOException e) {
+                                    return CompletableFuture.failedFuture(e);
+                                }
+                            });
+                });
+    }
+
     @Override
     public synchronized CompletableFuture<Void> asyncClose() {
-        return asyncFlush()
+        // The published appends are appended before the files are closed.
+        return writer.close()
+                .thenCompose(__ -> asyncFlush())
                 .thenCompose(__ -> {
                     if (!STATE_UPDATER.compareAndSet(this, State.INITIALIZED, State.FENCED)) {
                         return CompletableFuture.completedFuture(null);
                     }
-                    var futures = new ArrayList<CompletableFuture<Void>>(files.size());
+                    var futures = new ArrayList<CompletableFuture<Void>>(files.size() + 1);
+                    futures.add(discardNext().thenRun(pool::close));
                     for (var entry : files.entrySet()) {
                         futures.add(entry.getValue().asyncClose());
                     }
                     return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-                            .thenAccept(___ -> log.info("All the files closed, directory {}", path))
+                            .thenAccept(___ -> {
+                                updateManifest();
+                                log.info("All the files closed, directory {}", path);
+                            })
                             .exceptionally(ex -> {
                                 log.error("Create files failed, directory {}", path, ex);
                                 return null;
+                            })
+                            .whenComplete((___, ex) -> {
+                                if (ownIo) {
+                                    io.close();
+                                }
                             });
                 });
     }
@@ -284,7 +506,15 @@ public class DefaultDirectory implements Directory {
                         futures.add(entry.getValue().asyncDelete());
                     }
                     return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-                            .thenAccept(___ -> log.info("All the files deleted, directory {}", path))
+                            .thenAccept(___ -> {
+                                try {
+                                    pool.delete();
+                                    manifest.delete();
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                                log.info("All the files deleted, directory {}", path);
+                            })
                             .exceptionally(ex -> {
                                 log.error("Delete files failed, directory {}", path, ex);
                                 return null;
@@ -311,7 +541,10 @@ public class DefaultDirectory implements Directory {
                         futures.add(entry.getValue().asyncFlush());
                     }
                     return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-                            .thenAccept(___ -> log.info("All the files flushed, directory {}", path))
+                            .thenAccept(___ -> {
+                                updateManifest();
+                                log.debug("All the files flushed, directory {}", path);
+                            })
                             .exceptionally(ex -> {
                                 log.error("Flush files failed, directory {}", path, ex);
                                 return null;
@@ -1,5 +1,6 @@
 package org.daojun.neutron.storage.internal;
 
+import com.sun.nio.file.ExtendedOpenOption;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import lombok.extern.slf4j.Slf4j;
@@ -8,62 +9,169 @@ import org.daojun.neutron.storage.EntryFile;
 import org.daojun.neutron.storage.FencedException;
 import org.daojun.neutron.storage.ManagedStorageConfig;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.LockSupport;
 
 /**
- * Write/Read entries by FileChannel, without any synchronization and cache.
+ * An append-only file of entries, each framed with its length and checksum.
+ * <p>
+ * Appends copy the entry into a write buffer of direct memory chunks, see {@link WriteBuffer}. A background flusher
+ * writes the buffered frames by one gathering write and fsyncs them once the max delay, bytes or entries trigger is
+ * reached. Flushes run on the sync pool of the I/O executors, never on the producers, which only wait for a flush
+ * when the buffer is full. With group commit, add futures are completed once their entry is fsynced.
+ * <p>
+ * Reads are served from the write buffer until the entries are flushed, then from the file channel on the read
+ * pool, or from a memory mapping once the file is sealed. The channels of sealed files are handed over to the
+ * channel cache, which may close them and reopen them on the next read. With direct I/O, reads and writes bypass
+ * the page cache by whole aligned blocks.
+ * <p>
+ * The header persists the wrote and flushed positions. After an unclean shutdown, the frames after the flushed
+ * position are validated by their checksums, and the file is truncated after the last valid one.
  */
 @Slf4j
 public class DefaultEntryFile implements EntryFile {
+    // Version 1 header, which limits the file to 2GB:
     // First 4 bytes: magic number
     // Second 4 bytes: wrote position
     // Third 4 bytes: flushed position
-    private static final int HEADER_SIZE = 4 + 4 + 4;
+    private static final int HEADER_SIZE_V1 = 4 + 4 + 4;
     private static final int MAGIC = 0x12345678;
+    // Version 2 and later header:
+    // First 4 bytes: magic number
+    // Second 4 bytes: version
+    // Third 8 bytes: wrote position
+    // Fourth 8 bytes: flushed position
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final int MAGIC_V2 = 0x12345679;
+    // Frames of version 1 and 2 are the 4 bytes length and the entry.
+    private static final int VERSION_LONG_OFFSETS = 2;
+    private static final int LEGACY_FRAME_HEADER_SIZE = 4;
+    // Frames of version 3 carry a checksum, see WriteBuffer.
+    private static final int VERSION = 3;
+    // Bytes read at once by the recovery scan
+    private static final int SCAN_CHUNK_SIZE = 1024 * 1024;
     private static final AtomicReferenceFieldUpdater<DefaultEntryFile, DefaultEntryFile.State> STATE_UPDATER =
             AtomicReferenceFieldUpdater.newUpdater(DefaultEntryFile.class, DefaultEntryFile.State.class, "state");
+    private static final AtomicReferenceFieldUpdater<DefaultEntryFile, MappedFileBuf> MAPPED_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(DefaultEntryFile.class, MappedFileBuf.class, "mapped");
+    private static final AtomicReferenceFieldUpdater<DefaultEntryFile, FileChannelCache.Handle> CHANNEL_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(DefaultEntryFile.class, FileChannelCache.Handle.class, "channel");
 
     private final long id;
     private final String name;
     private final String directory;
     private final File file;
-    private final int threshold;
+    private final long threshold;
     private FileChannel fc;
+    // The channel for reads. Once the file is sealed, it is handed over to the channel cache, which may close it,
+    // and reads take the channel from the cache.
+    private final FileChannelCache channelCache;
+    private volatile FileChannelCache.Handle channel;
     private final int maxCache;
     private boolean needRecover = true;
+    // The offset of the first entry, files of version 1 have a smaller header
+    private int headerSize = HEADER_SIZE;
+    // Frames of files older than version 3 have no checksum
+    private int frameHeaderSize = WriteBuffer.FRAME_HEADER_SIZE;
 
     // Is the entry file read only?
     private volatile boolean readonly = false;
     // The wrote position
-    private final AtomicInteger wrote = new AtomicInteger();
+    private final AtomicLong wrote = new AtomicLong();
     // The flushed position
-    private final AtomicInteger flushed = new AtomicInteger();
+    private final AtomicLong flushed = new AtomicLong();
     private final ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
     // pending operations
     private final AtomicInteger pendingOps = new AtomicInteger(0);
 
     private final ScheduledExecutorService scheduler;
+    private final IoExecutors io;
+    // Whether the I/O executors are created by the file, and closed with it
+    private final boolean ownIo;
+    // Serializes the flushes, which run on the sync pool
+    private final Object flushLock = new Object();
     // How many bytes in the buffer
     private final AtomicInteger cached = new AtomicInteger(0);
-    // The buffer for entries
-    private final NavigableMap<Integer, ByteBuf> buffer = new ConcurrentSkipListMap<>(Integer::compareTo);
+    // The buffer for entries, appends are serialized by its monitor
+    private final int writeBufferChunkSize;
+    private volatile WriteBuffer buffer;
+
+    // Background flush triggers, with group commit the bytes and delay triggers of group commit are used.
+    private final int flushMaxBytes;
+    private final int flushMaxEntries;
+    private final long flushMaxDelayMicros;
+    // How many bytes and entries are added since the last background flush
+    private final AtomicInteger unflushedBytes = new AtomicInteger(0);
+    private final AtomicInteger unflushedEntries = new AtomicInteger(0);
+    private final AtomicBoolean flushSubmitted = new AtomicBoolean(false);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    // Group commit: add futures are completed after the entry is fsynced.
+    private final boolean groupCommit;
+    // Add futures waiting for the next group commit, keyed by offset
+    private final NavigableMap<Long, CompletableFuture<Long>> syncWaiters =
+            new ConcurrentSkipListMap<>(Long::compareTo);
+
+    // Serve reads of the sealed file from a memory mapping
+    private final boolean mmapSealed;
+    private volatile MappedFileBuf mapped;
+
+    // The last chunk read by bulk reads, kept for sequential readers
+    private final int readaheadBytes;
+    private final Object readaheadLock = new Object();
+    private Readahead readahead;
+
+    // Direct I/O bypasses the page cache, every read and write covers whole aligned blocks.
+    private final boolean directIoEnabled;
+    // Whether the channel is opened with direct I/O, false if the file store does not support it
+    private boolean directIo = false;
+    // The first block of the file, which holds the header, written again whenever the header is persisted
+    private ByteBuffer headBlock;
+    // The flushed bytes of the last partial block, written again by the next flush
+    private ByteBuffer tailBlock;
 
     private volatile DefaultEntryFile.State state = DefaultEntryFile.State.NEW;
     // The future for initialization
     private final CompletableFuture<Void> initializeFuture = new CompletableFuture<>();
 
+    private static class Readahead {
+        // The file position of the first byte of the chunk
+        private final long offset;
+        private final ByteBuf chunk;
+
+        private Readahead(long offset, ByteBuf chunk) {
+            this.offset = offset;
+            this.chunk = chunk;
+        }
+
+        private long limit() {
+            return offset + chunk.readableBytes();
+        }
+    }
+
     private enum State {
         NEW,
         INITIALIZING,
@@ -73,19 +181,58 @@ public class DefaultEntryFile implements EntryFile {
     }
 
 
+    /**
+     * A standalone entry file, with its own I/O executors, which are closed with the file.
+     */
     public DefaultEntryFile(ManagedStorageConfig config, String directory, long id, ScheduledExecutorService scheduler) throws IOException {
+        this(config, directory, id, scheduler, null, null, null);
+    }
+
+    /**
+     * Create a new entry file by taking over a spare file, which is preallocated or recycled.
+     * The content of the spare file is never read, the header is rewritten on initialization.
+     * Once the file is sealed, its channel is kept by the channel cache, if there is one.
+     * Flushes and the reads that miss the buffers run on the I/O executors.
+     *
+     * @param io the I/O executors shared with the directory, or null to create them from the config
+     */
+    DefaultEntryFile(ManagedStorageConfig config, String directory, long id, ScheduledExecutorService scheduler,
+                     File spare, FileChannelCache channelCache, IoExecutors io) throws IOException {
         this.id = id;
         this.name = String.valueOf(id);
         this.directory = directory;
-        this.scheduler = scheduler;
         this.file = FileUtils.getFile(directory, name);
         FileUtils.createParentDirectories(file);
-        if (!this.file.exists()) {
+        if (spare != null) {
+            if (this.file.exists()) {
+                throw new FileAlreadyExistsException(this.file.getPath());
+            }
+            needRecover = false;
+            Files.move(spare.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } else if (!this.file.exists()) {
             needRecover = false;
             this.file.createNewFile();
         }
+        config = Objects.requireNonNullElseGet(config, ManagedStorageConfig::new);
         this.threshold = config.getMaxEntryFileSize();
         this.maxCache = config.getMaxEntryCacheOfOneFile();
+        this.writeBufferChunkSize = config.getWriteBufferChunkSize();
+        this.groupCommit = config.isGroupCommitEnabled();
+        this.flushMaxEntries = config.getFlushMaxEntries();
+        if (groupCommit) {
+            this.flushMaxBytes = config.getGroupCommitMaxBytes();
+            this.flushMaxDelayMicros = config.getGroupCommitMaxDelayMicros();
+        } else {
+            this.flushMaxBytes = config.getFlushMaxBytes();
+            this.flushMaxDelayMicros = TimeUnit.MILLISECONDS.toMicros(config.getFlushMaxDelayMillis());
+        }
+        this.mmapSealed = config.isSealedFileMmapEnabled();
+        this.readaheadBytes = config.getEntryFileReadaheadBytes();
+        this.directIoEnabled = config.isEntryFileDirectIoEnabled();
+        this.channelCache = channelCache;
+        this.ownIo = io == null;
+        this.io = io == null ? IoExecutors.create(config) : io;
+        this.scheduler = Objects.requireNonNull(scheduler, "The background flusher requires a scheduler");
     }
 
     @Override
@@ -99,7 +246,17 @@ public class DefaultEntryFile implements EntryFile {
     }
 
     @Override
-    public int size() {
+    public long firstEntryOffset() {
+        return this.headerSize;
+    }
+
+    @Override
+    public long nextEntryOffset(long offset, ByteBuf entry) {
+        return offset + frameHeaderSize + entry.readableBytes();
+    }
+
+    @Override
+    public long size() {
         return this.wrote.get();
     }
 
@@ -108,6 +265,32 @@ public class DefaultEntryFile implements EntryFile {
         return readonly;
     }
 
+    /**
+     * Take the file as sealed with the size recorded by the directory manifest, so that it is opened lazily on the
+     * first read. Must be called before initialization.
+     */
+    void assumeSealed(long size) {
+        readonly = true;
+        wrote.set(size);
+        flushed.set(size);
+    }
+
+    /**
+     * Whether the file is not opened yet, e.g. a sealed file that was never read.
+     */
+    boolean isUnopened() {
+        return state.equals(State.NEW);
+    }
+
+    /**
+     * Whether the content of the file is final, that is read only or closed, and fully flushed.
+     */
+    boolean isSealed() {
+        var buffer = this.buffer;
+        return (readonly || state.equals(State.FENCED)) && (buffer == null || buffer.isEmpty())
+                && flushed.get() == wrote.get();
+    }
+
     @Override
     public CompletableFuture<Void> asyncInitialize() {
         if (state.equals(State.INITIALIZE_FAILED) || state.equals(State.INITIALIZED)
@@ -120,7 +303,7 @@ public class DefaultEntryFile implements EntryFile {
 
         var hasException = false;
         try {
-            this.fc = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.fc = open();
             if (needRecover) {
                 readonly = true;
                 recover();
@@ -129,6 +312,9 @@ public class DefaultEntryFile implements EntryFile {
                 flushed.addAndGet(HEADER_SIZE);
                 persist();
             }
+            this.buffer = new WriteBuffer(allocator, writeBufferChunkSize, wrote.get());
+            this.channel = new FileChannelCache.Handle(fc);
+            cacheChannelIfSealed();
             STATE_UPDATER.set(this, State.INITIALIZED);
             initializeFuture.complete(null);
         } catch (IOException e) {
@@ -147,8 +333,61 @@ public class DefaultEntryFile implements EntryFile {
         return initializeFuture;
     }
 
+    private FileChannel open() throws IOException {
+        if (directIoEnabled) {
+            try {
+                var blockSize = Files.getFileStore(file.toPath()).getBlockSize();
+                if (AlignedBufferPool.supports(blockSize)) {
+                    var fc = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            ExtendedOpenOption.DIRECT);
+                    this.directIo = true;
+                    this.headBlock = AlignedBufferPool.allocate(AlignedBufferPool.ALIGNMENT);
+                    this.tailBlock = ByteBuffer.allocate(AlignedBufferPool.ALIGNMENT);
+                    return fc;
+                }
+                log.warn("Direct I/O is not supported by the block size {}, entry file {}", blockSize, id);
+            } catch (IOException | UnsupportedOperationException ex) {
+                log.warn("Direct I/O is not supported, fall back to buffered I/O, entry file {}", id, ex);
+            }
+        }
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private FileChannel openReadChannel() throws IOException {
+        return directIo
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ, ExtendedOpenOption.DIRECT)
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Hand the channel over to the channel cache once the file is sealed.
+     */
+    private void cacheChannelIfSealed() {
+        var channel = this.channel;
+        if (channelCache != null && channel != null && isSealed() && CHANNEL_UPDATER.compareAndSet(this, channel, null)) {
+            channelCache.put(id, channel);
+        }
+    }
+
+    /**
+     * Retain the channel for reads, which is reopened if the channel cache has closed it.
+     *
+     * @return the retained channel, the caller must release it
+     */
+    private FileChannelCache.Handle acquireChannel() throws IOException {
+        var channel = this.channel;
+        if (channel != null && channel.tryRetain()) {
+            return channel;
+        }
+        if (channelCache == null) {
+            throw new ClosedChannelException();
+        }
+        return channelCache.acquire(id, this::openReadChannel);
+    }
+
     /**
-     * Recover the entry file.
+     * Recover the entry file. After an unclean shutdown, the frames written after the checkpointed flushed position
+     * are validated by their checksums, and the file is truncated after the last valid frame.
      *
      * @throws IOException
      */
@@ -158,20 +397,120 @@ public class DefaultEntryFile implements EntryFile {
             throw new IllegalStateException("Entry file is not opened");
         }
 
-        var b = ByteBuffer.allocate(HEADER_SIZE);
-        fc.read(b, 0);
-        b.flip();
-        var magic = b.getInt();
-        if (magic != MAGIC) {
-            throw new IllegalStateException("Invalid magic number");
+        long wrote, flushed;
+        int version;
+        var b = readChunk(fc, 0, (int) Math.min(HEADER_SIZE, fc.size()));
+        try {
+            var magic = b.readableBytes() < HEADER_SIZE_V1 ? 0 : b.readInt();
+            if (magic == MAGIC) {
+                // Files of version 1 are recovered as they are, and sealed like any recovered file.
+                version = 1;
+                headerSize = HEADER_SIZE_V1;
+                wrote = b.readInt();
+                flushed = b.readInt();
+            } else if (magic == MAGIC_V2 && b.readableBytes() == HEADER_SIZE - 4) {
+                version = b.readInt();
+                if (version != VERSION && version != VERSION_LONG_OFFSETS) {
+                    throw new IllegalStateException("Unsupported entry file version " + version);
+                }
+                wrote = b.readLong();
+                flushed = b.readLong();
+            } else {
+                throw new IllegalStateException("Invalid magic number");
+            }
+        } finally {
+            b.release();
         }
-        var wrote = b.getInt();
-        var flushed = b.getInt();
-        if (flushed < 0 || wrote != flushed) {
+        if (flushed < headerSize || wrote < flushed) {
             throw new IllegalStateException("Invalid wrote or flushed position");
         }
-        this.wrote.set(wrote);
+        this.wrote.set(flushed);
         this.flushed.set(flushed);
+        if (version != VERSION) {
+            frameHeaderSize = LEGACY_FRAME_HEADER_SIZE;
+            if (wrote != flushed) {
+                // Without checksums the frames after the flushed position can not be trusted.
+                log.warn("Entry file {} was not closed cleanly, drop {} bytes after the flushed position {}",
+                        id, wrote - flushed, flushed);
+            }
+            return;
+        }
+
+        var end = scanFrames(flushed);
+        if (wrote != flushed || end != flushed) {
+            log.warn("Entry file {} was not closed cleanly, recovered {} bytes after the flushed position {}, "
+                    + "truncated at {}", id, end - flushed, flushed, end);
+            if (directIo) {
+                loadHeadBlock(end);
+            }
+            fc.truncate(end);
+            this.wrote.set(end);
+            this.flushed.set(end);
+            persist();
+        }
+    }
+
+    /**
+     * Scan the frames from the position, until the end of the file or the first frame that is torn or fails its
+     * checksum.
+     *
+     * @return the position after the last valid frame
+     * @throws IOException
+     */
+    private long scanFrames(long position) throws IOException {
+        var size = fc.size();
+        ByteBuf chunk = null;
+        var base = position;
+        try {
+            while (position + frameHeaderSize <= size) {
+                if (chunk == null || position + frameHeaderSize > base + chunk.readableBytes()) {
+                    if (chunk != null) {
+                        chunk.release();
+                        chunk = null;
+                    }
+                    base = position;
+                    chunk = readChunk(fc, position, (int) Math.min(SCAN_CHUNK_SIZE, size - position));
+                }
+                var index = (int) (position - base);
+                var length = chunk.getInt(index);
+                var checksum = chunk.getInt(index + 4);
+                if (length < 0 || position + frameHeaderSize + length > size) {
+                    break;
+                }
+                if (index + frameHeaderSize + length > chunk.readableBytes()) {
+                    // The frame is larger than the rest of the chunk.
+                    chunk.release();
+                    chunk = null;
+                    base = position;
+                    chunk = readChunk(fc, position, frameHeaderSize + length);
+                    index = 0;
+                }
+                if (FrameChecksum.of(chunk.slice(index + frameHeaderSize, length), id, position) != checksum) {
+                    break;
+                }
+                position += frameHeaderSize + length;
+            }
+        } finally {
+            if (chunk != null) {
+                chunk.release();
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Load the first block for the header to be persisted with direct I/O, the bytes after the end are zeroed.
+     */
+    private void loadHeadBlock(long end) throws IOException {
+        var length = (int) Math.min(Math.min(AlignedBufferPool.ALIGNMENT, fc.size()), end);
+        var head = readChunk(fc, 0, length);
+        try {
+            headBlock.clear();
+            head.getBytes(0, headBlock.duplicate().limit(length));
+            headBlock.put(length, new byte[AlignedBufferPool.ALIGNMENT - length]);
+        } finally {
+            head.release();
+        }
     }
 
     /**
@@ -180,10 +519,20 @@ public class DefaultEntryFile implements EntryFile {
      * @throws IOException
      */
     private void persist() throws IOException {
+        if (directIo) {
+            var b = headBlock.putInt(0, MAGIC_V2).putInt(4, VERSION).putLong(8, wrote.get()).putLong(16, flushed.get())
+                    .duplicate().clear();
+            while (b.hasRemaining()) {
+                fc.write(b, b.position());
+            }
+            fc.force(true);
+            return;
+        }
         var b = ByteBuffer.allocate(HEADER_SIZE);
-        b.putInt(MAGIC);
-        b.putInt(wrote.get());
-        b.putInt(flushed.get());
+        b.putInt(MAGIC_V2);
+        b.putInt(VERSION);
+        b.putLong(wrote.get());
+        b.putLong(flushed.get());
         b.flip();
         fc.write(b, 0);
         fc.force(true);
@@ -195,57 +544,183 @@ public class DefaultEntryFile implements EntryFile {
         if (state.equals(State.FENCED)) {
             return CompletableFuture.failedFuture(new FencedException("Entry file is fenced"));
         }
+        if (state.equals(State.NEW)) {
+            // Not opened yet, nothing to flush.
+            return CompletableFuture.completedFuture(null);
+        }
         return initializeFuture
                 .thenCompose(__ -> {
-                    if (isReadOnly()) {
+                    // A rolled file is read only, but may still have buffered entries.
+                    if (isReadOnly() && buffer.isEmpty()) {
+                        cacheChannelIfSealed();
                         return CompletableFuture.completedFuture(null);
                     }
-                    var f = new CompletableFuture<Void>();
-                    try {
-                        pendingOps.incrementAndGet();
-                        if (buffer.isEmpty() || wrote.get() == flushed.get()) {
-                            f.complete(null);
-                            return f;
-                        }
-                        var entry = buffer.firstEntry();
-                        ByteBuffer sizeBuffer = ByteBuffer.allocate(4);
-                        flushInternal(entry, sizeBuffer);
-                        persist();
-                        f.complete(null);
-                    } catch (Exception ex) {
-                        f.completeExceptionally(ex);
-                    } finally {
-                        pendingOps.decrementAndGet();
+                    if (buffer.isEmpty() || wrote.get() == flushed.get()) {
+                        return CompletableFuture.completedFuture(null);
                     }
-                    return f;
+                    return io.submit(IoExecutors.Kind.SYNC, () -> {
+                        synchronized (flushLock) {
+                            // Closing flushes by itself, and the write buffer is released after that.
+                            if (state.equals(State.FENCED)) {
+                                throw new FencedException("Entry file is fenced");
+                            }
+                            try {
+                                flushInternal();
+                                persist();
+                            } catch (Exception ex) {
+                                failSyncWaiters(ex);
+                                throw ex;
+                            }
+                            completeSyncWaiters();
+                            cacheChannelIfSealed();
+                            return null;
+                        }
+                    });
                 });
     }
 
-    @SuppressWarnings("all")
-    private void flushInternal(Map.Entry<Integer, ByteBuf> entry, ByteBuffer sizeBuffer) throws IOException {
-        while (entry != null && entry.getKey() == flushed.get()) {
-            var key = entry.getKey();
-            var value = entry.getValue();
-
-            if (value.refCnt() <= 0) {
-                buffer.remove(entry.getKey());
-                continue;
+    /**
+     * Write the buffered frames to the file channel by one gathering write over the chunks of the write buffer.
+     *
+     * @throws IOException
+     */
+    private void flushInternal() throws IOException {
+        var position = flushed.get();
+        var end = buffer.tail();
+        if (end > position) {
+            if (directIo) {
+                writeDirect(position, end);
+            } else {
+                var buffers = buffer.nioBuffers(position, end);
+                fc.position(position);
+                var remaining = end - position;
+                while (remaining > 0) {
+                    remaining -= fc.write(buffers);
+                }
             }
-            var size = value.readableBytes();
-            flushed.getAndAdd(size + 4);
-            fc.write(sizeBuffer.putInt(size).flip(), key);
-            fc.write(value.nioBuffer(), key + 4);
-            sizeBuffer.clear();
-            value.release();
-            buffer.remove(entry.getKey());
-            cached.addAndGet(-size - 4);
-            entry = buffer.firstEntry();
+            // Publish the flushed position before the chunks are released, so that reads never miss them.
+            flushed.set(end);
+            buffer.release(end);
+            cached.addAndGet((int) (position - end));
         }
         fc.force(true);
     }
 
+    /**
+     * Write the buffered frames by whole blocks through pooled aligned buffers. The flushed bytes of the first block
+     * are written again, and the last block is padded with zeros, which the next flush overwrites.
+     */
+    private void writeDirect(long position, long end) throws IOException {
+        var sources = buffer.nioBuffers(position, end);
+        var staging = AlignedBufferPool.acquire();
+        try {
+            var start = AlignedBufferPool.alignDown(position);
+            staging.put((start == 0 ? headBlock : tailBlock).duplicate().clear().limit((int) (position - start)));
+            var i = 0;
+            while (true) {
+                while (i < sources.length && staging.hasRemaining()) {
+                    var source = sources[i];
+                    if (source.remaining() <= staging.remaining()) {
+                        staging.put(source);
+                        i++;
+                    } else {
+                        var n = staging.remaining();
+                        staging.put(source.slice(source.position(), n));
+                        source.position(source.position() + n);
+                    }
+                }
+                var filled = staging.position();
+                var length = (int) AlignedBufferPool.alignUp(filled);
+                while (staging.position() < length) {
+                    staging.put((byte) 0);
+                }
+                staging.flip();
+                if (start == 0) {
+                    headBlock.clear().put(staging.slice(0, AlignedBufferPool.ALIGNMENT));
+                }
+                while (staging.hasRemaining()) {
+                    fc.write(staging, start + staging.position());
+                }
+                if (i == sources.length) {
+                    var last = (int) AlignedBufferPool.alignDown(filled);
+                    tailBlock.clear().put(staging.slice(last, filled - last));
+                    return;
+                }
+                start += filled;
+                staging.clear();
+            }
+        } finally {
+            AlignedBufferPool.release(staging);
+        }
+    }
+
+    /**
+     * Complete the add futures whose entries are covered by the flushed position.
+     */
+    private void completeSyncWaiters() {
+        var flushed = this.flushed.get();
+        Map.Entry<Long, CompletableFuture<Long>> waiter;
+        while ((waiter = syncWaiters.firstEntry()) != null && waiter.getKey() < flushed) {
+            syncWaiters.remove(waiter.getKey());
+            io.complete(waiter.getValue(), waiter.getKey(), null);
+        }
+    }
+
+    private void failSyncWaiters(Throwable ex) {
+        Map.Entry<Long, CompletableFuture<Long>> waiter;
+        while ((waiter = syncWaiters.pollFirstEntry()) != null) {
+            io.complete(waiter.getValue(), null, ex);
+        }
+    }
+
+    /**
+     * Account the added entry and make sure a background flush will happen, immediately if the bytes or entries
+     * trigger is reached, otherwise after the max delay.
+     */
+    private void requestFlush(int size) {
+        var bytes = unflushedBytes.addAndGet(size);
+        var entries = unflushedEntries.incrementAndGet();
+        if (bytes >= flushMaxBytes || entries >= flushMaxEntries) {
+            if (flushSubmitted.compareAndSet(false, true)) {
+                scheduler.execute(this::backgroundFlush);
+            }
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::backgroundFlush, flushMaxDelayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void backgroundFlush() {
+        // Reset the triggers first, entries added during the flush will request another flush.
+        flushSubmitted.set(false);
+        flushScheduled.set(false);
+        unflushedBytes.set(0);
+        unflushedEntries.set(0);
+        if (state.equals(State.FENCED)) {
+            return;
+        }
+        asyncFlush().exceptionally(ex -> {
+            // The file may be closed concurrently, which flushes by itself.
+            if (!state.equals(State.FENCED)) {
+                log.error("Background flush failed, entry file {}", id, ex);
+            }
+            return null;
+        });
+    }
+
     @Override
     public synchronized CompletableFuture<Void> asyncClose() {
+        if (state.equals(State.FENCED)) {
+            // Already closed, e.g. by the directory before deleting it.
+            return CompletableFuture.completedFuture(null);
+        }
+        if (STATE_UPDATER.compareAndSet(this, State.NEW, State.FENCED)) {
+            // Never opened, e.g. a sealed file that was never read.
+            initializeFuture.completeExceptionally(new FencedException("Entry file is fenced"));
+            if (ownIo) {
+                io.close();
+            }
+            return CompletableFuture.completedFuture(null);
+        }
         return asyncFlush()
                 .thenCompose(__ -> {
                     if (state.equals(State.FENCED)) {
@@ -259,17 +734,49 @@ public class DefaultEntryFile implements EntryFile {
                     }
                     var f = new CompletableFuture<Void>();
                     try {
-                        fc.close();
+                        // Entries added after the flush above, before the file was fenced.
+                        synchronized (flushLock) {
+                            if (!buffer.isEmpty()) {
+                                flushInternal();
+                                persist();
+                                completeSyncWaiters();
+                            }
+                        }
+                        var channel = CHANNEL_UPDATER.getAndSet(this, null);
+                        if (channel != null) {
+                            channel.release();
+                        } else if (channelCache != null) {
+                            channelCache.remove(id);
+                        }
                         f.complete(null);
                     } catch (IOException e) {
                         f.completeExceptionally(e);
+                    } finally {
+                        failSyncWaiters(new FencedException("Entry file is fenced"));
+                        // Outstanding slices keep the mapping alive until they are released.
+                        var mapped = MAPPED_UPDATER.getAndSet(this, null);
+                        if (mapped != null) {
+                            mapped.release();
+                        }
+                        buffer.close();
+                        synchronized (readaheadLock) {
+                            if (readahead != null) {
+                                readahead.chunk.release();
+                                readahead = null;
+                            }
+                        }
                     }
                     return f;
+                })
+                .whenComplete((__, ex) -> {
+                    if (ownIo) {
+                        io.close();
+                    }
                 });
     }
 
     @Override
-    public CompletableFuture<ByteBuf> asyncReadEntry(int offset) {
+    public CompletableFuture<ByteBuf> asyncReadEntry(long offset) {
         if (state.equals(State.FENCED)) {
             return CompletableFuture.failedFuture(new FencedException("Entry file is fenced"));
         }
@@ -277,83 +784,408 @@ public class DefaultEntryFile implements EntryFile {
         return initializeFuture
                 .thenCompose(__ -> {
                     var f = new CompletableFuture<ByteBuf>();
+                    var onChannel = false;
                     try {
                         pendingOps.incrementAndGet();
-                        if (offset < HEADER_SIZE || offset > wrote.get()) {
+                        // Closing waits for pending operations, so the channel and mapping stay open from here on.
+                        if (state.equals(State.FENCED)) {
+                            f.completeExceptionally(new FencedException("Entry file is fenced"));
+                            return f;
+                        }
+                        // Mapping may open the channel, so a file that is not mapped yet is mapped on the read pool.
+                        var mapped = this.mapped;
+                        if (offset < headerSize || offset > wrote.get()) {
                             f.completeExceptionally(new IllegalArgumentException("Offset out of range"));
+                        } else if (mapped != null && offset < mapped.capacity()) {
+                            f.complete(sliceMapped(mapped, offset));
                         } else if (offset < flushed.get()) {
-                            // Read from file channel
-                            var sizeBuffer = ByteBuffer.allocate(4);
-                            fc.read(sizeBuffer, offset);
-                            sizeBuffer.flip();
-                            var size = sizeBuffer.getInt();
-                            var buffer = ByteBuffer.allocate(size);
-                            fc.read(buffer, offset + 4);
-                            buffer.flip();
-                            f.complete(allocator.buffer(size).writeBytes(buffer));
-                        } else if (offset >= flushed.get() && offset < wrote.get() && buffer.containsKey(offset)) {
-                            // Read from buffer
-                            var entry = buffer.get(offset);
-                            f.complete(entry.retainedSlice());
+                            onChannel = true;
                         } else {
-                            f.completeExceptionally(new IllegalStateException("Entry not found"));
+                            // Read from buffer
+                            var entry = sliceBuffered(offset);
+                            if (entry != null) {
+                                f.complete(entry);
+                            } else if (offset < flushed.get()) {
+                                // Flushed after the check above
+                                onChannel = true;
+                            } else {
+                                f.completeExceptionally(new IllegalStateException("Entry not found"));
+                            }
                         }
-                    } catch (IOException ex) {
-                        f.completeExceptionally(ex);
                     } finally {
-                        pendingOps.decrementAndGet();
+                        if (!onChannel) {
+                            pendingOps.decrementAndGet();
+                        }
+                    }
+                    if (onChannel) {
+                        // The pending operation ends on the read pool.
+                        return io.submit(IoExecutors.Kind.READ, () -> {
+                            try {
+                                var m = mapIfSealed();
+                                return m != null && offset < m.capacity()
+                                        ? sliceMapped(m, offset)
+                                        : readFromChannel(offset);
+                            } finally {
+                                pendingOps.decrementAndGet();
+                            }
+                        });
                     }
                     return f;
                 });
     }
 
-    @Override
-    public CompletableFuture<Integer> asyncAddEntry(ByteBuf b) {
-        if (isReadOnly()) {
-            return CompletableFuture.completedFuture(-1);
+    /**
+     * Map the file once it is sealed, that is read only and fully flushed. Files larger than 2GB are not mapped.
+     * It may open the channel, so it is only called on the read pool.
+     *
+     * @return the mapping, or null if the file is not sealed or mapping is disabled
+     */
+    private MappedFileBuf mapIfSealed() throws IOException {
+        var mapped = this.mapped;
+        if (mapped != null || !mmapSealed || directIo || !readonly || !buffer.isEmpty() || flushed.get() != wrote.get()
+                || flushed.get() > Integer.MAX_VALUE) {
+            return mapped;
+        }
+        var channel = acquireChannel();
+        try {
+            mapped = MappedFileBuf.map(channel.channel(), (int) flushed.get());
+        } finally {
+            channel.release();
+        }
+        if (!MAPPED_UPDATER.compareAndSet(this, null, mapped)) {
+            mapped.release();
+        }
+        return this.mapped;
+    }
+
+    /**
+     * Zero-copy read from the mapping.
+     */
+    private ByteBuf sliceMapped(MappedFileBuf mapped, long offset) {
+        var size = mapped.getInt((int) offset);
+        return mapped.retainedSlice((int) offset + frameHeaderSize, size).asReadOnly();
+    }
+
+    private ByteBuf readFromChannel(long offset) throws IOException {
+        var channel = acquireChannel();
+        try {
+            int size;
+            var sizeBuffer = readChunk(channel.channel(), offset, 4);
+            try {
+                size = sizeBuffer.getInt(0);
+            } finally {
+                sizeBuffer.release();
+            }
+            return readChunk(channel.channel(), offset + frameHeaderSize, size);
+        } finally {
+            channel.release();
         }
+    }
+
+    @Override
+    public CompletableFuture<List<ByteBuf>> asyncReadEntries(long startOffset, int maxEntries, int maxBytes) {
         if (state.equals(State.FENCED)) {
             return CompletableFuture.failedFuture(new FencedException("Entry file is fenced"));
         }
 
-        flushIfNeeded();
         return initializeFuture
                 .thenCompose(__ -> {
+                    var f = new CompletableFuture<List<ByteBuf>>();
+                    var entries = new ArrayList<ByteBuf>(Math.min(Math.max(maxEntries, 0), 64));
+                    var onChannel = false;
                     try {
-                        var f = new CompletableFuture<Integer>();
                         pendingOps.incrementAndGet();
-                        var size = b.readableBytes();
-                        if (wrote.get() > threshold) {
-                            f.complete(-1);
+                        if (state.equals(State.FENCED)) {
+                            f.completeExceptionally(new FencedException("Entry file is fenced"));
                             return f;
                         }
-                        var offset = wrote.getAndAdd(size + 4);
-                        // Roll next file.
-                        if (offset > threshold) {
-                            // Make sure the wrote position is correct.
-                            wrote.addAndGet(-size - 4);
-                            f.complete(-1);
+                        var mapped = this.mapped;
+                        if (startOffset < headerSize || startOffset > wrote.get()) {
+                            f.completeExceptionally(new IllegalArgumentException("Offset out of range"));
                             return f;
+                        } else if (maxEntries <= 0) {
+                            f.complete(Collections.emptyList());
+                            return f;
+                        } else if (mapped != null && startOffset < mapped.capacity()) {
+                            sliceMapped(mapped, startOffset, maxEntries, maxBytes, entries);
+                        } else if (startOffset < flushed.get()) {
+                            onChannel = true;
+                        } else {
+                            readEntriesFromBuffer(startOffset, maxEntries, maxBytes, entries);
+                            // Flushed after the check above
+                            onChannel = entries.isEmpty() && startOffset < flushed.get();
+                        }
+                        if (onChannel) {
+                            // The pending operation ends on the read pool.
+                            return io.submit(IoExecutors.Kind.READ,
+                                    () -> readEntriesFromChannel(startOffset, maxEntries, maxBytes));
+                        }
+                        if (entries.isEmpty()) {
+                            f.completeExceptionally(new IllegalStateException("Entry not found"));
+                        } else {
+                            f.complete(entries);
                         }
-                        buffer.put(offset, b.retain());
-                        cached.addAndGet(size + 4);
-                        f.complete(offset);
-                        return f;
+                    } catch (Exception ex) {
+                        entries.forEach(ByteBuf::release);
+                        f.completeExceptionally(ex);
                     } finally {
-                        pendingOps.decrementAndGet();
+                        if (!onChannel) {
+                            pendingOps.decrementAndGet();
+                        }
                     }
+                    return f;
                 });
     }
 
+    /**
+     * Read the flushed entries on the current thread, and end the pending operation.
+     * The entries are read from the mapping if the file can be mapped.
+     */
+    private List<ByteBuf> readEntriesFromChannel(long startOffset, int maxEntries, int maxBytes) throws IOException {
+        var entries = new ArrayList<ByteBuf>(Math.min(maxEntries, 64));
+        try {
+            var mapped = mapIfSealed();
+            if (mapped != null && startOffset < mapped.capacity()) {
+                sliceMapped(mapped, startOffset, maxEntries, maxBytes, entries);
+            } else {
+                readEntriesFromChannel(startOffset, maxEntries, maxBytes, entries);
+            }
+            if (entries.isEmpty()) {
+                throw new IllegalStateException("Entry not found");
+            }
+            return entries;
+        } catch (Exception ex) {
+            entries.forEach(ByteBuf::release);
+            throw ex;
+        } finally {
+            pendingOps.decrementAndGet();
+        }
+    }
+
+    private void sliceMapped(MappedFileBuf mapped, long startOffset, int maxEntries, int maxBytes,
+                             List<ByteBuf> entries) {
+        sliceFrames(mapped, 0, startOffset, mapped.capacity(), maxEntries, maxBytes, entries);
+        entries.replaceAll(ByteBuf::asReadOnly);
+    }
 
-    private void flushIfNeeded() {
-        if (cached.get() < maxCache) {
-            return;
+    /**
+     * Slice the complete frames of the source, starting at the offset.
+     *
+     * @param source the frames, index 0 of the source is at file position {@code base}
+     * @param limit  the file position where the frames in the source end
+     * @return the file position after the last sliced frame
+     */
+    private long sliceFrames(ByteBuf source, long base, long offset, long limit, int maxEntries, int maxBytes,
+                             List<ByteBuf> entries) {
+        var bytes = 0;
+        while (entries.size() < maxEntries && offset + frameHeaderSize <= limit) {
+            var index = (int) (offset - base);
+            var size = source.getInt(index);
+            if (offset + frameHeaderSize + size > limit || (!entries.isEmpty() && bytes + size > maxBytes)) {
+                break;
+            }
+            entries.add(source.retainedSlice(index + frameHeaderSize, size));
+            bytes += size;
+            offset += size + frameHeaderSize;
+        }
+        return offset;
+    }
+
+    /**
+     * Read the flushed entries by one positional read of a large chunk, or from the readahead window if the chunk
+     * was read before. With readahead enabled, the chunk is kept as the window for the next sequential read.
+     */
+    private void readEntriesFromChannel(long startOffset, int maxEntries, int maxBytes, List<ByteBuf> entries)
+            throws IOException {
+        synchronized (readaheadLock) {
+            var window = readahead;
+            if (window != null && startOffset >= window.offset && startOffset < window.limit()
+                    && sliceFrames(window.chunk, window.offset, startOffset, window.limit(), maxEntries, maxBytes,
+                    entries) > startOffset) {
+                return;
+            }
+        }
+        var length = (int) Math.min(Math.max(Math.max(maxBytes, readaheadBytes), frameHeaderSize),
+                flushed.get() - startOffset);
+        ByteBuf chunk = null;
+        var channel = acquireChannel();
+        try {
+            chunk = readChunk(channel.channel(), startOffset, length);
+            if (sliceFrames(chunk, startOffset, startOffset, startOffset + length, maxEntries, maxBytes, entries)
+                    == startOffset) {
+                // The first entry is larger than the chunk.
+                var size = chunk.getInt(0);
+                chunk.release();
+                chunk = null;
+                chunk = readChunk(channel.channel(), startOffset, size + frameHeaderSize);
+                sliceFrames(chunk, startOffset, startOffset, startOffset + size + frameHeaderSize, maxEntries, maxBytes,
+                        entries);
+            }
+            if (readaheadBytes > 0) {
+                synchronized (readaheadLock) {
+                    // Check the state under the lock, close releases the window after fencing.
+                    if (!state.equals(State.FENCED)) {
+                        var previous = readahead;
+                        readahead = new Readahead(startOffset, chunk);
+                        chunk = previous == null ? null : previous.chunk;
+                    }
+                }
+            }
+        } finally {
+            channel.release();
+            if (chunk != null) {
+                chunk.release();
+            }
+        }
+    }
+
+    private ByteBuf readChunk(FileChannel fc, long offset, int length) throws IOException {
+        var chunk = allocator.directBuffer(length);
+        try {
+            if (directIo) {
+                readDirect(fc, chunk, offset, length);
+            } else {
+                var nio = chunk.nioBuffer(0, length);
+                while (nio.hasRemaining()) {
+                    if (fc.read(nio, offset + nio.position()) < 0) {
+                        throw new EOFException("Unexpected end of entry file " + id);
+                    }
+                }
+            }
+            chunk.writerIndex(length);
+            return chunk;
+        } catch (IOException ex) {
+            chunk.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Read whole blocks into pooled aligned buffers, and copy the requested bytes out.
+     */
+    private void readDirect(FileChannel fc, ByteBuf dst, long offset, int length) throws IOException {
+        var staging = AlignedBufferPool.acquire();
+        try {
+            var index = 0;
+            while (index < length) {
+                var position = offset + index;
+                var start = AlignedBufferPool.alignDown(position);
+                var skip = (int) (position - start);
+                var n = Math.min(length - index, staging.capacity() - skip);
+                staging.clear().limit((int) AlignedBufferPool.alignUp(skip + n));
+                while (staging.position() < skip + n) {
+                    if (fc.read(staging, start + staging.position()) < 0) {
+                        throw new EOFException("Unexpected end of entry file " + id);
+                    }
+                }
+                dst.setBytes(index, staging.flip().position(skip).limit(skip + n));
+                index += n;
+            }
+        } finally {
+            AlignedBufferPool.release(staging);
+        }
+    }
+
+    private void readEntriesFromBuffer(long startOffset, int maxEntries, int maxBytes, List<ByteBuf> entries) {
+        var offset = startOffset;
+        var bytes = 0;
+        while (entries.size() < maxEntries) {
+            var entry = sliceBuffered(offset);
+            if (entry == null) {
+                break;
+            }
+            var size = entry.readableBytes();
+            if (!entries.isEmpty() && bytes + size > maxBytes) {
+                entry.release();
+                break;
+            }
+            entries.add(entry);
+            bytes += size;
+            offset += size + frameHeaderSize;
+        }
+    }
+
+    /**
+     * Slice the buffered entry at the offset.
+     *
+     * @return the retained slice, or null if the entry is not buffered or is flushed concurrently
+     */
+    private ByteBuf sliceBuffered(long offset) {
+        return buffer.slice(offset);
+    }
+
+    @Override
+    public CompletableFuture<Long> asyncAddEntry(ByteBuf b) {
+        if (isReadOnly()) {
+            return CompletableFuture.completedFuture(-1L);
+        }
+        if (state.equals(State.FENCED)) {
+            return CompletableFuture.failedFuture(new FencedException("Entry file is fenced"));
+        }
+
+        if (isCacheFull()) {
+            // Back pressure: wait for the flusher to drain the cache, the producer never flushes by itself.
+            // The caller may release its buffer once this returns.
+            b.retain();
+            return asyncFlush()
+                    .thenCompose(__ -> asyncAddEntry(b))
+                    .whenComplete((__, ex) -> b.release());
         }
+        return initializeFuture
+                .thenCompose(__ -> {
+                    var f = new CompletableFuture<Long>();
+                    return append(b, f) ? f : CompletableFuture.completedFuture(-1L);
+                });
+    }
+
+    /**
+     * Whether the buffered bytes reached the max cache, appends should wait for a flush.
+     */
+    boolean isCacheFull() {
+        return cached.get() >= maxCache;
+    }
+
+    /**
+     * Append the entry on the current thread, the file must be initialized.
+     * The entry is copied into the write buffer, the caller's buffer is never retained.
+     *
+     * @param f the add future, completed with the offset, or after the entry is fsynced with group commit
+     * @return false if the file is full and read only from now on, the future is left as is
+     */
+    boolean append(ByteBuf b, CompletableFuture<Long> f) {
         try {
-            asyncFlush().get();
-        } catch (Exception e) {
-            log.error("Failed to flush entry file {}", id, e);
+            pendingOps.incrementAndGet();
+            // Closing waits for pending operations, so the write buffer stays open from here on.
+            if (state.equals(State.FENCED)) {
+                f.completeExceptionally(new FencedException("Entry file is fenced"));
+                return true;
+            }
+            var size = b.readableBytes();
+            var frameSize = size + WriteBuffer.FRAME_HEADER_SIZE;
+            var crc = FrameChecksum.crc32c(b);
+            long offset;
+            synchronized (buffer) {
+                offset = wrote.get();
+                // Roll next file.
+                if (offset > threshold) {
+                    readonly = true;
+                    return false;
+                }
+                if (groupCommit) {
+                    // Register the waiter before the entry is visible to the flusher.
+                    syncWaiters.put(offset, f);
+                }
+                buffer.append(b, crc ^ FrameChecksum.salt(id, offset));
+                wrote.set(offset + frameSize);
+            }
+            cached.addAndGet(frameSize);
+            requestFlush(frameSize);
+            if (!groupCommit) {
+                f.complete(offset);
+            }
+            return true;
+        } finally {
+            pendingOps.decrementAndGet();
         }
     }
 
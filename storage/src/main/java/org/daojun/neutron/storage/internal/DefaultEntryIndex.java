@@ -1,144 +1,656 @@
 package org.daojun.neutron.storage.internal;
 
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.daojun.neutron.common.utils.NumberUtils;
 import org.daojun.neutron.storage.*;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.Cache;
+import org.rocksdb.Filter;
+import org.rocksdb.FlushOptions;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.Status;
 import org.rocksdb.WriteBatch;
 import org.rocksdb.WriteOptions;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
+/**
+ * The entry index on RocksDB. The operations run on the index pool of the I/O executors.
+ * <p>
+ * With write-behind, additions are buffered in memory, sorted by position, and committed by one write batch on
+ * flush, or once the buffer is full. Lookups read the buffer first. The additions since the last flush are lost on
+ * a crash, so the index must be flushed after the entries it points to.
+ * <p>
+ * The index keeps a checkpoint, the position of the entry files before which every entry is indexed. Without the
+ * RocksDB WAL, the additions since the last flush are lost on a crash, and rebuilt by replaying the entry files from
+ * the checkpoint, see {@link EntryIndexRecovery}.
+ * <p>
+ * The positions added and looked up are cached off-heap by an {@link EntryLookupCache}, so that tail reads and
+ * redeliveries do not go through RocksDB.
+ * <p>
+ * The range tombstones of deleted ledgers are compacted in the background by a {@link TombstoneCompactor}, range by
+ * range within an I/O budget.
+ */
+@Slf4j
 public class DefaultEntryIndex implements EntryIndex {
+    // Out of the 12 bytes keys of the entries
+    static final byte[] CHECKPOINT_KEY = "checkpoint".getBytes(StandardCharsets.US_ASCII);
+
     private final ManagedStorageConfig config;
     private final String path;
     public RocksDB index;
     private WriteOptions syncOp;
     private WriteOptions asyncOp;
+    // Deletions are written to the WAL even without WAL for the additions, the replay can not undo a lost one.
+    private WriteOptions deleteOp;
+    private FlushOptions flushOp;
+    private final boolean walEnabled;
     private WriteBatch emptyBatch;
+    private Options options;
+    private Cache blockCache;
+    private Filter bloomFilter;
+    private ReadOptions readOp;
+    private ReadOptions rangeOp;
     private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final IoExecutors io;
+    // Whether the I/O executors are created by the index, and closed with it
+    private final boolean ownIo;
+    // Operations hold the read lock, so that RocksDB is never closed under them.
+    private final ReadWriteLock lifecycleLock = new ReentrantReadWriteLock();
+    private boolean released = false;
+    private final boolean writeBehind;
+    private final int writeBehindMaxEntries;
+    // Additions to commit, swapped for an empty buffer by the commit
+    private volatile ConcurrentSkipListMap<Position, LongLongPair> pending = newBuffer();
+    // The buffer being committed, still read by lookups until it is written
+    private volatile ConcurrentSkipListMap<Position, LongLongPair> committing = newBuffer();
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+    private final AtomicBoolean commitScheduled = new AtomicBoolean(false);
+    // Additions hold the read lock, so that the commit never swaps a buffer under them.
+    private final StampedLock bufferLock = new StampedLock();
+    // Serializes the commits and the deletions
+    private final Object commitLock = new Object();
+    // Null if disabled
+    private final EntryLookupCache cache;
+    private final TombstoneCompactor compactor;
+    // Null if the background compactions are disabled
+    private final ScheduledExecutorService compactionScheduler;
 
     public DefaultEntryIndex(ManagedStorageConfig config, String directory) {
+        this(config, directory, null);
+    }
+
+    /**
+     * @param io the I/O executors shared with other indexes and directories, or null to create them from the config
+     */
+    public DefaultEntryIndex(ManagedStorageConfig config, String directory, IoExecutors io) {
         this.config = config;
         this.path = directory + "/index";
+        var conf = Objects.requireNonNullElseGet(config, ManagedStorageConfig::new);
+        this.writeBehind = conf.isEntryIndexWriteBehindEnabled();
+        this.writeBehindMaxEntries = conf.getEntryIndexWriteBehindMaxEntries();
+        this.walEnabled = conf.isEntryIndexWalEnabled();
+        this.cache = conf.getEntryIndexLookupCacheSize() > 0 ? new EntryLookupCache(conf.getEntryIndexLookupCacheSize()) : null;
+        this.compactor = new TombstoneCompactor(conf.getEntryIndexCompactionMaxLedgers());
+        this.ownIo = io == null;
+        this.io = io == null ? IoExecutors.create(config) : io;
         try {
             Files.createDirectories(Path.of(path));
-            initialize();
+            initialize(conf);
+            if (conf.getEntryIndexCompactionIntervalMs() > 0) {
+                var interval = conf.getEntryIndexCompactionIntervalMs();
+                var bytesPerSecond = conf.getEntryIndexCompactionBytesPerSecond();
+                var budget = bytesPerSecond > 0 ? Math.max(bytesPerSecond * interval / 1000, 1) : Long.MAX_VALUE;
+                compactionScheduler = Executors.newSingleThreadScheduledExecutor(
+                        new DefaultThreadFactory("neutron-index-compaction", true));
+                compactionScheduler.scheduleWithFixedDelay(() -> compactDeleted(budget), interval, interval,
+                        TimeUnit.MILLISECONDS);
+            } else {
+                compactionScheduler = null;
+            }
         } catch (Exception e) {
+            if (ownIo) {
+                this.io.close();
+            }
+            if (cache != null) {
+                cache.release();
+            }
             throw new RuntimeException(e);
         }
     }
 
-    private void initialize() throws RocksDBException {
+    private void initialize(ManagedStorageConfig config) throws RocksDBException {
         try {
             RocksDB.loadLibrary();
             syncOp = new WriteOptions().setSync(true);
-            asyncOp = new WriteOptions().setSync(false);
+            asyncOp = new WriteOptions().setSync(false).setDisableWAL(!walEnabled);
+            deleteOp = walEnabled ? asyncOp : syncOp;
+            flushOp = new FlushOptions().setWaitForFlush(true);
             emptyBatch = new WriteBatch();
+            readOp = new ReadOptions();
+            // Range lookups iterate the keys with the ledger id prefix of their start key.
+            rangeOp = new ReadOptions().setPrefixSameAsStart(true);
         } catch (Exception ex) {
             throw new IllegalStateException("Unable to load rocksdb");
         }
-        this.index = RocksDB.open(this.path);
+        // Keys are the 8 bytes ledger id and the 4 bytes entry id, the prefix is the ledger id.
+        var table = new BlockBasedTableConfig();
+        blockCache = new LRUCache(config.getEntryIndexBlockCacheSize());
+        table.setBlockCache(blockCache);
+        if (config.getEntryIndexBloomBitsPerKey() > 0) {
+            bloomFilter = new BloomFilter(config.getEntryIndexBloomBitsPerKey());
+            table.setFilterPolicy(bloomFilter);
+            table.setWholeKeyFiltering(true);
+        }
+        options = new Options()
+                .setCreateIfMissing(true)
+                .useFixedLengthPrefixExtractor(8)
+                .setTableFormatConfig(table);
+        if (config.getEntryIndexBloomBitsPerKey() > 0) {
+            options.setMemtablePrefixBloomSizeRatio(0.1);
+        }
+        this.index = RocksDB.open(options, this.path);
     }
 
-    @Override
-    public CompletableFuture<Void> asyncAdd(Position position, LongIntPair pair) {
-        var f = new CompletableFuture<Void>();
+    private <T> CompletableFuture<T> submit(IoExecutors.Task<T> task) {
+        return io.submit(IoExecutors.Kind.INDEX, () -> {
+            lifecycleLock.readLock().lock();
+            try {
+                if (released) {
+                    throw new IllegalStateException("Entry index is closed");
+                }
+                return task.call();
+            } finally {
+                lifecycleLock.readLock().unlock();
+            }
+        });
+    }
 
-        var key = LongIntBytes.get(position.ledgerId(), position.entryId());
-        var value = LongIntBytes.get(pair.f1, pair.f2);
-        try {
-            index.put(asyncOp, key.memory, value.memory);
-            f.complete(null);
-        } catch (Exception ex) {
-            f.completeExceptionally(ex);
-        } finally {
-            key.recycle();
-            value.recycle();
+    private static ConcurrentSkipListMap<Position, LongLongPair> newBuffer() {
+        return new ConcurrentSkipListMap<>(Position::compareTo);
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncAdd(Position position, LongLongPair pair) {
+        if (writeBehind) {
+            buffer(position, pair);
+            return CompletableFuture.completedFuture(null);
         }
-        return f;
+        return submit(() -> {
+            var key = LongIntBytes.getDirect(position.ledgerId(), position.entryId());
+            var value = LongLongBytes.getDirect(pair.f1, pair.f2);
+            try {
+                index.put(asyncOp, key.buffer, value.buffer);
+                cache(position, pair);
+                return null;
+            } finally {
+                key.recycle();
+                value.recycle();
+            }
+        });
     }
 
 
     @Override
-    public CompletableFuture<Void> asyncAddBatch(List<Pair<Position, LongIntPair>> positions) {
-        var f = new CompletableFuture<Void>();
-        try (var batch = new WriteBatch()) {
-            buildAddBatch(batch, positions);
-            index.write(asyncOp, batch);
-            f.complete(null);
-        } catch (Exception ex) {
-            f.completeExceptionally(ex);
+    public CompletableFuture<Void> asyncAddBatch(List<Pair<Position, LongLongPair>> positions) {
+        if (writeBehind) {
+            for (var pair : positions) {
+                buffer(pair.f1, pair.f2);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        return submit(() -> {
+            try (var batch = new WriteBatch()) {
+                buildAddBatch(batch, positions);
+                index.write(asyncOp, batch);
+                for (var pair : positions) {
+                    cache(pair.f1, pair.f2);
+                }
+                return null;
+            }
+        });
+    }
+
+    private void cache(Position position, LongLongPair pair) {
+        if (cache != null) {
+            cache.put(position.ledgerId(), position.entryId(), pair.f1, pair.f2);
+        }
+    }
+
+    private void buffer(Position position, LongLongPair pair) {
+        cache(position, pair);
+        var stamp = bufferLock.readLock();
+        try {
+            pending.put(position, pair);
+        } finally {
+            bufferLock.unlockRead(stamp);
+        }
+        if (pendingCount.incrementAndGet() >= writeBehindMaxEntries && commitScheduled.compareAndSet(false, true)) {
+            submit(() -> {
+                commit();
+                return null;
+            }).exceptionally(ex -> {
+                log.error("Failed to commit the index updates, index {}", path, ex);
+                return null;
+            });
         }
-        return f;
     }
 
-    private void buildAddBatch(WriteBatch batch, List<Pair<Position, LongIntPair>> positions) throws RocksDBException {
-        for (var pair : positions) {
-            var key = pair.f1;
-            var value = pair.f2;
-            var _key = LongIntBytes.get(key.ledgerId(), key.entryId());
-            var _value = LongIntBytes.get(value.f1, value.f2);
+    private void commit() throws RocksDBException {
+        commit(null);
+    }
+
+    /**
+     * Write the buffered additions by one write batch, without sync.
+     *
+     * @param checkpoint the checkpoint to write in the same batch, or null
+     */
+    private void commit(LongLongPair checkpoint) throws RocksDBException {
+        synchronized (commitLock) {
+            commitScheduled.set(false);
+            ConcurrentSkipListMap<Position, LongLongPair> buffer;
+            var stamp = bufferLock.writeLock();
             try {
-                batch.put(_key.memory, _value.memory);
+                buffer = pending;
+                if (buffer.isEmpty()) {
+                    if (checkpoint != null) {
+                        writeCheckpoint(checkpoint);
+                    }
+                    return;
+                }
+                committing = buffer;
+                pending = newBuffer();
+                pendingCount.set(0);
             } finally {
-                _key.recycle();
-                _value.recycle();
+                bufferLock.unlockWrite(stamp);
             }
+            var key = LongIntBytes.get();
+            var value = LongLongBytes.get();
+            try (var batch = new WriteBatch()) {
+                for (var entry : buffer.entrySet()) {
+                    batch.put(key.direct(entry.getKey().ledgerId(), entry.getKey().entryId()).buffer,
+                            value.direct(entry.getValue().f1, entry.getValue().f2).buffer);
+                }
+                if (checkpoint != null) {
+                    batch.put(CHECKPOINT_KEY, checkpointValue(checkpoint));
+                }
+                index.write(asyncOp, batch);
+            } catch (RocksDBException ex) {
+                // Keep the additions for the next commit, the newer ones win. The buffer stays readable as the
+                // committing one, as lookups may have missed the restored buffer.
+                stamp = bufferLock.writeLock();
+                try {
+                    buffer.putAll(pending);
+                    pending = buffer;
+                    pendingCount.set(buffer.size());
+                } finally {
+                    bufferLock.unlockWrite(stamp);
+                }
+                throw ex;
+            } finally {
+                key.recycle();
+                value.recycle();
+            }
+            committing = newBuffer();
         }
     }
 
+    private static byte[] checkpointValue(LongLongPair checkpoint) {
+        var value = new byte[LongLongBytes.SIZE];
+        NumberUtils.putLong(value, 0, checkpoint.f1);
+        NumberUtils.putLong(value, 8, checkpoint.f2);
+        return value;
+    }
+
+    private void writeCheckpoint(LongLongPair checkpoint) throws RocksDBException {
+        index.put(asyncOp, CHECKPOINT_KEY, checkpointValue(checkpoint));
+    }
+
     @Override
-    public CompletableFuture<LongIntPair> asyncGet(Position position) {
-        var f = new CompletableFuture<LongIntPair>();
+    public CompletableFuture<Void> asyncCheckpoint(LongLongPair position) {
+        return submit(() -> {
+            if (writeBehind) {
+                // In the batch of the buffered additions it covers
+                commit(position);
+            } else {
+                writeCheckpoint(position);
+            }
+            return null;
+        });
+    }
 
-        var key = LongIntBytes.get(position.ledgerId(), position.entryId());
-        var value = LongIntBytes.get();
+    @Override
+    public CompletableFuture<LongLongPair> asyncGetCheckpoint() {
+        return submit(() -> {
+            var value = index.get(readOp, CHECKPOINT_KEY);
+            return value == null ? null : LongLongPair.create(NumberUtils.readLong(value, 0), NumberUtils.readLong(value, 8));
+        });
+    }
+
+    private void buildAddBatch(WriteBatch batch, List<Pair<Position, LongLongPair>> positions) throws RocksDBException {
+        // One key and one value for the whole batch, the batch copies them on put.
+        var key = LongIntBytes.get();
+        var value = LongLongBytes.get();
         try {
-            var ret = index.get(key.memory, value.memory);
-            f.complete(ret < 0 ? null : LongIntPair.create(value.f1(), value.f2()));
-        } catch (RocksDBException ex) {
-            f.completeExceptionally(ex);
+            for (var pair : positions) {
+                batch.put(key.direct(pair.f1.ledgerId(), pair.f1.entryId()).buffer,
+                        value.direct(pair.f2.f1, pair.f2.f2).buffer);
+            }
         } finally {
             key.recycle();
             value.recycle();
         }
-        return f;
     }
 
     @Override
-    public CompletableFuture<Void> asyncDelete(long ledgerId) {
-        var f = new CompletableFuture<Void>();
-        // Build Keys
-        var startKey = LongIntBytes.get(ledgerId, 0);
-        var endKey = LongIntBytes.get(ledgerId, Integer.MAX_VALUE);
+    public CompletableFuture<LongLongPair> asyncGet(Position position) {
+        if (writeBehind) {
+            // The buffer being committed is published before the buffer is swapped.
+            var buffered = pending.get(position);
+            if (buffered == null) {
+                buffered = committing.get(position);
+            }
+            if (buffered != null) {
+                return CompletableFuture.completedFuture(buffered);
+            }
+        }
+        var cached = cache == null ? null : cache.get(position.ledgerId(), position.entryId());
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return submit(() -> {
+            var key = LongIntBytes.getDirect(position.ledgerId(), position.entryId());
+            var value = LongLongBytes.get();
+            var epoch = cache == null ? 0 : cache.epoch(position.ledgerId());
+            try {
+                var ret = index.get(readOp, key.buffer, value.clearDirect());
+                if (ret < 0) {
+                    return null;
+                }
+                var found = LongLongPair.create(value.directF1(), value.directF2(ret));
+                if (cache != null) {
+                    cache.put(position.ledgerId(), position.entryId(), found.f1, found.f2, epoch);
+                }
+                return found;
+            } finally {
+                key.recycle();
+                value.recycle();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<EntryLocations> asyncGetBatch(List<Position> positions) {
+        var builder = EntryLocations.builder(positions.size());
+        List<Position> lookups = new ArrayList<>(positions.size());
+        for (var position : positions) {
+            var found = writeBehind ? pending.get(position) : null;
+            if (found == null && writeBehind) {
+                found = committing.get(position);
+            }
+            if (found == null && cache != null) {
+                found = cache.get(position.ledgerId(), position.entryId());
+            }
+            if (found == null) {
+                lookups.add(position);
+            } else {
+                builder.add(position, found.f1, found.f2);
+            }
+        }
+        if (lookups.isEmpty()) {
+            return CompletableFuture.completedFuture(builder.build());
+        }
+        return submit(() -> {
+            // One call per chunk of keys held by the direct buffers of the thread, RocksDB sorts the keys and
+            // batches the lookups of each SST file.
+            var epochs = new int[LongIntBytes.BATCH];
+            List<ByteBuffer> keys = new ArrayList<>(LongIntBytes.BATCH);
+            List<ByteBuffer> values = new ArrayList<>(LongIntBytes.BATCH);
+            for (int from = 0; from < lookups.size(); from += LongIntBytes.BATCH) {
+                var to = Math.min(from + LongIntBytes.BATCH, lookups.size());
+                keys.clear();
+                values.clear();
+                for (int i = from; i < to; i++) {
+                    var position = lookups.get(i);
+                    epochs[i - from] = cache == null ? 0 : cache.epoch(position.ledgerId());
+                    keys.add(LongIntBytes.directSlice(i - from).putLong(0, position.ledgerId())
+                            .putInt(8, position.entryId()));
+                    values.add(LongLongBytes.directSlice(i - from));
+                }
+                var results = index.multiGetByteBuffers(readOp, keys, values);
+                for (int i = from; i < to; i++) {
+                    var result = results.get(i - from);
+                    var code = result.status.getCode();
+                    if (code == Status.Code.NotFound) {
+                        continue;
+                    }
+                    if (code != Status.Code.Ok) {
+                        throw new RocksDBException(result.status);
+                    }
+                    var position = lookups.get(i);
+                    var value = values.get(i - from);
+                    var fileId = value.getLong(0);
+                    // Values written before offsets were widened have a 4 bytes offset.
+                    var offset = result.requiredSize == LongLongBytes.LEGACY_SIZE ? value.getInt(8) : value.getLong(8);
+                    builder.add(position, fileId, offset);
+                    if (cache != null) {
+                        cache.put(position.ledgerId(), position.entryId(), fileId, offset, epochs[i - from]);
+                    }
+                }
+            }
+            return builder.build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<EntryRange> asyncGetRange(long ledgerId, int fromEntry, int toEntry) {
+        return submit(() -> {
+            var builder = EntryRange.builder(ledgerId, (int) Math.min(Math.max(toEntry - (long) fromEntry + 1, 0), 1024));
+            if (fromEntry > toEntry) {
+                return builder.build();
+            }
+            // Taken before the iterator, so that additions committed in between are seen by the iterator.
+            var buffered = writeBehind ? buffered(ledgerId, fromEntry, toEntry) : null;
+            // One seek, then the keys of the ledger in order.
+            var key = LongIntBytes.getDirect(ledgerId, fromEntry);
+            var value = LongLongBytes.get();
+            try (var it = index.newIterator(rangeOp)) {
+                it.seek(key.buffer);
+                for (; it.isValid(); it.next()) {
+                    var length = it.key(key.clearDirect());
+                    var entryId = key.directF2();
+                    if (length != LongIntBytes.SIZE || key.directF1() != ledgerId || entryId > toEntry) {
+                        break;
+                    }
+                    length = it.value(value.clearDirect());
+                    builder.add(entryId, value.directF1(), value.directF2(length));
+                }
+                it.status();
+            } finally {
+                key.recycle();
+                value.recycle();
+            }
+            var range = builder.build();
+            return buffered == null || buffered.isEmpty() ? range : merge(range, buffered);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Integer> asyncGetLastEntryId(long ledgerId) {
+        return submit(() -> {
+            // Taken before the iterator, so that additions committed in between are seen by the iterator.
+            var buffered = writeBehind ? bufferedLastEntryId(ledgerId) : -1;
+            // One reverse seek from the last key the ledger may have.
+            var key = LongIntBytes.getDirect(ledgerId, Integer.MAX_VALUE);
+            try (var it = index.newIterator(rangeOp)) {
+                it.seekForPrev(key.buffer);
+                var last = -1;
+                if (it.isValid()) {
+                    var length = it.key(key.clearDirect());
+                    if (length == LongIntBytes.SIZE && key.directF1() == ledgerId) {
+                        last = key.directF2();
+                    }
+                }
+                it.status();
+                return Math.max(last, buffered);
+            } finally {
+                key.recycle();
+            }
+        });
+    }
+
+    private int bufferedLastEntryId(long ledgerId) {
+        var to = DefaultPosition.create(ledgerId, Integer.MAX_VALUE);
+        var last = -1;
+        var stamp = bufferLock.readLock();
         try {
-            index.deleteRange(asyncOp, startKey.memory, endKey.memory);
-            f.complete(null);
-        } catch (Exception ex) {
-            f.completeExceptionally(ex);
+            for (var buffer : List.of(committing, pending)) {
+                var key = buffer.floorKey(to);
+                if (key != null && key.ledgerId() == ledgerId) {
+                    last = Math.max(last, key.entryId());
+                }
+            }
+        } finally {
+            bufferLock.unlockRead(stamp);
+        }
+        return last;
+    }
+
+    /**
+     * @return the buffered additions of the range, the pending ones win
+     */
+    private TreeMap<Position, LongLongPair> buffered(long ledgerId, int fromEntry, int toEntry) {
+        var from = DefaultPosition.create(ledgerId, fromEntry);
+        var to = DefaultPosition.create(ledgerId, toEntry);
+        var buffered = new TreeMap<Position, LongLongPair>(Position::compareTo);
+        var stamp = bufferLock.readLock();
+        try {
+            buffered.putAll(committing.subMap(from, true, to, true));
+            buffered.putAll(pending.subMap(from, true, to, true));
         } finally {
-            startKey.recycle();
-            endKey.recycle();
+            bufferLock.unlockRead(stamp);
         }
+        return buffered;
+    }
 
-        return f;
+    /**
+     * Merge the buffered additions into the range read from RocksDB, the buffered ones are newer.
+     */
+    private static EntryRange merge(EntryRange range, TreeMap<Position, LongLongPair> buffered) {
+        var builder = EntryRange.builder(range.ledgerId, range.size + buffered.size());
+        var i = 0;
+        for (var entry : buffered.entrySet()) {
+            var entryId = entry.getKey().entryId();
+            for (; i < range.size && range.entryIds[i] < entryId; i++) {
+                builder.add(range.entryIds[i], range.fileIds[i], range.offsets[i]);
+            }
+            if (i < range.size && range.entryIds[i] == entryId) {
+                i++;
+            }
+            builder.add(entryId, entry.getValue().f1, entry.getValue().f2);
+        }
+        for (; i < range.size; i++) {
+            builder.add(range.entryIds[i], range.fileIds[i], range.offsets[i]);
+        }
+        return builder.build();
     }
 
     @Override
-    public CompletableFuture<Void> asyncFlush() {
-        var f = new CompletableFuture<Void>();
+    public CompletableFuture<Void> asyncDelete(long ledgerId) {
+        return submit(() -> {
+            // Build Keys
+            var startKey = LongIntBytes.get(ledgerId, 0);
+            var endKey = LongIntBytes.get(ledgerId, Integer.MAX_VALUE);
+            try {
+                synchronized (commitLock) {
+                    // Commit first, so that buffered additions of the ledger are never written after the deletion.
+                    if (writeBehind) {
+                        commit();
+                    }
+                    index.deleteRange(deleteOp, startKey.memory, endKey.memory);
+                    compactor.deleted(ledgerId);
+                    if (cache != null) {
+                        cache.invalidate(ledgerId);
+                    }
+                }
+                return null;
+            } finally {
+                startKey.recycle();
+                endKey.recycle();
+            }
+        });
+    }
+
+    /**
+     * Compact the ranges of the deleted ledgers within the budget, on the compaction thread.
+     */
+    private void compactDeleted(long budget) {
+        lifecycleLock.readLock().lock();
         try {
-            index.write(syncOp, emptyBatch);
-            f.complete(null);
-        } catch (Exception ex) {
-            f.completeExceptionally(ex);
+            if (released || compactor.pendingTombstoneCount() == 0) {
+                return;
+            }
+            var compacted = compactor.compact(index, budget);
+            log.info("Compacted the ranges of {} deleted ledgers, {} left, index {}", compacted,
+                    compactor.pendingTombstoneCount(), path);
+        } catch (Throwable ex) {
+            log.error("Failed to compact the ranges of deleted ledgers, index {}", path, ex);
+        } finally {
+            lifecycleLock.readLock().unlock();
         }
+    }
 
-        return f;
+    /**
+     * Compact the ranges of all deleted ledgers now, without budget.
+     */
+    public CompletableFuture<Void> asyncCompactDeleted() {
+        return submit(() -> {
+            // Up to the max ledgers of a run each time
+            var compacted = 1;
+            while (compacted > 0 && compactor.pendingTombstoneCount() > 0) {
+                compacted = compactor.compact(index, Long.MAX_VALUE);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncFlush() {
+        return submit(() -> {
+            if (writeBehind) {
+                commit();
+            }
+            if (walEnabled) {
+                index.write(syncOp, emptyBatch);
+            } else {
+                // Nothing to sync without the WAL, the memtables are written instead.
+                index.flush(flushOp);
+            }
+            return null;
+        });
     }
 
     @Override
@@ -146,22 +658,55 @@ public class DefaultEntryIndex implements EntryIndex {
         if (!this.closed.compareAndSet(false, true)) {
             return CompletableFuture.completedFuture(null);
         }
+        if (compactionScheduler != null) {
+            compactionScheduler.shutdownNow();
+        }
         return asyncFlush()
-                .thenCompose(__ -> {
-                    CompletableFuture<Void> f = new CompletableFuture<>();
+                .thenCompose(__ -> io.submit(IoExecutors.Kind.INDEX, () -> {
+                    lifecycleLock.writeLock().lock();
                     try {
+                        released = true;
                         this.index.close();
                         this.syncOp.close();
                         this.asyncOp.close();
+                        this.flushOp.close();
                         this.emptyBatch.close();
-                        f.complete(null);
-                    } catch (Exception ex) {
-                        f.completeExceptionally(ex);
+                        this.readOp.close();
+                        this.rangeOp.close();
+                        this.options.close();
+                        this.blockCache.close();
+                        if (this.bloomFilter != null) {
+                            this.bloomFilter.close();
+                        }
+                        if (this.cache != null) {
+                            this.cache.release();
+                        }
+                        return (Void) null;
+                    } finally {
+                        lifecycleLock.writeLock().unlock();
+                    }
+                }))
+                .whenComplete((__, ex) -> {
+                    if (ownIo) {
+                        io.close();
                     }
-                    return f;
                 });
     }
 
+    /**
+     * @return the tombstone compactor, for its metrics
+     */
+    public TombstoneCompactor getTombstoneCompactor() {
+        return compactor;
+    }
+
+    /**
+     * @return the lookup cache, for its metrics, or null if disabled
+     */
+    public EntryLookupCache getLookupCache() {
+        return cache;
+    }
+
     @Override
     public boolean closed() {
         return this.closed.get();
@@ -174,25 +719,16 @@ public class DefaultEntryIndex implements EntryIndex {
 
     @Override
     public CompletableFuture<Long> asyncGetCount() {
-        var f = new CompletableFuture<Long>();
-
-        try {
-            f.complete(this.index.getLongProperty("rocksdb.estimate-num-keys"));
-        } catch (RocksDBException e) {
-            f.completeExceptionally(e);
-        }
-        return f;
+        return submit(() -> this.index.getLongProperty("rocksdb.estimate-num-keys"));
     }
 
     @Override
     public CompletableFuture<Void> asyncCompact() {
-        var f = new CompletableFuture<Void>();
-        try {
+        return submit(() -> {
+            var deleted = compactor.snapshot();
             this.index.compactRange();
-            f.complete(null);
-        } catch (Exception ex) {
-            f.completeExceptionally(ex);
-        }
-        return f;
+            compactor.compacted(deleted);
+            return null;
+        });
     }
 }
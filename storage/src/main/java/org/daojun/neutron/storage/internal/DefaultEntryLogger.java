@@ -0,0 +1,656 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.daojun.neutron.storage.EntryLogger;
+import org.daojun.neutron.storage.LedgerHandle;
+import org.daojun.neutron.storage.LedgerManager;
+import org.daojun.neutron.storage.LongLongPair;
+import org.daojun.neutron.storage.ManagedStorageConfig;
+import org.daojun.neutron.storage.Pair;
+import org.daojun.neutron.storage.Position;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Stores the entries of many ledgers in one directory. The entries are appended to a journal in the order they are
+ * added, whatever their ledger, and kept in a write cache sorted by ledger id and entry id. A flush writes the cache
+ * to the entry files in that order, so that the entries of a ledger are mostly contiguous on disk, indexes them, then
+ * checkpoints the journal position of the last flushed entry, the journal files before it are deleted.
+ * <p>
+ * The journal always runs with group commit, so an add completes only once its entry is fsynced.
+ * <p>
+ * A ledger whose add failed is fenced from the failed entry id on: the later entries are neither added, read nor
+ * flushed, so that a ledger never has entries past a gap. On recovery, the replayed entries of a ledger that do not
+ * follow its last indexed entry are fenced the same way.
+ * <p>
+ * On initialization, the journal is replayed from the checkpoint into the write cache and flushed. The entries carry
+ * their key, see {@link EntryIndexRecovery#writeKey}.
+ */
+@Slf4j
+public class DefaultEntryLogger implements EntryLogger {
+    static final String CHECKPOINT_FILE_NAME = "JOURNAL_CHECKPOINT";
+    private static final int CHECKPOINT_MAGIC = 0x4A524E4C;
+    // Entries read from the journal at once by the replay
+    private static final int REPLAY_BATCH_ENTRIES = 1024;
+
+    private final String path;
+    private final IoExecutors io;
+    // Runs the flushes, which may wait for room in the queue of the entry files writer, and the periodic flushes
+    private final ScheduledExecutorService flushExecutor;
+    // Every added entry, in the order they are added
+    private final DefaultDirectory journal;
+    // The flushed entries, sorted within each flush
+    private final DefaultDirectory entries;
+    private final DefaultEntryIndex index;
+    private final DefaultLedgerManager ledgers;
+    // The journal position of the last flushed entry
+    private final MetadataFile checkpoint;
+    private final long writeCacheMaxBytes;
+    private final long flushIntervalMs;
+    private final ConcurrentHashMap<Long, DefaultLedgerHandle> handles = new ConcurrentHashMap<>();
+    // The first fenced entry id of each fenced ledger
+    private final ConcurrentHashMap<Long, Integer> fences = new ConcurrentHashMap<>();
+    // Additions and cache reads hold the read lock, the flush swaps and drops the caches under the write lock.
+    private final StampedLock cacheLock = new StampedLock();
+    private volatile WriteCache active = new WriteCache();
+    // The cache being flushed, kept after a failed flush to be retried, null if none
+    private volatile WriteCache flushing;
+    // Guards pendingFlush and lastFlush
+    private final Object flushLock = new Object();
+    // The flush queued behind the running one, which every flush request joins
+    private Flush pendingFlush;
+    private CompletableFuture<Void> lastFlush = CompletableFuture.completedFuture(null);
+    // Guarded by this
+    private CompletableFuture<Void> initializeFuture;
+    private volatile ScheduledFuture<?> flushTask;
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedEntries = new LongAdder();
+    private final LongAdder flushedBytes = new LongAdder();
+
+    private static class Flush {
+        // Completed once the active cache is swapped out
+        final CompletableFuture<Void> swapped = new CompletableFuture<>();
+        CompletableFuture<Void> done;
+    }
+
+    public DefaultEntryLogger(ManagedStorageConfig config, String path, ScheduledExecutorService scheduler) {
+        var conf = Objects.requireNonNullElseGet(config, ManagedStorageConfig::new);
+        this.path = path;
+        this.io = IoExecutors.create(conf);
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(
+                new DefaultThreadFactory("neutron-logger-flush", true));
+        // An add is acknowledged once it is in the journal, so the journal must be fsynced before the ack.
+        var journalConf = conf.copy();
+        journalConf.setGroupCommitEnabled(true);
+        this.journal = new DefaultDirectory(journalConf, path + "/journal", new AtomicLong(0), scheduler, io);
+        this.entries = new DefaultDirectory(conf, path + "/entries", new AtomicLong(0), scheduler, io);
+        this.index = new DefaultEntryIndex(conf, path, io);
+        this.ledgers = new DefaultLedgerManager(path, io);
+        this.checkpoint = new MetadataFile(path, CHECKPOINT_FILE_NAME, CHECKPOINT_MAGIC);
+        this.writeCacheMaxBytes = conf.getEntryLoggerWriteCacheMaxBytes();
+        this.flushIntervalMs = conf.getEntryLoggerFlushIntervalMs();
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> asyncInitialize() {
+        if (initializeFuture != null) {
+            return initializeFuture;
+        }
+        initializeFuture = new CompletableFuture<>();
+        var executor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("neutron-recovery"));
+        CompletableFuture.runAsync(() -> {
+            try {
+                recover();
+            } catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+        }, executor).whenComplete((__, ex) -> {
+            executor.shutdown();
+            if (ex != null) {
+                log.error("Failed to initialize entry logger {}", path, ex);
+                initializeFuture.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
+            } else {
+                initializeFuture.complete(null);
+            }
+        });
+        return initializeFuture;
+    }
+
+    private synchronized boolean isInitialized() {
+        return initializeFuture != null && initializeFuture.isDone() && !initializeFuture.isCompletedExceptionally();
+    }
+
+    /**
+     * Replay the journal after the checkpoint into the write cache, and flush it.
+     */
+    private void recover() throws Exception {
+        ledgers.initialize();
+        journal.asyncInitialize().get();
+        entries.asyncInitialize().get();
+        var from = readCheckpoint();
+        var replayed = new long[1];
+        var end = EntryIndexRecovery.scan(journal, from, REPLAY_BATCH_ENTRIES, (fileId, offset, entry) -> {
+            var key = EntryIndexRecovery.readKey(entry);
+            // The entry at the checkpoint is flushed already.
+            if (key == null || !ledgers.exists(key.ledgerId())
+                    || (from != null && fileId == from.f1 && offset == from.f2)) {
+                return;
+            }
+            var buffer = ByteBufAllocator.DEFAULT.directBuffer(entry.readableBytes())
+                    .writeBytes(entry, entry.readerIndex(), entry.readableBytes());
+            var cached = active.put(key, buffer);
+            if (cached == null) {
+                buffer.release();
+                return;
+            }
+            cached.journal.complete(LongLongPair.create(fileId, offset));
+            replayed[0]++;
+            if (active.bytes() >= writeCacheMaxBytes) {
+                fenceGaps();
+                asyncFlush().get();
+            }
+        });
+        fenceGaps();
+        asyncFlush().get();
+        log.info("Entry logger {} initialized, {} ledgers, replayed {} entries of the journal from {} to {}", path,
+                ledgers.ledgers().size(), replayed[0], from, end);
+        if (flushIntervalMs > 0) {
+            flushTask = flushExecutor.scheduleWithFixedDelay(this::asyncFlush, flushIntervalMs, flushIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Fence the ledgers whose replayed entries do not follow their last indexed entry, the journal append of the
+     * missing entry failed.
+     */
+    private void fenceGaps() throws Exception {
+        var cached = active.entries();
+        var position = cached.isEmpty() ? null : cached.firstKey();
+        while (position != null) {
+            var ledgerId = position.ledgerId();
+            var end = DefaultPosition.create(ledgerId, Integer.MAX_VALUE);
+            var expected = index.asyncGetLastEntryId(ledgerId).get() + 1;
+            for (var key : cached.subMap(DefaultPosition.create(ledgerId, 0), true, end, true).keySet()) {
+                if (key.entryId() > expected) {
+                    log.warn("Entry {} of ledger {} is missing from the journal, fence the ledger", expected, ledgerId);
+                    fence(ledgerId, expected);
+                    break;
+                }
+                expected = Math.max(expected, key.entryId() + 1);
+            }
+            position = cached.higherKey(end);
+        }
+    }
+
+    /**
+     * Fence the ledger from the entry on, the fence only moves down.
+     */
+    void fence(long ledgerId, int entryId) {
+        fences.merge(ledgerId, entryId, Math::min);
+    }
+
+    private boolean isFenced(Position position) {
+        var fence = fences.get(position.ledgerId());
+        return fence != null && position.entryId() >= fence;
+    }
+
+    private LongLongPair readCheckpoint() throws Exception {
+        var b = checkpoint.read();
+        return b == null ? null : LongLongPair.create(b.getLong(), b.getLong());
+    }
+
+    @Override
+    public CompletableFuture<LedgerHandle> asyncOpenLedger() {
+        return asyncInitialize()
+                .thenCompose(__ -> ledgers.asyncCreateLedger())
+                .thenApply(ledgerId -> handles.computeIfAbsent(ledgerId, id -> new DefaultLedgerHandle(this, id, -1)));
+    }
+
+    @Override
+    public CompletableFuture<LedgerHandle> asyncOpenLedger(long ledgerId) {
+        return asyncInitialize()
+                .thenCompose(__ -> {
+                    if (!ledgers.exists(ledgerId)) {
+                        return CompletableFuture.failedFuture(new IllegalStateException("Ledger not found: " + ledgerId));
+                    }
+                    LedgerHandle handle = handles.get(ledgerId);
+                    if (handle != null) {
+                        return CompletableFuture.completedFuture(handle);
+                    }
+                    return asyncGetLastEntryId(ledgerId).thenApply(lastEntryId ->
+                            handles.computeIfAbsent(ledgerId, id -> new DefaultLedgerHandle(this, id, lastEntryId)));
+                });
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncCloseLedger(long ledgerId) {
+        var handle = handles.remove(ledgerId);
+        if (handle != null) {
+            handle.close();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncDeleteLedger(long ledgerId) {
+        return asyncInitialize()
+                .thenCompose(__ -> {
+                    var handle = handles.remove(ledgerId);
+                    if (handle != null) {
+                        handle.close();
+                    }
+                    // The cached entries of the ledger are skipped by the flush.
+                    return ledgers.asyncDeleteLedger(ledgerId);
+                })
+                .thenCompose(__ -> index.asyncDelete(ledgerId))
+                .thenRun(() -> fences.remove(ledgerId));
+    }
+
+    /**
+     * The last entry id of a ledger, from the write cache, or by a reverse seek of the index. The fenced entries are
+     * not counted.
+     *
+     * @return the last entry id, or -1 if the ledger is empty
+     */
+    public CompletableFuture<Integer> asyncGetLastEntryId(long ledgerId) {
+        int cached;
+        var stamp = cacheLock.readLock();
+        try {
+            cached = active.lastEntryId(ledgerId);
+            var flushing = this.flushing;
+            if (flushing != null) {
+                cached = Math.max(cached, flushing.lastEntryId(ledgerId));
+            }
+        } finally {
+            cacheLock.unlockRead(stamp);
+        }
+        var fence = fences.get(ledgerId);
+        var last = fence == null ? Integer.MAX_VALUE : fence - 1;
+        if (cached >= 0) {
+            return CompletableFuture.completedFuture(Math.min(cached, last));
+        }
+        return index.asyncGetLastEntryId(ledgerId).thenApply(indexed -> Math.min(indexed, last));
+    }
+
+    @Override
+    public CompletableFuture<ByteBuf> asyncReadEntry(Position position) {
+        return asyncInitialize()
+                .thenCompose(__ -> {
+                    if (!ledgers.exists(position.ledgerId())) {
+                        return CompletableFuture.failedFuture(
+                                new IllegalStateException("Ledger not found: " + position.ledgerId()));
+                    }
+                    var cached = readCache(position);
+                    if (cached != null) {
+                        return CompletableFuture.completedFuture(cached);
+                    }
+                    // Not cached, so it is indexed already if it was added.
+                    return index.asyncGet(position).thenCompose(pair -> {
+                        if (pair == null) {
+                            return CompletableFuture.failedFuture(
+                                    new IllegalStateException("Entry not found: " + position));
+                        }
+                        return entries.asyncReadEntry(pair).thenApply(entry -> payload(position, entry));
+                    });
+                });
+    }
+
+    private ByteBuf readCache(Position position) {
+        if (isFenced(position)) {
+            return null;
+        }
+        var stamp = cacheLock.readLock();
+        try {
+            var buffer = active.get(position);
+            var flushing = this.flushing;
+            if (buffer == null && flushing != null) {
+                buffer = flushing.get(position);
+            }
+            return buffer;
+        } finally {
+            cacheLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Strip the key of an entry read from the entry files.
+     */
+    private static ByteBuf payload(Position position, ByteBuf entry) {
+        var key = EntryIndexRecovery.readKey(entry);
+        if (key == null || key.compareTo(position) != 0) {
+            entry.release();
+            throw new IllegalStateException("Entry " + position + " does not match the entry read: " + key);
+        }
+        var payload = entry.retainedSlice(entry.readerIndex() + EntryIndexRecovery.KEY_SIZE,
+                entry.readableBytes() - EntryIndexRecovery.KEY_SIZE);
+        entry.release();
+        return payload;
+    }
+
+    /**
+     * Add an entry, the future is completed once it is in the journal. Adding an entry again before it is flushed
+     * fails, unless its journal append failed.
+     */
+    @Override
+    public CompletableFuture<Void> asyncAddEntry(Position position, ByteBuf buf) {
+        return asyncAddEntry(position, buf, false);
+    }
+
+    /**
+     * Add an entry of a ledger handle, a failure fences the ledger from the entry on before the future fails, so that
+     * the entries the handle added after it are never flushed.
+     */
+    CompletableFuture<Void> asyncAddEntryOrFence(Position position, ByteBuf buf) {
+        return asyncAddEntry(position, buf, true);
+    }
+
+    private CompletableFuture<Void> asyncAddEntry(Position position, ByteBuf buf, boolean fenceOnFailure) {
+        if (!isInitialized()) {
+            buf.retain();
+            return asyncInitialize()
+                    .thenCompose(__ -> asyncAddEntry(position, buf, fenceOnFailure))
+                    .whenComplete((__, ex) -> buf.release());
+        }
+        if (!ledgers.exists(position.ledgerId())) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Ledger not found: " + position.ledgerId()));
+        }
+        if (isFenced(position)) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Ledger is fenced: " + position.ledgerId()));
+        }
+        var buffer = ByteBufAllocator.DEFAULT.directBuffer(EntryIndexRecovery.KEY_SIZE + buf.readableBytes());
+        EntryIndexRecovery.writeKey(buffer, position.ledgerId(), position.entryId())
+                .writeBytes(buf, buf.readerIndex(), buf.readableBytes());
+        if (active.bytes() < writeCacheMaxBytes) {
+            return append(position, buffer, fenceOnFailure);
+        }
+        // Back pressure: wait for a flush to swap the full cache out, fails while the flushes fail.
+        return flush().swapped
+                .whenComplete((__, ex) -> {
+                    if (ex != null) {
+                        buffer.release();
+                        if (fenceOnFailure) {
+                            fence(position.ledgerId(), position.entryId());
+                        }
+                    }
+                })
+                .thenCompose(__ -> append(position, buffer, fenceOnFailure));
+    }
+
+    private CompletableFuture<Void> append(Position position, ByteBuf buffer, boolean fenceOnFailure) {
+        WriteCache.Entry entry;
+        var stamp = cacheLock.readLock();
+        try {
+            entry = active.put(position, buffer);
+            if (entry == null) {
+                buffer.release();
+                if (fenceOnFailure) {
+                    fence(position.ledgerId(), position.entryId());
+                }
+                return CompletableFuture.failedFuture(new IllegalStateException("Entry already added: " + position));
+            }
+            // Published under the read lock, so that the journal order follows the swaps of the cache.
+            journal.asyncAddEntry(buffer).whenComplete((pair, ex) -> {
+                if (ex != null) {
+                    if (fenceOnFailure) {
+                        // Before the flush waiting for this entry can see it failed
+                        fence(position.ledgerId(), position.entryId());
+                    }
+                    entry.journal.completeExceptionally(ex);
+                } else {
+                    entry.journal.complete(pair);
+                }
+            });
+        } finally {
+            cacheLock.unlockRead(stamp);
+        }
+        if (active.bytes() >= writeCacheMaxBytes) {
+            flush();
+        }
+        return entry.journal.thenApply(__ -> null);
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncFlush() {
+        return flush().done;
+    }
+
+    /**
+     * Queue a flush behind the running one, or join the queued one, which has not swapped the cache yet.
+     */
+    private Flush flush() {
+        synchronized (flushLock) {
+            if (pendingFlush != null) {
+                return pendingFlush;
+            }
+            var flush = new Flush();
+            pendingFlush = flush;
+            flush.done = lastFlush.handle((__, ex) -> null).thenComposeAsync(__ -> flushCache(flush), flushExecutor);
+            lastFlush = flush.done;
+            return flush;
+        }
+    }
+
+    /**
+     * Retry the cache left by a failed flush, if any, then swap the active cache out and flush it. While the retry
+     * fails, the active cache is not swapped, and the additions waiting for room fail with the flush.
+     */
+    private CompletableFuture<Void> flushCache(Flush flush) {
+        synchronized (flushLock) {
+            if (pendingFlush == flush) {
+                pendingFlush = null;
+            }
+        }
+        var stale = flushing;
+        var retried = stale == null ? CompletableFuture.<Void>completedFuture(null) : flushSwapped(stale);
+        return retried
+                .thenCompose(__ -> {
+                    var cache = swap();
+                    flush.swapped.complete(null);
+                    return cache == null ? CompletableFuture.<Void>completedFuture(null) : flushSwapped(cache);
+                })
+                .whenComplete((__, ex) -> {
+                    if (ex != null) {
+                        flush.swapped.completeExceptionally(ex);
+                    }
+                });
+    }
+
+    /**
+     * Flush the swapped out cache, and drop it once flushed. A failed cache is kept to be retried by the next flush.
+     */
+    private CompletableFuture<Void> flushSwapped(WriteCache cache) {
+        var journaled = cache.entries().values().stream()
+                .map(entry -> entry.journal.handle((__, ex) -> null))
+                .toArray(CompletableFuture[]::new);
+        // An entry is flushed only once it is in the journal, so that the checkpoint covers it.
+        return CompletableFuture.allOf(journaled)
+                .thenComposeAsync(__ -> writeCache(cache), flushExecutor)
+                .whenComplete((__, ex) -> {
+                    if (ex != null) {
+                        log.error("Failed to flush the write cache of entry logger {}, retried by the next flush",
+                                path, ex);
+                        return;
+                    }
+                    var s = cacheLock.writeLock();
+                    try {
+                        flushing = null;
+                    } finally {
+                        cacheLock.unlockWrite(s);
+                    }
+                    cache.release();
+                });
+    }
+
+    /**
+     * Swap the active cache out, once the cache of the previous flush is dropped.
+     *
+     * @return the swapped out cache, or null if there is nothing to flush
+     */
+    private WriteCache swap() {
+        var stamp = cacheLock.writeLock();
+        try {
+            if (active.isEmpty()) {
+                return null;
+            }
+            flushing = active;
+            active = new WriteCache();
+            return flushing;
+        } finally {
+            cacheLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Write the cache to the entry files in order, index it, then checkpoint the journal.
+     */
+    private CompletableFuture<Void> writeCache(WriteCache cache) {
+        var size = cache.size();
+        var positions = new ArrayList<Position>(size);
+        var futures = new ArrayList<CompletableFuture<LongLongPair>>(size);
+        LongLongPair last = null;
+        long bytes = 0;
+        for (var e : cache.entries().entrySet()) {
+            var entry = e.getValue();
+            if (entry.isFailed()) {
+                continue;
+            }
+            var journaled = entry.journal.join();
+            if (last == null || journaled.f1 > last.f1 || (journaled.f1 == last.f1 && journaled.f2 > last.f2)) {
+                last = journaled;
+            }
+            if (!ledgers.exists(e.getKey().ledgerId()) || isFenced(e.getKey())) {
+                continue;
+            }
+            positions.add(e.getKey());
+            futures.add(entries.asyncAddEntry(entry.buffer));
+            bytes += entry.buffer.readableBytes() - EntryIndexRecovery.KEY_SIZE;
+        }
+        var checkpointed = last;
+        var flushedBytes = bytes;
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenCompose(__ -> entries.asyncFlush())
+                .thenCompose(__ -> {
+                    List<Pair<Position, LongLongPair>> batch = new ArrayList<>(positions.size());
+                    for (int i = 0; i < positions.size(); i++) {
+                        batch.add(Pair.create(positions.get(i), futures.get(i).join()));
+                    }
+                    return index.asyncAddBatch(batch);
+                })
+                .thenCompose(__ -> index.asyncFlush())
+                .thenCompose(__ -> checkpointed == null ? CompletableFuture.completedFuture(null)
+                        : io.submit(IoExecutors.Kind.SYNC, () -> {
+                            checkpoint.write(ByteBuffer.allocate(16).putLong(checkpointed.f1)
+                                    .putLong(checkpointed.f2).flip());
+                            return null;
+                        }))
+                .thenRun(() -> {
+                    flushes.increment();
+                    flushedEntries.add(positions.size());
+                    this.flushedBytes.add(flushedBytes);
+                    if (checkpointed != null) {
+                        deleteJournalFiles(checkpointed.f1);
+                    }
+                });
+    }
+
+    /**
+     * Delete the sealed journal files before the file of the checkpoint.
+     */
+    private void deleteJournalFiles(long fileId) {
+        for (var file : List.copyOf(journal.entryFiles())) {
+            if (file.id() < fileId && file.isReadOnly()) {
+                journal.asyncDeleteFile(file.id()).exceptionally(ex -> {
+                    log.warn("Failed to delete journal file {} of entry logger {}", file.id(), path, ex);
+                    return null;
+                });
+            }
+        }
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> asyncClose() {
+        var flushTask = this.flushTask;
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        handles.values().forEach(DefaultLedgerHandle::close);
+        handles.clear();
+        CompletableFuture<Void> flushed = initializeFuture == null ? CompletableFuture.completedFuture(null)
+                : initializeFuture.thenCompose(__ -> asyncFlush());
+        return flushed
+                .exceptionally(ex -> {
+                    log.error("Failed to flush entry logger {} on close", path, ex);
+                    return null;
+                })
+                .thenCompose(__ -> journal.asyncClose())
+                .thenCompose(__ -> entries.asyncClose())
+                .thenCompose(__ -> index.asyncClose())
+                .whenComplete((__, ex) -> {
+                    var stamp = cacheLock.writeLock();
+                    try {
+                        active.release();
+                        if (flushing != null) {
+                            flushing.release();
+                            flushing = null;
+                        }
+                    } finally {
+                        cacheLock.unlockWrite(stamp);
+                    }
+                    flushExecutor.shutdown();
+                    io.close();
+                    log.info("Entry logger {} closed", path);
+                });
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public DefaultEntryIndex getIndex() {
+        return index;
+    }
+
+    public LedgerManager getLedgerManager() {
+        return ledgers;
+    }
+
+    /**
+     * @return the bytes of the entries in the write cache, being flushed or not
+     */
+    public long writeCacheBytes() {
+        var flushing = this.flushing;
+        return active.bytes() + (flushing == null ? 0 : flushing.bytes());
+    }
+
+    public long flushCount() {
+        return flushes.sum();
+    }
+
+    public long flushedEntryCount() {
+        return flushedEntries.sum();
+    }
+
+    /**
+     * @return the bytes of the payloads flushed to the entry files
+     */
+    public long flushedBytes() {
+        return flushedBytes.sum();
+    }
+}
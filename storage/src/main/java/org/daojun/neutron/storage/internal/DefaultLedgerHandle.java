@@ -0,0 +1,219 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.buffer.ByteBuf;
+import org.daojun.neutron.storage.LedgerHandle;
+import org.daojun.neutron.storage.Position;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ledger of an entry logger. The handle assigns the entry ids sequentially and pipelines the adds, the LAC only
+ * advances over a prefix of completed adds, so it never skips an entry that is still being added. Once an add
+ * fails, the LAC stops and every later add fails. The logger fences the ledger from the failed entry on, so the later
+ * adds already in flight are never flushed either.
+ * <p>
+ * Tail readers park on the entry they wait for, and each advance of the LAC wakes all the readers it covers at once.
+ */
+public class DefaultLedgerHandle implements LedgerHandle {
+    private final DefaultEntryLogger logger;
+    private final long ledgerId;
+    // The last add confirmed
+    private volatile long lac;
+    // Guarded by this
+    private int nextEntryId;
+    // Outstanding adds, by entry id, guarded by this
+    private final ArrayDeque<PendingAdd> pendingAdds = new ArrayDeque<>();
+    // Parked readers, by the entry they wait for, guarded by this
+    private final TreeMap<Integer, List<CompletableFuture<Void>>> waiters = new TreeMap<>();
+    // The first failed add, guarded by this
+    private Throwable failure;
+    private volatile boolean closed = false;
+
+    private static class PendingAdd {
+        final Position position;
+        final CompletableFuture<Position> future = new CompletableFuture<>();
+        // Guarded by the handle
+        boolean done;
+        Throwable failure;
+
+        PendingAdd(Position position) {
+            this.position = position;
+        }
+    }
+
+    DefaultLedgerHandle(DefaultEntryLogger logger, long ledgerId, long lastEntryId) {
+        this.logger = logger;
+        this.ledgerId = ledgerId;
+        this.nextEntryId = (int) lastEntryId + 1;
+        this.lac = lastEntryId;
+    }
+
+    @Override
+    public long getId() {
+        return ledgerId;
+    }
+
+    @Override
+    public CompletableFuture<Position> asyncAddEntry(ByteBuf buffer) {
+        PendingAdd add;
+        synchronized (this) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Ledger is closed: " + ledgerId));
+            }
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            add = new PendingAdd(DefaultPosition.create(ledgerId, nextEntryId++));
+            pendingAdds.add(add);
+        }
+        logger.asyncAddEntryOrFence(add.position, buffer).whenComplete((__, ex) -> addComplete(add, ex));
+        return add.future;
+    }
+
+    /**
+     * Advance the LAC over the completed prefix of the outstanding adds, then complete them in order and wake the
+     * readers, outside the lock.
+     */
+    private void addComplete(PendingAdd add, Throwable ex) {
+        var confirmed = new ArrayList<PendingAdd>();
+        var failed = new ArrayList<PendingAdd>();
+        List<CompletableFuture<Void>> woken;
+        Throwable cause;
+        synchronized (this) {
+            add.done = true;
+            add.failure = ex;
+            PendingAdd head;
+            while ((head = pendingAdds.peek()) != null && head.done) {
+                pendingAdds.poll();
+                if (failure == null && head.failure == null) {
+                    lac = head.position.entryId();
+                    confirmed.add(head);
+                } else {
+                    if (failure == null) {
+                        failure = head.failure;
+                    }
+                    failed.add(head);
+                }
+            }
+            cause = failure;
+            woken = confirmed.isEmpty() ? null : wakeUp();
+        }
+        for (var pending : confirmed) {
+            pending.future.complete(pending.position);
+        }
+        for (var pending : failed) {
+            pending.future.completeExceptionally(pending.failure != null ? pending.failure : cause);
+        }
+        complete(woken);
+    }
+
+    /**
+     * Take the readers covered by the LAC, under the lock.
+     */
+    private List<CompletableFuture<Void>> wakeUp() {
+        var covered = waiters.headMap((int) Math.min(lac, Integer.MAX_VALUE), true);
+        if (covered.isEmpty()) {
+            return null;
+        }
+        var woken = new ArrayList<CompletableFuture<Void>>();
+        covered.values().forEach(woken::addAll);
+        covered.clear();
+        return woken;
+    }
+
+    private static void complete(List<CompletableFuture<Void>> woken) {
+        if (woken != null) {
+            woken.forEach(waiter -> waiter.complete(null));
+        }
+    }
+
+    @Override
+    public CompletableFuture<ByteBuf> asyncReadEntry(Position position) {
+        if (position.ledgerId() != ledgerId) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "Entry " + position + " is not of ledger " + ledgerId));
+        }
+        return logger.asyncReadEntry(position);
+    }
+
+    @Override
+    public CompletableFuture<ByteBuf> asyncReadEntryOrWait(int entryId, long timeoutMillis) {
+        var waiter = new CompletableFuture<Void>();
+        synchronized (this) {
+            if (entryId > lac) {
+                if (closed) {
+                    return CompletableFuture.failedFuture(new IllegalStateException("Ledger is closed: " + ledgerId));
+                }
+                waiters.computeIfAbsent(entryId, __ -> new ArrayList<>(1)).add(waiter);
+            } else {
+                waiter = null;
+            }
+        }
+        var position = DefaultPosition.create(ledgerId, entryId);
+        if (waiter == null) {
+            return asyncReadEntry(position);
+        }
+        var parked = waiter;
+        parked.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((__, ex) -> {
+            if (ex != null) {
+                removeWaiter(entryId, parked);
+            }
+        });
+        return parked.thenCompose(__ -> asyncReadEntry(position));
+    }
+
+    private synchronized void removeWaiter(int entryId, CompletableFuture<Void> waiter) {
+        var list = waiters.get(entryId);
+        if (list != null && list.remove(waiter) && list.isEmpty()) {
+            waiters.remove(entryId);
+        }
+    }
+
+    /**
+     * Advance the LAC, as learned from the writer of the ledger, and wake the readers it covers.
+     */
+    @Override
+    public void setLac(long entryId) {
+        List<CompletableFuture<Void>> woken;
+        synchronized (this) {
+            if (entryId <= lac) {
+                return;
+            }
+            lac = entryId;
+            woken = wakeUp();
+        }
+        complete(woken);
+    }
+
+    @Override
+    public long getLac() {
+        return lac;
+    }
+
+    /**
+     * Reject the later adds and fail the parked readers, the outstanding adds still complete.
+     */
+    void close() {
+        var parked = new ArrayList<CompletableFuture<Void>>();
+        synchronized (this) {
+            closed = true;
+            waiters.values().forEach(parked::addAll);
+            waiters.clear();
+        }
+        var ex = new IllegalStateException("Ledger is closed: " + ledgerId);
+        parked.forEach(waiter -> waiter.completeExceptionally(ex));
+    }
+
+    @Override
+    public String toString() {
+        return "DefaultLedgerHandle{" +
+                "ledgerId=" + ledgerId +
+                ", lac=" + lac +
+                '}';
+    }
+}
@@ -0,0 +1,106 @@
+package org.daojun.neutron.storage.internal;
+
+import lombok.extern.slf4j.Slf4j;
+import org.daojun.neutron.storage.LedgerManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Keeps the next ledger id and the live ledgers in a metadata file, rewritten on every creation and deletion.
+ * <p>
+ * Payload: the next ledger id, the count, then the id of each live ledger.
+ */
+@Slf4j
+public class DefaultLedgerManager implements LedgerManager {
+    static final String FILE_NAME = "LEDGERS";
+    private static final int MAGIC = 0x4C444752;
+
+    private final MetadataFile file;
+    private final IoExecutors io;
+    private final ConcurrentSkipListSet<Long> ledgers = new ConcurrentSkipListSet<>();
+    // Guarded by this
+    private long nextLedgerId = 0;
+
+    DefaultLedgerManager(String directory, IoExecutors io) {
+        this.file = new MetadataFile(directory, FILE_NAME, MAGIC);
+        this.io = io;
+    }
+
+    /**
+     * Load the persisted ledgers.
+     *
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    synchronized void initialize() throws IOException {
+        var b = file.read();
+        if (b == null) {
+            return;
+        }
+        nextLedgerId = b.getLong();
+        var count = b.getInt();
+        for (int i = 0; i < count; i++) {
+            ledgers.add(b.getLong());
+        }
+        log.info("Loaded {} ledgers, next ledger id {}", count, nextLedgerId);
+    }
+
+    @Override
+    public CompletableFuture<Long> asyncCreateLedger() {
+        return io.submit(IoExecutors.Kind.SYNC, () -> {
+            synchronized (this) {
+                var ledgerId = nextLedgerId++;
+                ledgers.add(ledgerId);
+                try {
+                    persist();
+                } catch (IOException ex) {
+                    // The id is skipped, it may be persisted already.
+                    ledgers.remove(ledgerId);
+                    throw ex;
+                }
+                return ledgerId;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncDeleteLedger(long ledgerId) {
+        return io.submit(IoExecutors.Kind.SYNC, () -> {
+            synchronized (this) {
+                if (ledgers.remove(ledgerId)) {
+                    try {
+                        persist();
+                    } catch (IOException ex) {
+                        ledgers.add(ledgerId);
+                        throw ex;
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean exists(long ledgerId) {
+        return ledgers.contains(ledgerId);
+    }
+
+    @Override
+    public NavigableSet<Long> ledgers() {
+        return Collections.unmodifiableNavigableSet(ledgers);
+    }
+
+    private void persist() throws IOException {
+        var ids = ledgers.toArray(new Long[0]);
+        var b = ByteBuffer.allocate(8 + 4 + ids.length * 8);
+        b.putLong(nextLedgerId).putInt(ids.length);
+        for (var id : ids) {
+            b.putLong(id);
+        }
+        file.write(b.flip());
+    }
+}
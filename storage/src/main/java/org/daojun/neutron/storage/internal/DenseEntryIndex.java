@@ -0,0 +1,278 @@
+package org.daojun.neutron.storage.internal;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.daojun.neutron.storage.EntryIndex;
+import org.daojun.neutron.storage.EntryLocations;
+import org.daojun.neutron.storage.EntryRange;
+import org.daojun.neutron.storage.LongLongPair;
+import org.daojun.neutron.storage.ManagedStorageConfig;
+import org.daojun.neutron.storage.Pair;
+import org.daojun.neutron.storage.Position;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The entry index of ledgers with sequential entry ids. Each ledger keeps the positions of its entries in a dense
+ * array indexed by entry id, see {@link DenseLedgerIndex}, so that a lookup is an array read. The entries that do
+ * not fit the array of their ledger, e.g. after a large gap, are kept by the RocksDB index.
+ */
+@Slf4j
+public class DenseEntryIndex implements EntryIndex {
+    static final String DIRECTORY = "dense";
+
+    private final String path;
+    private final File directory;
+    private final int segmentEntries;
+    private final DefaultEntryIndex fallback;
+    private final IoExecutors io;
+    // Whether the I/O executors are created by the index, and closed with it
+    private final boolean ownIo;
+    private final Map<Long, DenseLedgerIndex> ledgers = new ConcurrentHashMap<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public DenseEntryIndex(ManagedStorageConfig config, String directory) {
+        this(config, directory, null);
+    }
+
+    /**
+     * @param io the I/O executors shared with other indexes and directories, or null to create them from the config
+     */
+    public DenseEntryIndex(ManagedStorageConfig config, String directory, IoExecutors io) {
+        var conf = Objects.requireNonNullElseGet(config, ManagedStorageConfig::new);
+        this.path = directory + "/" + DIRECTORY;
+        this.directory = new File(path);
+        this.segmentEntries = Math.max(1, conf.getDenseIndexSegmentEntries());
+        this.ownIo = io == null;
+        this.io = io == null ? IoExecutors.create(conf) : io;
+        try {
+            this.fallback = new DefaultEntryIndex(config, directory, this.io);
+            load();
+        } catch (Exception e) {
+            if (ownIo) {
+                this.io.close();
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void load() throws IOException {
+        FileUtils.forceMkdir(directory);
+        var files = directory.listFiles((__, name) -> StringUtils.isNumeric(name));
+        if (files == null) {
+            return;
+        }
+        for (var file : files) {
+            var ledgerId = Long.parseLong(file.getName());
+            ledgers.put(ledgerId, DenseLedgerIndex.load(ledgerId, file, segmentEntries));
+        }
+        log.info("Loaded the dense index of {} ledgers, {}", ledgers.size(), path);
+    }
+
+    private DenseLedgerIndex ledger(long ledgerId) {
+        return ledgers.computeIfAbsent(ledgerId,
+                id -> new DenseLedgerIndex(id, new File(directory, String.valueOf(id)), segmentEntries));
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncAdd(Position key, LongLongPair value) {
+        if (ledger(key.ledgerId()).put(key.entryId(), value.f1, value.f2)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return fallback.asyncAdd(key, value);
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncAddBatch(List<Pair<Position, LongLongPair>> positions) {
+        List<Pair<Position, LongLongPair>> sparse = null;
+        for (var pair : positions) {
+            if (!ledger(pair.f1.ledgerId()).put(pair.f1.entryId(), pair.f2.f1, pair.f2.f2)) {
+                if (sparse == null) {
+                    sparse = new ArrayList<>();
+                }
+                sparse.add(pair);
+            }
+        }
+        return sparse == null ? CompletableFuture.completedFuture(null) : fallback.asyncAddBatch(sparse);
+    }
+
+    @Override
+    public CompletableFuture<LongLongPair> asyncGet(Position key) {
+        var ledger = ledgers.get(key.ledgerId());
+        var value = ledger == null ? null : ledger.get(key.entryId());
+        if (value != null) {
+            return CompletableFuture.completedFuture(value);
+        }
+        return fallback.asyncGet(key);
+    }
+
+    @Override
+    public CompletableFuture<EntryLocations> asyncGetBatch(List<Position> keys) {
+        var builder = EntryLocations.builder(keys.size());
+        List<Position> sparse = null;
+        for (var key : keys) {
+            var ledger = ledgers.get(key.ledgerId());
+            var value = ledger == null ? null : ledger.get(key.entryId());
+            if (value != null) {
+                builder.add(key, value.f1, value.f2);
+            } else {
+                if (sparse == null) {
+                    sparse = new ArrayList<>();
+                }
+                sparse.add(key);
+            }
+        }
+        if (sparse == null) {
+            return CompletableFuture.completedFuture(builder.build());
+        }
+        return fallback.asyncGetBatch(sparse).thenApply(locations -> builder.addAll(locations).build());
+    }
+
+    @Override
+    public CompletableFuture<EntryRange> asyncGetRange(long ledgerId, int fromEntry, int toEntry) {
+        var ledger = ledgers.get(ledgerId);
+        if (ledger == null) {
+            return fallback.asyncGetRange(ledgerId, fromEntry, toEntry);
+        }
+        var builder = EntryRange.builder(ledgerId, (int) Math.min(Math.max(toEntry - (long) fromEntry + 1, 0), 1024));
+        if (fromEntry > toEntry || ledger.range(fromEntry, toEntry, builder)) {
+            return CompletableFuture.completedFuture(builder.build());
+        }
+        // Some entries are sparse, or not indexed at all.
+        var dense = builder.build();
+        return fallback.asyncGetRange(ledgerId, fromEntry, toEntry).thenApply(sparse -> merge(dense, sparse));
+    }
+
+    @Override
+    public CompletableFuture<Integer> asyncGetLastEntryId(long ledgerId) {
+        var ledger = ledgers.get(ledgerId);
+        var dense = ledger == null ? -1 : ledger.lastEntryId();
+        // The entries that did not fit the dense array are in the fallback index.
+        return fallback.asyncGetLastEntryId(ledgerId).thenApply(sparse -> Math.max(dense, sparse));
+    }
+
+    /**
+     * Merge two ranges of a ledger, the dense one wins.
+     */
+    private static EntryRange merge(EntryRange dense, EntryRange sparse) {
+        if (sparse.size == 0) {
+            return dense;
+        }
+        var builder = EntryRange.builder(dense.ledgerId, dense.size + sparse.size);
+        int i = 0;
+        int j = 0;
+        while (i < dense.size || j < sparse.size) {
+            if (j == sparse.size || (i < dense.size && dense.entryIds[i] <= sparse.entryIds[j])) {
+                if (j < sparse.size && dense.entryIds[i] == sparse.entryIds[j]) {
+                    j++;
+                }
+                builder.add(dense.entryIds[i], dense.fileIds[i], dense.offsets[i]);
+                i++;
+            } else {
+                builder.add(sparse.entryIds[j], sparse.fileIds[j], sparse.offsets[j]);
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncDelete(long ledgerId) {
+        var ledger = ledgers.get(ledgerId);
+        if (ledger == null) {
+            return fallback.asyncDelete(ledgerId);
+        }
+        // The ledger stays in the map until its file is deleted, so that an add in between goes to the fallback
+        // rather than to a new index on the same file.
+        ledger.markDeleted();
+        return io.submit(IoExecutors.Kind.INDEX, () -> {
+                    ledger.delete();
+                    ledgers.remove(ledgerId, ledger);
+                    return null;
+                })
+                .thenCompose(__ -> fallback.asyncDelete(ledgerId));
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncSeal(long ledgerId) {
+        var ledger = ledgers.get(ledgerId);
+        if (ledger == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return io.submit(IoExecutors.Kind.INDEX, () -> {
+            ledger.seal();
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncCheckpoint(LongLongPair position) {
+        // The dense arrays are only persisted by a flush.
+        return asyncFlush().thenCompose(__ -> fallback.asyncCheckpoint(position));
+    }
+
+    @Override
+    public CompletableFuture<LongLongPair> asyncGetCheckpoint() {
+        return fallback.asyncGetCheckpoint();
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncFlush() {
+        return io.submit(IoExecutors.Kind.INDEX, () -> {
+                    for (var ledger : ledgers.values()) {
+                        ledger.flush();
+                    }
+                    return null;
+                })
+                .thenCompose(__ -> fallback.asyncFlush());
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncClose() {
+        if (!this.closed.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return asyncFlush()
+                .whenComplete((__, ex) -> ledgers.values().forEach(DenseLedgerIndex::release))
+                .thenCompose(__ -> fallback.asyncClose())
+                .whenComplete((__, ex) -> {
+                    if (ownIo) {
+                        io.close();
+                    }
+                });
+    }
+
+    @Override
+    public boolean closed() {
+        return this.closed.get();
+    }
+
+    @Override
+    public String getPath() {
+        return this.path;
+    }
+
+    @Override
+    public CompletableFuture<Long> asyncGetCount() {
+        long dense = 0;
+        for (var ledger : ledgers.values()) {
+            dense += ledger.entries();
+        }
+        var count = dense;
+        return fallback.asyncGetCount().thenApply(sparse -> sparse + count);
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncCompact() {
+        return fallback.asyncCompact();
+    }
+}
@@ -0,0 +1,299 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.apache.commons.io.FileUtils;
+import org.daojun.neutron.storage.EntryRange;
+import org.daojun.neutron.storage.LongLongPair;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The index of one ledger: the file id and offset of each entry in a dense array indexed by entry id, starting at
+ * the first entry id added. The array of an active ledger is kept off-heap in segments, and written to the index
+ * file on flush. A sealed ledger is read from the memory mapped index file.
+ * <p>
+ * Layout of the index file: magic number, version, sealed flag, first entry id, count, reserved, then for each
+ * entry the file id plus one, 0 for a missing entry, and the offset, all big endian.
+ */
+class DenseLedgerIndex {
+    static final int HEADER_SIZE = 4 * 6;
+    static final int SLOT_SIZE = 8 + 8;
+    private static final int MAGIC = 0x44454E53;
+    private static final int VERSION = 1;
+    // Entries of one ledger, so that the index file can be mapped at once
+    private static final int MAX_ENTRIES = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;
+
+    private final long ledgerId;
+    private final File file;
+    private final int segmentEntries;
+    // The first entry id, -1 until the first entry is added
+    private int base = -1;
+    // How many slots are used, including the missing entries in between
+    private int count = 0;
+    // How many entries are in the used slots
+    private int entries = 0;
+    private ByteBuf[] segments = new ByteBuf[0];
+    // The first slot changed since the last flush
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private boolean sealed = false;
+    private ByteBuf mapped;
+    private boolean released = false;
+    // Set once the ledger is deleted, the entries added from then on are not indexed here
+    private boolean deleted = false;
+
+    DenseLedgerIndex(long ledgerId, File file, int segmentEntries) {
+        this.ledgerId = ledgerId;
+        this.file = file;
+        this.segmentEntries = segmentEntries;
+    }
+
+    /**
+     * Load the index file, a sealed ledger is mapped, an active one is read into memory.
+     *
+     * @throws IOException if the file is not an index file
+     */
+    static DenseLedgerIndex load(long ledgerId, File file, int segmentEntries) throws IOException {
+        var index = new DenseLedgerIndex(ledgerId, file, segmentEntries);
+        try (var fc = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (fc.read(header, header.position()) < 0) {
+                    throw new EOFException("Index file " + file + " is truncated");
+                }
+            }
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Invalid index file " + file);
+            }
+            index.sealed = header.getInt(8) != 0;
+            index.base = header.getInt(12);
+            // Slots beyond the file were never flushed.
+            index.count = (int) Math.min(header.getInt(16), (fc.size() - HEADER_SIZE) / SLOT_SIZE);
+            if (index.sealed) {
+                index.mapped = MappedFileBuf.map(fc, HEADER_SIZE + index.count * SLOT_SIZE);
+            } else if (index.count > 0) {
+                index.ensureSegments((index.count - 1) / segmentEntries + 1);
+                for (int slot = 0; slot < index.count; slot += segmentEntries) {
+                    var segment = index.segments[slot / segmentEntries];
+                    var nio = segment.nioBuffer(0, Math.min(segmentEntries, index.count - slot) * SLOT_SIZE);
+                    var position = HEADER_SIZE + (long) slot * SLOT_SIZE;
+                    while (nio.hasRemaining()) {
+                        if (fc.read(nio, position + nio.position()) < 0) {
+                            throw new EOFException("Index file " + file + " is truncated");
+                        }
+                    }
+                }
+            }
+        }
+        for (int slot = 0; slot < index.count; slot++) {
+            if (index.fileId(slot) != 0) {
+                index.entries++;
+            }
+        }
+        return index;
+    }
+
+    long ledgerId() {
+        return ledgerId;
+    }
+
+    /**
+     * @return false if the entry does not fit the dense array, e.g. after a gap of more than a segment, or the
+     * ledger is sealed
+     */
+    synchronized boolean put(int entryId, long fileId, long offset) {
+        if (sealed || released || deleted || entryId < 0) {
+            return false;
+        }
+        if (base < 0) {
+            base = entryId;
+        }
+        var slot = (long) entryId - base;
+        if (slot < 0 || slot >= (long) count + segmentEntries || slot >= MAX_ENTRIES) {
+            return false;
+        }
+        ensureSegments((int) (slot / segmentEntries) + 1);
+        var segment = segments[(int) (slot / segmentEntries)];
+        var index = (int) (slot % segmentEntries) * SLOT_SIZE;
+        if (segment.getLong(index) == 0) {
+            entries++;
+        }
+        segment.setLong(index, fileId + 1).setLong(index + 8, offset);
+        count = (int) Math.max(count, slot + 1);
+        dirtyFrom = (int) Math.min(dirtyFrom, slot);
+        return true;
+    }
+
+    /**
+     * @return the position of the entry, or null if it is not in the dense array
+     */
+    synchronized LongLongPair get(int entryId) {
+        if (released || base < 0 || entryId < base || entryId - base >= count) {
+            return null;
+        }
+        var slot = entryId - base;
+        var fileId = fileId(slot);
+        return fileId == 0 ? null : LongLongPair.create(fileId - 1, offset(slot));
+    }
+
+    /**
+     * @return the file id plus one of the slot, 0 for a missing entry
+     */
+    private long fileId(int slot) {
+        if (mapped != null) {
+            return mapped.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+        }
+        return segments[slot / segmentEntries].getLong((slot % segmentEntries) * SLOT_SIZE);
+    }
+
+    private long offset(int slot) {
+        if (mapped != null) {
+            return mapped.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8);
+        }
+        return segments[slot / segmentEntries].getLong((slot % segmentEntries) * SLOT_SIZE + 8);
+    }
+
+    /**
+     * Add the entries of the range that are in the dense array.
+     *
+     * @return false if some entries of the range are not in the dense array
+     */
+    synchronized boolean range(int fromEntry, int toEntry, EntryRange.Builder builder) {
+        if (released || base < 0) {
+            return false;
+        }
+        var complete = fromEntry >= base && (long) toEntry < (long) base + count;
+        for (long entryId = Math.max(fromEntry, base); entryId <= Math.min(toEntry, (long) base + count - 1); entryId++) {
+            var value = get((int) entryId);
+            if (value == null) {
+                complete = false;
+            } else {
+                builder.add((int) entryId, value.f1, value.f2);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * @return the last entry id in the dense array, or -1 if there is none
+     */
+    synchronized int lastEntryId() {
+        return released || base < 0 || count == 0 ? -1 : base + count - 1;
+    }
+
+    /**
+     * @return the number of entries in the dense array, the missing entries in between are not counted
+     */
+    synchronized int entries() {
+        return released ? 0 : entries;
+    }
+
+    /**
+     * Write the changed slots and the header to the index file.
+     *
+     * @throws IOException
+     */
+    synchronized void flush() throws IOException {
+        if (released || sealed || dirtyFrom == Integer.MAX_VALUE) {
+            return;
+        }
+        write(false);
+    }
+
+    /**
+     * Flush the ledger for the last time, and serve it from the mapped index file.
+     *
+     * @throws IOException
+     */
+    synchronized void seal() throws IOException {
+        if (released || sealed) {
+            return;
+        }
+        write(true);
+        try (var fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = MappedFileBuf.map(fc, HEADER_SIZE + count * SLOT_SIZE);
+        }
+        sealed = true;
+        releaseSegments();
+    }
+
+    private void write(boolean seal) throws IOException {
+        try (var fc = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (int slot = Math.min(dirtyFrom, count); slot < count; ) {
+                var segment = segments[slot / segmentEntries];
+                var start = slot % segmentEntries;
+                var end = Math.min(segmentEntries, start + count - slot);
+                var nio = segment.nioBuffer(start * SLOT_SIZE, (end - start) * SLOT_SIZE);
+                var position = HEADER_SIZE + (long) slot * SLOT_SIZE;
+                while (nio.hasRemaining()) {
+                    fc.write(nio, position + nio.position());
+                }
+                slot += end - start;
+            }
+            // The header is written after the slots it covers.
+            var header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC).putInt(VERSION).putInt(seal ? 1 : 0).putInt(base).putInt(count).putInt(0)
+                    .flip();
+            while (header.hasRemaining()) {
+                fc.write(header, header.position());
+            }
+            fc.force(true);
+        }
+        dirtyFrom = Integer.MAX_VALUE;
+    }
+
+    private void ensureSegments(int n) {
+        if (segments.length < n) {
+            segments = Arrays.copyOf(segments, Math.max(n, segments.length * 2));
+        }
+        for (int i = n - 1; i >= 0 && segments[i] == null; i--) {
+            segments[i] = ByteBufAllocator.DEFAULT.directBuffer(segmentEntries * SLOT_SIZE, segmentEntries * SLOT_SIZE);
+            segments[i].setZero(0, segmentEntries * SLOT_SIZE);
+        }
+    }
+
+    private void releaseSegments() {
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] != null) {
+                segments[i].release();
+                segments[i] = null;
+            }
+        }
+        segments = new ByteBuf[0];
+    }
+
+    /**
+     * Free the memory and the mapping, the index file is kept.
+     */
+    synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        releaseSegments();
+        if (mapped != null) {
+            mapped.release();
+            mapped = null;
+        }
+    }
+
+    /**
+     * Stop indexing the entries of the ledger, so that an entry added while the ledger is being deleted is indexed
+     * elsewhere rather than in the index file about to be deleted.
+     */
+    synchronized void markDeleted() {
+        deleted = true;
+    }
+
+    synchronized void delete() {
+        deleted = true;
+        release();
+        FileUtils.deleteQuietly(file);
+    }
+}
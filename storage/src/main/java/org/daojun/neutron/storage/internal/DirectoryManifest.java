@@ -0,0 +1,134 @@
+package org.daojun.neutron.storage.internal;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+/**
+ * The sealed entry files of a directory, with their sizes, so that the directory opens them lazily on startup
+ * instead of reading every header. A file is trusted only if its length on disk still matches the manifest.
+ * <p>
+ * Layout: magic number, version, count, then the id, size and length of each file, all big endian, and the CRC32C
+ * of the preceding bytes.
+ */
+@Slf4j
+class DirectoryManifest {
+    static final String FILE_NAME = "MANIFEST";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4D414E49;
+    private static final int VERSION = 1;
+    private static final int ENTRY_SIZE = 8 + 8 + 8;
+
+    private final File file;
+    private final File tmp;
+    // The ids of the files in the persisted manifest
+    private Set<Long> persisted = Collections.emptySet();
+
+    static class Entry {
+        final long id;
+        // The size of the entry file, the position after the last frame
+        final long size;
+        // The length of the file on disk, which may be larger than the size
+        final long length;
+
+        Entry(long id, long size, long length) {
+            this.id = id;
+            this.size = size;
+            this.length = length;
+        }
+    }
+
+    DirectoryManifest(String directory) {
+        this.file = FileUtils.getFile(directory, FILE_NAME);
+        this.tmp = FileUtils.getFile(directory, FILE_NAME + TMP_SUFFIX);
+    }
+
+    /**
+     * Load the persisted manifest.
+     *
+     * @return the entries keyed by file id, empty if there is no manifest or it is corrupted
+     */
+    synchronized Map<Long, Entry> load() {
+        FileUtils.deleteQuietly(tmp);
+        ByteBuffer b;
+        try {
+            b = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        } catch (NoSuchFileException ex) {
+            return Collections.emptyMap();
+        } catch (IOException ex) {
+            log.warn("Failed to read manifest {}, all the files will be opened", file, ex);
+            return Collections.emptyMap();
+        }
+        if (b.remaining() < 4 * 4 || b.getInt(0) != MAGIC || b.getInt(4) != VERSION
+                || b.remaining() != 4 * 3 + (long) b.getInt(8) * ENTRY_SIZE + 4
+                || checksum(b.slice(0, b.remaining() - 4)) != b.getInt(b.remaining() - 4)) {
+            log.warn("Manifest {} is corrupted, all the files will be opened", file);
+            return Collections.emptyMap();
+        }
+        var count = b.getInt(8);
+        var entries = new HashMap<Long, Entry>(count * 2);
+        b.position(4 * 3);
+        for (int i = 0; i < count; i++) {
+            var entry = new Entry(b.getLong(), b.getLong(), b.getLong());
+            entries.put(entry.id, entry);
+        }
+        // Not taken as persisted, so that the first update after loading rewrites the manifest with the current lengths.
+        return entries;
+    }
+
+    /**
+     * Persist the sealed files, if they are not the same as the persisted ones.
+     *
+     * @throws IOException
+     */
+    synchronized void update(Collection<DefaultEntryFile> files) throws IOException {
+        var sealed = files.stream().filter(DefaultEntryFile::isSealed).collect(Collectors.toList());
+        var ids = sealed.stream().map(DefaultEntryFile::id).collect(Collectors.toSet());
+        if (ids.equals(persisted)) {
+            return;
+        }
+        var b = ByteBuffer.allocate(4 * 3 + sealed.size() * ENTRY_SIZE + 4);
+        b.putInt(MAGIC).putInt(VERSION).putInt(sealed.size());
+        for (var f : sealed) {
+            b.putLong(f.id()).putLong(f.size()).putLong(new File(f.path()).length());
+        }
+        b.putInt(checksum(b.duplicate().flip()));
+        b.flip();
+        try (var fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (b.hasRemaining()) {
+                fc.write(b);
+            }
+            fc.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        persisted = ids;
+    }
+
+    synchronized void delete() {
+        FileUtils.deleteQuietly(file);
+        FileUtils.deleteQuietly(tmp);
+        persisted = Collections.emptySet();
+    }
+
+    private static int checksum(ByteBuffer b) {
+        var crc = new CRC32C();
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,163 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import lombok.extern.slf4j.Slf4j;
+import org.daojun.neutron.storage.FencedException;
+import org.daojun.neutron.storage.LongLongPair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The single writer of a directory. Producers publish their appends into a bounded MPSC queue, and one thread
+ * drains it in batches, so that offsets are assigned and files are rolled by that thread only, in queue order.
+ * <p>
+ * Appends published while the queue is full are rejected, as the tasks of the I/O pools are, rather than blocking
+ * the producer.
+ */
+@Slf4j
+class DirectoryWriter {
+    private final String name;
+    private final Queue<Append> queue;
+    private final int maxBatchSize;
+    private final BatchHandler handler;
+    private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
+    private volatile Thread thread;
+    // Whether the writer is parked, producers only unpark it then
+    private volatile boolean waiting = false;
+    private volatile boolean closed = false;
+    private volatile boolean terminated = false;
+
+    static final class Append {
+        // Retained by the writer, released once the entry is appended
+        final ByteBuf buffer;
+        final CompletableFuture<LongLongPair> future;
+
+        private Append(ByteBuf buffer, CompletableFuture<LongLongPair> future) {
+            this.buffer = buffer;
+            this.future = future;
+        }
+    }
+
+    interface BatchHandler {
+        /**
+         * Append the batch on the writer thread, every future must be completed and every buffer released.
+         */
+        void handle(List<Append> batch);
+    }
+
+    DirectoryWriter(String name, int capacity, int maxBatchSize, BatchHandler handler) {
+        this.name = name;
+        this.queue = PlatformDependent.newMpscQueue(Math.max(capacity, 2));
+        this.maxBatchSize = Math.max(maxBatchSize, 1);
+        this.handler = handler;
+    }
+
+    synchronized void start() {
+        if (thread != null || closed) {
+            return;
+        }
+        thread = new DefaultThreadFactory(name, true).newThread(this::run);
+        thread.start();
+    }
+
+    /**
+     * Publish the append, the caller's buffer may be released once this returns.
+     *
+     * @return the future of the position, failed with a {@link RejectedExecutionException} if the queue is full
+     */
+    CompletableFuture<LongLongPair> append(ByteBuf buffer) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new FencedException("Writer of " + name + " is closed"));
+        }
+        var append = new Append(buffer.retainedDuplicate(), new CompletableFuture<>());
+        if (!queue.offer(append)) {
+            if (Thread.currentThread() == thread) {
+                // A completion callback on the writer thread, it appends inline as it drains the queue itself.
+                handler.handle(List.of(append));
+                return append.future;
+            }
+            append.buffer.release();
+            return CompletableFuture.failedFuture(terminated
+                    ? new FencedException("Writer of " + name + " is closed")
+                    : new RejectedExecutionException("Append queue of " + name + " is full"));
+        }
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+        if (terminated) {
+            // Published after the writer exited.
+            failPending();
+        }
+        return append.future;
+    }
+
+    private void run() {
+        var batch = new ArrayList<Append>(maxBatchSize);
+        while (true) {
+            Append append;
+            while (batch.size() < maxBatchSize && (append = queue.poll()) != null) {
+                batch.add(append);
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    handler.handle(batch);
+                } catch (Throwable ex) {
+                    log.error("Failed to append the batch, writer {}", name, ex);
+                    batch.forEach(a -> a.future.completeExceptionally(ex));
+                }
+                batch.clear();
+                continue;
+            }
+            if (closed) {
+                break;
+            }
+            waiting = true;
+            // Check again after announcing, a producer either sees the flag or its append is seen here.
+            if (queue.isEmpty() && !closed) {
+                LockSupport.park(this);
+            }
+            waiting = false;
+        }
+        terminated = true;
+        failPending();
+        closeFuture.complete(null);
+    }
+
+    /**
+     * Fail the appends published after the writer exited, the queue has no other consumer by then.
+     */
+    private synchronized void failPending() {
+        Append append;
+        while ((append = queue.poll()) != null) {
+            append.buffer.release();
+            append.future.completeExceptionally(new FencedException("Writer of " + name + " is closed"));
+        }
+    }
+
+    /**
+     * Stop accepting appends, the published ones are still appended.
+     *
+     * @return the future completed once the writer exits
+     */
+    synchronized CompletableFuture<Void> close() {
+        if (closed) {
+            return closeFuture;
+        }
+        closed = true;
+        if (thread == null) {
+            terminated = true;
+            failPending();
+            closeFuture.complete(null);
+        } else {
+            LockSupport.unpark(thread);
+        }
+        return closeFuture;
+    }
+}
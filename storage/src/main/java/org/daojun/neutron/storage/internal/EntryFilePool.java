@@ -0,0 +1,183 @@
+package org.daojun.neutron.storage.internal;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.daojun.neutron.storage.ManagedStorageConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spare entry files of a directory, recycled from deleted entry files or preallocated ahead of time.
+ * Rolling takes over a spare file, whose extents are already allocated, instead of creating one on the append path.
+ */
+@Slf4j
+class EntryFilePool {
+    static final String POOL_DIRECTORY = "pool";
+    private static final String PREALLOCATING_SUFFIX = ".tmp";
+    // Bytes preallocated by one task, so that the writes sharing the executor are not delayed for long.
+    private static final int PREALLOCATE_STEP = 8 * 1024 * 1024;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(1024 * 1024).asReadOnlyBuffer();
+
+    private final File directory;
+    private final long fileSize;
+    private final int maxRecycledFiles;
+    private final boolean preallocate;
+    private final Executor executor;
+    private final Deque<File> files = new ConcurrentLinkedDeque<>();
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final AtomicBoolean preallocating = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    EntryFilePool(ManagedStorageConfig config, String path, Executor executor) {
+        this.directory = FileUtils.getFile(path, POOL_DIRECTORY);
+        this.fileSize = config.getMaxEntryFileSize();
+        this.maxRecycledFiles = config.getMaxRecycledEntryFiles();
+        this.preallocate = config.isEntryFilePreallocateEnabled();
+        this.executor = executor;
+    }
+
+    /**
+     * Load the spare files left by the previous run, and drop the unfinished preallocations.
+     *
+     * @throws IOException
+     */
+    void initialize() throws IOException {
+        FileUtils.forceMkdir(directory);
+        var spares = directory.listFiles();
+        if (spares == null) {
+            return;
+        }
+        for (var spare : spares) {
+            var name = spare.getName();
+            if (name.endsWith(PREALLOCATING_SUFFIX)) {
+                FileUtils.forceDelete(spare);
+                continue;
+            }
+            var seq = Long.parseLong(name);
+            sequence.accumulateAndGet(seq, (oldValue, newValue) -> Math.max(oldValue, newValue + 1));
+            files.add(spare);
+        }
+    }
+
+    /**
+     * Take a spare file, and preallocate the next one in the background.
+     *
+     * @return the spare file, or null if there is no spare file
+     */
+    File poll() {
+        var spare = files.pollFirst();
+        preallocateAsync();
+        return spare;
+    }
+
+    /**
+     * Keep the file of a deleted entry file for reuse, or delete it if the pool is full.
+     *
+     * @param file the file of a closed entry file
+     * @throws IOException
+     */
+    void recycle(File file) throws IOException {
+        if (closed || files.size() >= maxRecycledFiles) {
+            FileUtils.forceDelete(file);
+            return;
+        }
+        var target = new File(directory, String.valueOf(sequence.getAndIncrement()));
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        files.add(target);
+        log.info("Recycled entry file {} into {}", file, target);
+    }
+
+    /**
+     * Preallocate a spare file to the max entry file size in the background, if the pool is empty.
+     */
+    void preallocateAsync() {
+        if (!preallocate || closed || !files.isEmpty() || !preallocating.compareAndSet(false, true)) {
+            return;
+        }
+        var seq = sequence.getAndIncrement();
+        var target = new File(directory, String.valueOf(seq));
+        var tmp = new File(directory, seq + PREALLOCATING_SUFFIX);
+        FileChannel fc = null;
+        try {
+            fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            var channel = fc;
+            executor.execute(() -> preallocate(channel, tmp, target));
+        } catch (Exception ex) {
+            // Also rejected by a full write pool, tried again on the next roll.
+            log.error("Failed to preallocate entry file {}", tmp, ex);
+            if (fc != null) {
+                try {
+                    fc.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                FileUtils.deleteQuietly(tmp);
+            }
+            preallocating.set(false);
+        }
+    }
+
+    private void preallocate(FileChannel fc, File tmp, File target) {
+        try {
+            var end = Math.min(fc.position() + PREALLOCATE_STEP, fileSize);
+            while (!closed && fc.position() < end) {
+                var zeros = ZEROS.duplicate();
+                zeros.limit((int) Math.min(zeros.capacity(), end - fc.position()));
+                fc.write(zeros);
+            }
+            if (closed) {
+                fc.close();
+                FileUtils.forceDelete(tmp);
+                preallocating.set(false);
+            } else if (fc.position() < fileSize) {
+                // Continue with the next step.
+                executor.execute(() -> preallocate(fc, tmp, target));
+            } else {
+                fc.force(true);
+                fc.close();
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                files.add(target);
+                preallocating.set(false);
+                log.info("Preallocated entry file {}, size {}", target, fileSize);
+            }
+        } catch (Exception ex) {
+            log.error("Failed to preallocate entry file {}", tmp, ex);
+            try {
+                fc.close();
+                FileUtils.deleteQuietly(tmp);
+            } catch (IOException e) {
+                // ignore
+            }
+            preallocating.set(false);
+        }
+    }
+
+    /**
+     * Stop preallocating, the spare files are kept for the next run.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Delete all the spare files.
+     *
+     * @throws IOException
+     */
+    void delete() throws IOException {
+        closed = true;
+        files.clear();
+        FileUtils.deleteDirectory(directory);
+    }
+}
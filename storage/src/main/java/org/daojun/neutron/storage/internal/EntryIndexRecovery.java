@@ -0,0 +1,134 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.buffer.ByteBuf;
+import lombok.extern.slf4j.Slf4j;
+import org.daojun.neutron.storage.Directory;
+import org.daojun.neutron.storage.EntryIndex;
+import org.daojun.neutron.storage.LongLongPair;
+import org.daojun.neutron.storage.Pair;
+import org.daojun.neutron.storage.Position;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+/**
+ * Rebuilds the additions an entry index lost in a crash, by replaying the entries of its directory written after the
+ * checkpoint of the index. The replay is idempotent, an entry indexed twice has the same position.
+ * <p>
+ * An entry starts with its key, the 8 bytes ledger id and the 4 bytes entry id, see {@link #writeKey}. Frames do not
+ * mark whether their entry has a key, so the replay is only open to this package, for directories whose every entry
+ * is written with its key, such as the journal of {@link DefaultEntryLogger}.
+ */
+@Slf4j
+public class EntryIndexRecovery {
+    public static final int KEY_SIZE = 8 + 4;
+    // Bytes read from an entry file at once
+    private static final int READ_MAX_BYTES = 4 * 1024 * 1024;
+
+    private final Directory directory;
+    private final EntryIndex index;
+    private final int batchEntries;
+
+    EntryIndexRecovery(Directory directory, EntryIndex index, int batchEntries) {
+        this.directory = directory;
+        this.index = index;
+        this.batchEntries = Math.max(batchEntries, 1);
+    }
+
+    /**
+     * Write the key of an entry, before its payload.
+     */
+    public static ByteBuf writeKey(ByteBuf buffer, long ledgerId, int entryId) {
+        return buffer.writeLong(ledgerId).writeInt(entryId);
+    }
+
+    /**
+     * @return the key of the entry, or null if the entry is too short to have one
+     */
+    public static Position readKey(ByteBuf entry) {
+        if (entry.readableBytes() < KEY_SIZE) {
+            return null;
+        }
+        var index = entry.readerIndex();
+        return DefaultPosition.create(entry.getLong(index), entry.getInt(index + 8));
+    }
+
+    /**
+     * Replay the entries after the checkpoint by large batches, then checkpoint the end of the directory and flush
+     * the index. This blocks, and must complete before entries are added to the directory.
+     *
+     * @param isLive whether the entries of a ledger are replayed, so that deleted ledgers are not indexed again
+     * @return the number of entries replayed
+     */
+    long replay(LongPredicate isLive) throws Exception {
+        var checkpoint = index.asyncGetCheckpoint().get();
+        var replayed = new long[1];
+        List<Pair<Position, LongLongPair>> batch = new ArrayList<>(batchEntries);
+        var end = scan(directory, checkpoint, batchEntries, (fileId, offset, entry) -> {
+            var key = readKey(entry);
+            if (key != null && isLive.test(key.ledgerId())) {
+                batch.add(Pair.create(key, LongLongPair.create(fileId, offset)));
+            }
+            if (batch.size() >= batchEntries) {
+                index.asyncAddBatch(List.copyOf(batch)).get();
+                replayed[0] += batch.size();
+                batch.clear();
+            }
+        });
+        if (!batch.isEmpty()) {
+            index.asyncAddBatch(batch).get();
+            replayed[0] += batch.size();
+        }
+        if (end != null) {
+            index.asyncCheckpoint(end).get();
+        }
+        index.asyncFlush().get();
+        log.info("Replayed {} entries of directory {} into the entry index {}, from checkpoint {} to {}",
+                replayed[0], directory.path(), index.getPath(), checkpoint, end);
+        return replayed[0];
+    }
+
+    interface EntryVisitor {
+        /**
+         * @param entry the entry, released once this returns
+         */
+        void visit(long fileId, long offset, ByteBuf entry) throws Exception;
+    }
+
+    /**
+     * Visit the entries of the directory from a position, in file order. This blocks.
+     *
+     * @param from         fileId, offset of the first entry, or null to visit every entry
+     * @param batchEntries the number of entries read at once
+     * @return fileId, offset after the last entry, or {@code from} if the directory has no file
+     */
+    static LongLongPair scan(Directory directory, LongLongPair from, int batchEntries, EntryVisitor visitor)
+            throws Exception {
+        directory.asyncInitialize().get();
+        var end = from;
+        for (var file : List.copyOf(directory.entryFiles())) {
+            if (from != null && file.id() < from.f1) {
+                continue;
+            }
+            file.asyncInitialize().get();
+            var offset = file.firstEntryOffset();
+            if (from != null && file.id() == from.f1) {
+                offset = Math.max(offset, from.f2);
+            }
+            while (offset < file.size()) {
+                var entries = file.asyncReadEntries(offset, batchEntries, READ_MAX_BYTES).get();
+                try {
+                    for (var entry : entries) {
+                        visitor.visit(file.id(), offset, entry);
+                        offset = file.nextEntryOffset(offset, entry);
+                    }
+                } finally {
+                    entries.forEach(ByteBuf::release);
+                }
+            }
+            end = LongLongPair.create(file.id(), offset);
+        }
+        return end;
+    }
+}
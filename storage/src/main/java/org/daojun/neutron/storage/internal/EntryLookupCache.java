@@ -0,0 +1,224 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.daojun.neutron.storage.LongLongPair;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded off-heap cache of the positions of entries, keyed by ledger id and entry id, in front of the RocksDB
+ * lookups. The slots are kept in direct memory, split in segments with a lock each. A key hashes to a set of
+ * {@link #WAYS} slots of a segment, and a full set evicts by CLOCK: the hand clears the referenced bit of the slots
+ * it passes, and evicts the first slot that was not referenced since.
+ * <p>
+ * Deleting a ledger does not touch the slots. The ledgers hash to a table of epochs, a slot is tagged with the epoch of
+ * its ledger when it is written, and a slot whose tag is behind the epoch is a miss. Ledgers sharing an epoch only cost
+ * each other a few extra misses.
+ * <p>
+ * Layout of a slot: ledger id, entry id, state, file id, offset, epoch.
+ */
+public class EntryLookupCache {
+    static final int SLOT_SIZE = 8 + 4 + 4 + 8 + 8 + 4;
+    static final int WAYS = 8;
+    private static final int SEGMENTS = 16;
+    private static final int EPOCHS = 1024;
+    private static final int EMPTY = 0;
+    private static final int USED = 1;
+    private static final int REFERENCED = 2;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    // Incremented by the invalidations of the ledgers hashing to each
+    private final AtomicIntegerArray epochs = new AtomicIntegerArray(EPOCHS);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Segment {
+        private final int sets;
+        private ByteBuf slots;
+        // The CLOCK hand of each set
+        private final byte[] hands;
+
+        private Segment(int sets) {
+            this.sets = sets;
+            this.hands = new byte[sets];
+            this.slots = ByteBufAllocator.DEFAULT.directBuffer(sets * WAYS * SLOT_SIZE, sets * WAYS * SLOT_SIZE);
+            this.slots.setZero(0, this.slots.capacity());
+        }
+    }
+
+    /**
+     * @param size the off-heap memory of the cache in bytes
+     */
+    EntryLookupCache(long size) {
+        var sets = (int) Math.max(1, Math.min(size / SEGMENTS / WAYS / SLOT_SIZE, Integer.MAX_VALUE / WAYS / SLOT_SIZE));
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(sets);
+        }
+    }
+
+    private static long hash(long ledgerId, int entryId) {
+        // fmix64 of MurmurHash3
+        var h = ledgerId * 0x9E3779B97F4A7C15L + entryId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53ef85bL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int epochIndex(long ledgerId) {
+        return (int) (hash(ledgerId, 0) >>> 32) & (EPOCHS - 1);
+    }
+
+    private Segment segment(long hash) {
+        return segments[(int) (hash & (SEGMENTS - 1))];
+    }
+
+    private static int set(Segment segment, long hash) {
+        return (int) Long.remainderUnsigned(hash >>> 4, segment.sets);
+    }
+
+    /**
+     * @return the slot index of the key in its set, or -1
+     */
+    private static int find(ByteBuf slots, int base, long ledgerId, int entryId) {
+        for (int way = 0; way < WAYS; way++) {
+            var index = base + way * SLOT_SIZE;
+            if (slots.getInt(index + 12) != EMPTY
+                    && slots.getLong(index) == ledgerId && slots.getInt(index + 8) == entryId) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the cached position of the entry, or null
+     */
+    LongLongPair get(long ledgerId, int entryId) {
+        var hash = hash(ledgerId, entryId);
+        var segment = segment(hash);
+        synchronized (segment) {
+            var slots = segment.slots;
+            if (slots != null) {
+                var index = find(slots, set(segment, hash) * WAYS * SLOT_SIZE, ledgerId, entryId);
+                if (index >= 0 && slots.getInt(index + 32) != epoch(ledgerId)) {
+                    // Invalidated, the slot is freed lazily.
+                    slots.setInt(index + 12, EMPTY);
+                } else if (index >= 0) {
+                    slots.setInt(index + 12, REFERENCED);
+                    hits.increment();
+                    return LongLongPair.create(slots.getLong(index + 16), slots.getLong(index + 24));
+                }
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @return the epoch of the ledger, to pass to {@link #put(long, int, long, long, int)} after a lookup
+     */
+    int epoch(long ledgerId) {
+        return epochs.get(epochIndex(ledgerId));
+    }
+
+    void put(long ledgerId, int entryId, long fileId, long offset) {
+        put(ledgerId, entryId, fileId, offset, epoch(ledgerId));
+    }
+
+    /**
+     * Cache the position read by a lookup. If the ledger was invalidated since the lookup started, the slot is
+     * behind the epoch, so it is never hit.
+     *
+     * @param epoch the {@link #epoch(long)} of the ledger before the lookup
+     */
+    void put(long ledgerId, int entryId, long fileId, long offset, int epoch) {
+        var hash = hash(ledgerId, entryId);
+        var segment = segment(hash);
+        synchronized (segment) {
+            var slots = segment.slots;
+            if (slots == null) {
+                return;
+            }
+            var set = set(segment, hash);
+            var base = set * WAYS * SLOT_SIZE;
+            var index = find(slots, base, ledgerId, entryId);
+            if (index < 0) {
+                index = victim(segment, slots, set, base);
+                slots.setLong(index, ledgerId).setInt(index + 8, entryId).setInt(index + 12, USED);
+            }
+            slots.setLong(index + 16, fileId).setLong(index + 24, offset).setInt(index + 32, epoch);
+        }
+    }
+
+    /**
+     * @return an empty slot of the set, or the one evicted by the CLOCK hand
+     */
+    private int victim(Segment segment, ByteBuf slots, int set, int base) {
+        for (int way = 0; way < WAYS; way++) {
+            if (slots.getInt(base + way * SLOT_SIZE + 12) == EMPTY) {
+                return base + way * SLOT_SIZE;
+            }
+        }
+        var hand = segment.hands[set];
+        while (true) {
+            var index = base + hand * SLOT_SIZE;
+            hand = (byte) ((hand + 1) % WAYS);
+            if (slots.getInt(index + 12) == REFERENCED) {
+                slots.setInt(index + 12, USED);
+            } else {
+                segment.hands[set] = hand;
+                evictions.increment();
+                return index;
+            }
+        }
+    }
+
+    /**
+     * Drop the entries of the ledger, by advancing its epoch. The slots are freed by the lookups that hit them, or
+     * evicted.
+     */
+    void invalidate(long ledgerId) {
+        epochs.incrementAndGet(epochIndex(ledgerId));
+    }
+
+    /**
+     * Free the memory, the cache is empty afterwards.
+     */
+    void release() {
+        for (var segment : segments) {
+            synchronized (segment) {
+                if (segment.slots != null) {
+                    segment.slots.release();
+                    segment.slots = null;
+                }
+            }
+        }
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the ratio of the lookups served by the cache, 0 before the first lookup
+     */
+    public double hitRate() {
+        var hits = hitCount();
+        var total = hits + missCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
@@ -0,0 +1,156 @@
+package org.daojun.neutron.storage.internal;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of the open channels of sealed entry files, so that long retention does not keep a file
+ * descriptor per file. Channels are reference counted: an evicted channel is closed once the in-flight reads
+ * release it, and the next read reopens it.
+ */
+@Slf4j
+public class FileChannelCache {
+    private final int maxOpenChannels;
+    // Access ordered, the eldest is the least recently used
+    private final LinkedHashMap<Long, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    interface Opener {
+        FileChannel open() throws IOException;
+    }
+
+    /**
+     * A reference counted channel, closed when the count drops to zero.
+     */
+    static final class Handle {
+        private final FileChannel channel;
+        private final AtomicInteger refCnt = new AtomicInteger(1);
+
+        Handle(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        FileChannel channel() {
+            return channel;
+        }
+
+        /**
+         * @return false if the channel is already closed
+         */
+        boolean tryRetain() {
+            int refCnt;
+            do {
+                refCnt = this.refCnt.get();
+                if (refCnt == 0) {
+                    return false;
+                }
+            } while (!this.refCnt.compareAndSet(refCnt, refCnt + 1));
+            return true;
+        }
+
+        void release() {
+            if (refCnt.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    log.warn("Failed to close channel", ex);
+                }
+            }
+        }
+    }
+
+    FileChannelCache(int maxOpenChannels) {
+        this.maxOpenChannels = maxOpenChannels;
+    }
+
+    /**
+     * Cache the channel of a file that is sealed, the reference of the caller is taken over.
+     */
+    void put(long id, Handle handle) {
+        Handle previous;
+        synchronized (this) {
+            previous = handles.put(id, handle);
+            evict();
+        }
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Get the channel of the file, and open it on a miss.
+     *
+     * @return the retained handle, the caller must release it
+     */
+    Handle acquire(long id, Opener opener) throws IOException {
+        synchronized (this) {
+            var handle = handles.get(id);
+            if (handle != null && handle.tryRetain()) {
+                hits.increment();
+                return handle;
+            }
+        }
+        misses.increment();
+        var handle = new Handle(opener.open());
+        handle.tryRetain();
+        synchronized (this) {
+            var existing = handles.get(id);
+            if (existing != null && existing.tryRetain()) {
+                // Opened concurrently
+                handle.release();
+                handle.release();
+                return existing;
+            }
+            handles.put(id, handle);
+            evict();
+        }
+        return handle;
+    }
+
+    /**
+     * Drop the channel of a closed file.
+     */
+    void remove(long id) {
+        Handle handle;
+        synchronized (this) {
+            handle = handles.remove(id);
+        }
+        if (handle != null) {
+            handle.release();
+        }
+    }
+
+    private void evict() {
+        var it = handles.values().iterator();
+        while (handles.size() > maxOpenChannels && it.hasNext()) {
+            var eldest = it.next();
+            it.remove();
+            // Closed here, or by the last in-flight read.
+            eldest.release();
+            evictions.increment();
+        }
+    }
+
+    public synchronized int openChannels() {
+        return handles.size();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+}
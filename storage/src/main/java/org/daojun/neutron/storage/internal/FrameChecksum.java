@@ -0,0 +1,45 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.zip.CRC32C;
+
+/**
+ * Checksum of an entry frame: the CRC32C of the payload, salted with the file id and the offset of the frame.
+ * The salt keeps the zeroed blocks of preallocated files and the stale frames of recycled files from passing.
+ */
+final class FrameChecksum {
+
+    private FrameChecksum() {
+    }
+
+    static int of(ByteBuf payload, long fileId, long offset) {
+        return crc32c(payload) ^ salt(fileId, offset);
+    }
+
+    /**
+     * The unsalted part, which does not depend on the offset and can be computed before the offset is assigned.
+     */
+    static int crc32c(ByteBuf payload) {
+        var crc = new CRC32C();
+        if (payload.nioBufferCount() == 1) {
+            crc.update(payload.nioBuffer());
+        } else {
+            for (var buffer : payload.nioBuffers()) {
+                crc.update(buffer);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    static int salt(long fileId, long offset) {
+        // Finalizer of MurmurHash3
+        var h = fileId * 0x9E3779B97F4A7C15L ^ offset;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,174 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.daojun.neutron.storage.ManagedStorageConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The executors of the blocking storage I/O, with a bounded pool for each kind of operation, so that a slow disk
+ * delays the operations of that kind, but never the others, nor the threads of the callers.
+ * <p>
+ * Futures are completed on the completion executor if there is one, otherwise on the I/O threads.
+ */
+@Slf4j
+public class IoExecutors implements AutoCloseable {
+    private static final IoExecutors DIRECT = new IoExecutors();
+
+    public enum Kind {
+        // Writes that do not sync, e.g. preallocation and creation of entry files
+        WRITE,
+        // Flushes of entry files, which end with a fsync
+        SYNC,
+        // Reads of entry files that miss the buffers and mappings
+        READ,
+        // Operations of the entry index
+        INDEX
+    }
+
+    interface Task<T> {
+        T call() throws Exception;
+    }
+
+    private final Executor[] executors = new Executor[Kind.values().length];
+    private final List<ExecutorService> services = new ArrayList<>();
+    private final Executor completion;
+
+    private IoExecutors() {
+        for (var kind : Kind.values()) {
+            executors[kind.ordinal()] = Runnable::run;
+        }
+        this.completion = null;
+    }
+
+    private IoExecutors(ManagedStorageConfig config) {
+        var threads = new int[Kind.values().length];
+        threads[Kind.WRITE.ordinal()] = config.getIoWriteThreads();
+        threads[Kind.SYNC.ordinal()] = config.getIoSyncThreads();
+        threads[Kind.READ.ordinal()] = config.getIoReadThreads();
+        threads[Kind.INDEX.ordinal()] = config.getIoIndexThreads();
+        for (var kind : Kind.values()) {
+            var name = "neutron-io-" + kind.name().toLowerCase();
+            var n = Math.max(1, threads[kind.ordinal()]);
+            executors[kind.ordinal()] = config.isIoVirtualThreadsEnabled()
+                    ? virtualPool(name, n) : platformPool(name, n, config.getIoQueueCapacity());
+        }
+        this.completion = config.getIoCompletionExecutor();
+    }
+
+    /**
+     * Create the pools configured by the config, they must be closed by the owner.
+     */
+    public static IoExecutors create(ManagedStorageConfig config) {
+        return new IoExecutors(Objects.requireNonNullElseGet(config, ManagedStorageConfig::new));
+    }
+
+    /**
+     * The executors that run every task on the calling thread, for tests only, as flushes then run on the producers.
+     */
+    public static IoExecutors direct() {
+        return DIRECT;
+    }
+
+    private ExecutorService platformPool(String name, int threads, int queueCapacity) {
+        var pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, queueCapacity)), new DefaultThreadFactory(name, true),
+                (task, executor) -> {
+                    // Never run on the caller, the futures of the rejected tasks fail instead.
+                    throw new RejectedExecutionException(executor.isShutdown()
+                            ? name + " is shut down" : name + " queue is full");
+                });
+        services.add(pool);
+        return pool;
+    }
+
+    /**
+     * A virtual thread per task, the permits bound how many of them run the blocking calls at once.
+     */
+    private Executor virtualPool(String name, int permits) {
+        var service = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        services.add(service);
+        var semaphore = new Semaphore(permits);
+        return task -> service.execute(() -> {
+            semaphore.acquireUninterruptibly();
+            try {
+                task.run();
+            } finally {
+                semaphore.release();
+            }
+        });
+    }
+
+    Executor executor(Kind kind) {
+        return executors[kind.ordinal()];
+    }
+
+    /**
+     * Run the task on the pool of its kind.
+     *
+     * @return the future of the result, completed on the completion executor if there is one, or failed with a
+     * {@link RejectedExecutionException} if the queue of the pool is full
+     */
+    <T> CompletableFuture<T> submit(Kind kind, Task<T> task) {
+        var f = new CompletableFuture<T>();
+        try {
+            executor(kind).execute(() -> {
+                T result;
+                try {
+                    result = task.call();
+                } catch (Throwable ex) {
+                    complete(f, null, ex);
+                    return;
+                }
+                complete(f, result, null);
+            });
+        } catch (RejectedExecutionException ex) {
+            f.completeExceptionally(ex);
+        }
+        return f;
+    }
+
+    /**
+     * Complete the future on the completion executor if there is one, otherwise on the current thread.
+     */
+    <T> void complete(CompletableFuture<T> f, T value, Throwable ex) {
+        if (completion == null) {
+            doComplete(f, value, ex);
+            return;
+        }
+        try {
+            completion.execute(() -> doComplete(f, value, ex));
+        } catch (RejectedExecutionException e) {
+            log.warn("Completion executor rejected the completion, completing on the I/O thread");
+            doComplete(f, value, ex);
+        }
+    }
+
+    private static <T> void doComplete(CompletableFuture<T> f, T value, Throwable ex) {
+        if (ex != null) {
+            f.completeExceptionally(ex);
+        } else {
+            f.complete(value);
+        }
+    }
+
+    /**
+     * Stop the pools, the queued tasks still run.
+     */
+    @Override
+    public void close() {
+        services.forEach(ExecutorService::shutdown);
+    }
+}
@@ -1,10 +1,31 @@
 package org.daojun.neutron.storage.internal;
 
 import io.netty.util.Recycler;
+import io.netty.util.concurrent.FastThreadLocal;
 import org.daojun.neutron.common.utils.NumberUtils;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Index key of (ledgerId, entryId), big endian. The key is encoded either into the heap memory, or into the direct
+ * buffer that RocksDB reads without copying it across JNI.
+ * <p>
+ * The direct buffer is one per thread, shared by the holders the thread uses, so a thread encodes one direct key at a
+ * time. The batch lookups slice it into {@link #BATCH} keys.
+ */
 class LongIntBytes {
-    final byte[] memory = new byte[12];
+    static final int SIZE = 12;
+    // The keys of a batch lookup held by the direct buffer
+    static final int BATCH = 256;
+    private static final FastThreadLocal<ByteBuffer> DIRECT = new FastThreadLocal<>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(SIZE * BATCH);
+        }
+    };
+    final byte[] memory = new byte[SIZE];
+    // The direct buffer of the thread, set by the direct calls
+    ByteBuffer buffer;
 
     void set(long f1, int f2) {
         NumberUtils.putLong(memory, 0, f1);
@@ -26,6 +47,41 @@ class LongIntBytes {
         return lp;
     }
 
+    /**
+     * Encode the key into the direct buffer, the calls taking it move its position.
+     */
+    LongIntBytes direct(long f1, int f2) {
+        clearDirect();
+        buffer.putLong(0, f1).putInt(8, f2);
+        return this;
+    }
+
+    static LongIntBytes getDirect(long f1, int f2) {
+        return RECYCLER.get().direct(f1, f2);
+    }
+
+    /**
+     * @return the buffer cleared for RocksDB to read a key into
+     */
+    ByteBuffer clearDirect() {
+        return buffer = DIRECT.get().clear().limit(SIZE);
+    }
+
+    /**
+     * @return the i-th key of the direct buffer of the thread, for a batch lookup
+     */
+    static ByteBuffer directSlice(int i) {
+        return DIRECT.get().clear().slice(i * SIZE, SIZE);
+    }
+
+    long directF1() {
+        return buffer.getLong(0);
+    }
+
+    int directF2() {
+        return buffer.getInt(8);
+    }
+
     static LongIntBytes get() {
         return RECYCLER.get();
     }
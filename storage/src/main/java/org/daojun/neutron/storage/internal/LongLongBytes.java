@@ -0,0 +1,105 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.util.Recycler;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.daojun.neutron.common.utils.NumberUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Index value of (fileId, offset). Values written before offsets were widened to 8 bytes are 12 bytes long,
+ * and are decoded by the length returned from the index. The value is kept either in the heap memory, or in the
+ * direct buffer passed to RocksDB without copying it across JNI.
+ * <p>
+ * As with {@link LongIntBytes}, the direct buffer is one per thread, and is sliced by the batch lookups.
+ */
+class LongLongBytes {
+    static final int SIZE = 16;
+    static final int LEGACY_SIZE = 12;
+    private static final FastThreadLocal<ByteBuffer> DIRECT = new FastThreadLocal<>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(SIZE * LongIntBytes.BATCH);
+        }
+    };
+    final byte[] memory = new byte[SIZE];
+    // The direct buffer of the thread, set by the direct calls
+    ByteBuffer buffer;
+
+    long f1() {
+        return NumberUtils.readLong(memory, 0);
+    }
+
+    /**
+     * @param length the length of the value read into the memory
+     */
+    long f2(int length) {
+        return length == LEGACY_SIZE ? NumberUtils.readInt(memory, 8) : NumberUtils.readLong(memory, 8);
+    }
+
+    static LongLongBytes get(long f1, long f2) {
+        LongLongBytes lp = RECYCLER.get();
+        NumberUtils.putLong(lp.memory, 0, f1);
+        NumberUtils.putLong(lp.memory, 8, f2);
+        return lp;
+    }
+
+    /**
+     * Encode the value into the direct buffer, the calls taking it move its position.
+     */
+    LongLongBytes direct(long f1, long f2) {
+        clearDirect();
+        buffer.putLong(0, f1).putLong(8, f2);
+        return this;
+    }
+
+    static LongLongBytes getDirect(long f1, long f2) {
+        return RECYCLER.get().direct(f1, f2);
+    }
+
+    /**
+     * @return the buffer cleared for RocksDB to read a value into
+     */
+    ByteBuffer clearDirect() {
+        return buffer = DIRECT.get().clear().limit(SIZE);
+    }
+
+    /**
+     * @return the i-th value of the direct buffer of the thread, for a batch lookup
+     */
+    static ByteBuffer directSlice(int i) {
+        return DIRECT.get().clear().slice(i * SIZE, SIZE);
+    }
+
+    long directF1() {
+        return buffer.getLong(0);
+    }
+
+    /**
+     * @param length the length of the value read into the direct buffer
+     */
+    long directF2(int length) {
+        return length == LEGACY_SIZE ? buffer.getInt(8) : buffer.getLong(8);
+    }
+
+    static LongLongBytes get() {
+        return RECYCLER.get();
+    }
+
+    void recycle() {
+        handle.recycle(this);
+    }
+
+    private static final Recycler<LongLongBytes> RECYCLER = new Recycler<>() {
+        @Override
+        protected LongLongBytes newObject(Handle<LongLongBytes> handle) {
+            return new LongLongBytes(handle);
+        }
+    };
+
+    private final Recycler.Handle<LongLongBytes> handle;
+
+    private LongLongBytes(Recycler.Handle<LongLongBytes> handle) {
+        this.handle = handle;
+    }
+}
@@ -0,0 +1,42 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read only memory mapped region of a file.
+ * The mapping is wrapped as a single component, as netty only wraps a read only buffer in a buffer that does not
+ * free it. Slices share the reference count of this buffer, the mapping is released when the last reference is released.
+ */
+class MappedFileBuf extends CompositeByteBuf {
+    private final MappedByteBuffer mapping;
+
+    private MappedFileBuf(MappedByteBuffer mapping) {
+        super(ByteBufAllocator.DEFAULT, true, 1, Unpooled.wrappedBuffer(mapping));
+        this.mapping = mapping;
+    }
+
+    /**
+     * Map the first {@code size} bytes of the file.
+     */
+    static MappedFileBuf map(FileChannel fc, int size) throws IOException {
+        return new MappedFileBuf(fc.map(FileChannel.MapMode.READ_ONLY, 0, size));
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    protected void deallocate() {
+        super.deallocate();
+        PlatformDependent.freeDirectBuffer(mapping);
+    }
+}
@@ -0,0 +1,81 @@
+package org.daojun.neutron.storage.internal;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * A small file replaced atomically, by writing a temporary file, forcing it, then renaming it over the file.
+ * <p>
+ * Layout: magic number, version, length of the payload, the payload, and the CRC32C of the preceding bytes.
+ */
+class MetadataFile {
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 3;
+
+    private final File file;
+    private final File tmp;
+    private final int magic;
+
+    MetadataFile(String directory, String name, int magic) {
+        this.file = FileUtils.getFile(directory, name);
+        this.tmp = FileUtils.getFile(directory, name + TMP_SUFFIX);
+        this.magic = magic;
+    }
+
+    /**
+     * @return the payload, or null if the file does not exist
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    synchronized ByteBuffer read() throws IOException {
+        FileUtils.deleteQuietly(tmp);
+        ByteBuffer b;
+        try {
+            b = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        if (b.remaining() < HEADER_SIZE + 4 || b.getInt(0) != magic || b.getInt(4) != VERSION
+                || b.remaining() != HEADER_SIZE + (long) b.getInt(8) + 4
+                || checksum(b.slice(0, b.remaining() - 4)) != b.getInt(b.remaining() - 4)) {
+            throw new IOException("Metadata file " + file + " is corrupted");
+        }
+        return b.slice(HEADER_SIZE, b.getInt(8));
+    }
+
+    synchronized void write(ByteBuffer payload) throws IOException {
+        var b = ByteBuffer.allocate(HEADER_SIZE + payload.remaining() + 4);
+        b.putInt(magic).putInt(VERSION).putInt(payload.remaining()).put(payload.duplicate());
+        b.putInt(checksum(b.duplicate().flip()));
+        b.flip();
+        FileUtils.forceMkdirParent(file);
+        try (var fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (b.hasRemaining()) {
+                fc.write(b);
+            }
+            fc.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    synchronized void delete() {
+        FileUtils.deleteQuietly(file);
+        FileUtils.deleteQuietly(tmp);
+    }
+
+    private static int checksum(ByteBuffer b) {
+        var crc = new CRC32C();
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+}
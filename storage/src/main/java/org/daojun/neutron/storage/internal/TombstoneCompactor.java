@@ -0,0 +1,189 @@
+package org.daojun.neutron.storage.internal;
+
+import org.daojun.neutron.common.utils.NumberUtils;
+import org.rocksdb.CompactRangeOptions;
+import org.rocksdb.LiveFileMetaData;
+import org.rocksdb.Range;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.SizeApproximationFlag;
+import org.rocksdb.Slice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the range tombstones of deleted ledgers in the entry index, and compacts only their key ranges, so that
+ * tombstones do not pile up until a full compaction. Adjacent ledger ids are compacted as one range, and a run stops
+ * once its I/O budget is used, the rest is left for the next run.
+ */
+public class TombstoneCompactor {
+    private final int maxLedgers;
+    // Deleted ledgers whose range is not compacted yet, sorted
+    private final ConcurrentSkipListSet<Long> deleted = new ConcurrentSkipListSet<>();
+    private final LongAdder tombstones = new LongAdder();
+    private final LongAdder compactedTombstones = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder compactedBytes = new LongAdder();
+    private final LongAdder compactionNanos = new LongAdder();
+
+    /**
+     * @param maxLedgers the max number of deleted ledgers compacted by one run
+     */
+    TombstoneCompactor(int maxLedgers) {
+        this.maxLedgers = Math.max(maxLedgers, 1);
+    }
+
+    void deleted(long ledgerId) {
+        deleted.add(ledgerId);
+        tombstones.increment();
+    }
+
+    /**
+     * Forget the ledgers compacted by a full compaction.
+     */
+    void compacted(Collection<Long> ledgerIds) {
+        for (var ledgerId : ledgerIds) {
+            if (deleted.remove(ledgerId)) {
+                compactedTombstones.increment();
+            }
+        }
+    }
+
+    List<Long> snapshot() {
+        return List.copyOf(deleted);
+    }
+
+    /**
+     * Compact the key ranges of the deleted ledgers, lowest ids first, at least one range even if it is larger than
+     * the budget.
+     *
+     * @param maxBytes the I/O budget, charged with the size of the files each compaction rewrites
+     * @return the number of ledgers compacted
+     */
+    int compact(RocksDB db, long maxBytes) throws RocksDBException {
+        var ledgerIds = new ArrayList<Long>(Math.min(maxLedgers, 64));
+        for (var it = deleted.iterator(); it.hasNext() && ledgerIds.size() < maxLedgers; ) {
+            ledgerIds.add(it.next());
+        }
+        var compacted = 0;
+        long bytes = 0;
+        try (var options = new CompactRangeOptions()
+                // Tombstones are only dropped at the last level.
+                .setBottommostLevelCompaction(CompactRangeOptions.BottommostLevelCompaction.kForce)
+                .setExclusiveManualCompaction(false)) {
+            for (int i = 0; i < ledgerIds.size(); ) {
+                var j = i;
+                while (j + 1 < ledgerIds.size() && ledgerIds.get(j + 1) == ledgerIds.get(j) + 1) {
+                    j++;
+                }
+                var begin = key(ledgerIds.get(i), 0);
+                var end = key(ledgerIds.get(j), Integer.MAX_VALUE);
+                var size = compactionSize(db, begin, end);
+                if (compacted > 0 && bytes + size > maxBytes) {
+                    break;
+                }
+                var start = System.nanoTime();
+                db.compactRange(db.getDefaultColumnFamily(), begin, end, options);
+                compactionNanos.add(System.nanoTime() - start);
+                compactions.increment();
+                compactedBytes.add(size);
+                bytes += size;
+                for (int k = i; k <= j; k++) {
+                    deleted.remove(ledgerIds.get(k));
+                    compactedTombstones.increment();
+                }
+                compacted += j - i + 1;
+                i = j + 1;
+            }
+        }
+        return compacted;
+    }
+
+    private static byte[] key(long ledgerId, int entryId) {
+        var key = new byte[LongIntBytes.SIZE];
+        NumberUtils.putLong(key, 0, ledgerId);
+        NumberUtils.putInt(key, 8, entryId);
+        return key;
+    }
+
+    /**
+     * The bytes a forced compaction of the range rewrites, rather than the size of the range itself: the range in the
+     * memtables, flushed first, and every file that overlaps the range at each level, the range widening to the keys
+     * of the files picked at the level above.
+     */
+    private static long compactionSize(RocksDB db, byte[] begin, byte[] end) {
+        long size;
+        try (var from = new Slice(begin); var to = new Slice(end)) {
+            size = db.getApproximateSizes(List.of(new Range(from, to)), SizeApproximationFlag.INCLUDE_MEMTABLES)[0];
+        }
+        var files = new ArrayList<>(db.getLiveFilesMetaData());
+        files.sort(Comparator.comparingInt(LiveFileMetaData::level));
+        var level = -1;
+        var from = begin;
+        var to = end;
+        var nextFrom = begin;
+        var nextTo = end;
+        for (var file : files) {
+            if (file.level() != level) {
+                level = file.level();
+                from = nextFrom;
+                to = nextTo;
+            }
+            if (Arrays.compareUnsigned(file.largestKey(), from) < 0
+                    || Arrays.compareUnsigned(file.smallestKey(), to) > 0) {
+                continue;
+            }
+            size += file.size();
+            if (Arrays.compareUnsigned(file.smallestKey(), nextFrom) < 0) {
+                nextFrom = file.smallestKey();
+            }
+            if (Arrays.compareUnsigned(file.largestKey(), nextTo) > 0) {
+                nextTo = file.largestKey();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of ledgers deleted since the start
+     */
+    public long tombstoneCount() {
+        return tombstones.sum();
+    }
+
+    /**
+     * @return the number of deleted ledgers whose range is not compacted yet
+     */
+    public long pendingTombstoneCount() {
+        return deleted.size();
+    }
+
+    public long compactedTombstoneCount() {
+        return compactedTombstones.sum();
+    }
+
+    /**
+     * @return the number of key ranges compacted
+     */
+    public long compactionCount() {
+        return compactions.sum();
+    }
+
+    /**
+     * @return the size of the files rewritten by the compactions
+     */
+    public long compactedBytes() {
+        return compactedBytes.sum();
+    }
+
+    public long compactionTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compactionNanos.sum());
+    }
+}
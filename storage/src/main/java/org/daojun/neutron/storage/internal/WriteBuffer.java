@@ -0,0 +1,186 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only write buffer of an entry file.
+ * A frame is the 4 bytes length, the 4 bytes checksum and the entry. Frames are copied into pooled direct chunks,
+ * and each chunk covers a fixed range of file positions, so unflushed entries are sliced from the chunks, and
+ * flushed by writing the chunks straight to the file.
+ * Appends must be serialized by the caller, and so must flushes.
+ */
+class WriteBuffer {
+    static final int FRAME_HEADER_SIZE = 4 + 4;
+
+    private final ByteBufAllocator allocator;
+    private final int chunkSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<ByteBuf> chunks = new ArrayList<>();
+    // The file position of the first chunk
+    private long base;
+    // The file position after the last appended frame
+    private volatile long tail;
+    // The file position before which the frames are flushed and released
+    private volatile long released;
+
+    WriteBuffer(ByteBufAllocator allocator, int chunkSize, long start) {
+        this.allocator = allocator;
+        this.chunkSize = chunkSize;
+        this.base = start;
+        this.tail = start;
+        this.released = start;
+    }
+
+    long tail() {
+        return tail;
+    }
+
+    boolean isEmpty() {
+        return released == tail;
+    }
+
+    /**
+     * Copy the frame of the entry to the tail.
+     *
+     * @return the offset of the entry
+     */
+    long append(ByteBuf entry, int checksum) {
+        var offset = tail;
+        var size = entry.readableBytes();
+        lock.writeLock().lock();
+        try {
+            var end = offset + FRAME_HEADER_SIZE + size;
+            if (chunks.isEmpty()) {
+                base = offset;
+            }
+            while (base + (long) chunks.size() * chunkSize < end) {
+                chunks.add(allocator.directBuffer(chunkSize, chunkSize));
+            }
+            setInt(offset, size);
+            setInt(offset + 4, checksum);
+            copy(offset + FRAME_HEADER_SIZE, entry, entry.readerIndex(), size);
+            tail = end;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return offset;
+    }
+
+    private int chunkIndex(long position) {
+        return (int) ((position - base) / chunkSize);
+    }
+
+    private int chunkOffset(long position) {
+        return (int) ((position - base) % chunkSize);
+    }
+
+    private void setInt(long position, int value) {
+        var index = chunkOffset(position);
+        if (index + 4 <= chunkSize) {
+            chunks.get(chunkIndex(position)).setInt(index, value);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                chunks.get(chunkIndex(position + i)).setByte(chunkOffset(position + i), value >>> (24 - (i << 3)));
+            }
+        }
+    }
+
+    private short getUnsignedByte(long position) {
+        return chunks.get(chunkIndex(position)).getUnsignedByte(chunkOffset(position));
+    }
+
+    private void copy(long position, ByteBuf src, int srcIndex, int length) {
+        while (length > 0) {
+            var index = chunkOffset(position);
+            var n = Math.min(length, chunkSize - index);
+            chunks.get(chunkIndex(position)).setBytes(index, src, srcIndex, n);
+            position += n;
+            srcIndex += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Slice the entry at the offset, a frame that crosses chunks is returned as a composite buffer.
+     *
+     * @return the retained slice, or null if the entry is not in the buffer
+     */
+    ByteBuf slice(long offset) {
+        lock.readLock().lock();
+        try {
+            if (offset < released || offset + FRAME_HEADER_SIZE > tail) {
+                return null;
+            }
+            var size = 0;
+            for (int i = 0; i < 4; i++) {
+                size = size << 8 | getUnsignedByte(offset + i);
+            }
+            var position = offset + FRAME_HEADER_SIZE;
+            var index = chunkOffset(position);
+            var chunk = chunks.get(chunkIndex(position));
+            if (index + size <= chunkSize) {
+                return chunk.retainedSlice(index, size);
+            }
+            var composite = Unpooled.compositeBuffer();
+            var remaining = size;
+            while (remaining > 0) {
+                index = chunkOffset(position);
+                var n = Math.min(remaining, chunkSize - index);
+                composite.addComponent(true, chunks.get(chunkIndex(position)).retainedSlice(index, n));
+                position += n;
+                remaining -= n;
+            }
+            return composite;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Views of the frames between the positions, to be written to the file by one gathering write.
+     */
+    ByteBuffer[] nioBuffers(long from, long to) {
+        lock.readLock().lock();
+        try {
+            var buffers = new ArrayList<ByteBuffer>();
+            var position = from;
+            while (position < to) {
+                var index = chunkOffset(position);
+                var n = (int) Math.min(to - position, chunkSize - index);
+                buffers.add(chunks.get(chunkIndex(position)).nioBuffer(index, n));
+                position += n;
+            }
+            return buffers.toArray(new ByteBuffer[0]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Release the chunks whose frames are all flushed before the position.
+     */
+    void release(long position) {
+        lock.writeLock().lock();
+        try {
+            while (!chunks.isEmpty() && (base + chunkSize <= position || position == tail)) {
+                chunks.remove(0).release();
+                base += chunkSize;
+            }
+            released = position;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void close() {
+        release(tail);
+    }
+}
@@ -0,0 +1,112 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.buffer.ByteBuf;
+import org.daojun.neutron.storage.LongLongPair;
+import org.daojun.neutron.storage.Position;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The entries of an entry logger that are not flushed yet, sorted by ledger id, then entry id, so that the flush
+ * writes the entries of each ledger contiguously. The buffers are released only by {@link #release}, once no reader
+ * can see the cache.
+ */
+class WriteCache {
+    private final ConcurrentSkipListMap<Position, Entry> entries = new ConcurrentSkipListMap<>(Position::compareTo);
+    private final AtomicLong bytes = new AtomicLong();
+    // Entries replaced after their journal append failed, released with the cache
+    private final List<Entry> replaced = new ArrayList<>();
+
+    static class Entry {
+        // The key of the entry followed by its payload
+        final ByteBuf buffer;
+        // The position of the entry in the journal
+        final CompletableFuture<LongLongPair> journal = new CompletableFuture<>();
+
+        Entry(ByteBuf buffer) {
+            this.buffer = buffer;
+        }
+
+        boolean isFailed() {
+            return journal.isCompletedExceptionally();
+        }
+    }
+
+    /**
+     * Add an entry, it replaces the entry at the same position only if the journal append of that one failed.
+     *
+     * @return the entry, or null if the position is taken
+     */
+    Entry put(Position position, ByteBuf buffer) {
+        var entry = new Entry(buffer);
+        while (true) {
+            var previous = entries.putIfAbsent(position, entry);
+            if (previous == null) {
+                break;
+            }
+            if (!previous.isFailed()) {
+                return null;
+            }
+            if (entries.replace(position, previous, entry)) {
+                synchronized (replaced) {
+                    replaced.add(previous);
+                }
+                break;
+            }
+        }
+        bytes.addAndGet(buffer.readableBytes());
+        return entry;
+    }
+
+    /**
+     * @return the payload of the entry, retained, or null if it is not cached
+     */
+    ByteBuf get(Position position) {
+        var entry = entries.get(position);
+        if (entry == null || entry.isFailed()) {
+            return null;
+        }
+        var buffer = entry.buffer;
+        return buffer.retainedSlice(buffer.readerIndex() + EntryIndexRecovery.KEY_SIZE,
+                buffer.readableBytes() - EntryIndexRecovery.KEY_SIZE);
+    }
+
+    /**
+     * @return the last cached entry id of the ledger, or -1 if none
+     */
+    int lastEntryId(long ledgerId) {
+        var last = entries.floorKey(DefaultPosition.create(ledgerId, Integer.MAX_VALUE));
+        return last != null && last.ledgerId() == ledgerId ? last.entryId() : -1;
+    }
+
+    NavigableMap<Position, Entry> entries() {
+        return entries;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    void release() {
+        entries.values().forEach(entry -> entry.buffer.release());
+        entries.clear();
+        synchronized (replaced) {
+            replaced.forEach(entry -> entry.buffer.release());
+            replaced.clear();
+        }
+        bytes.set(0);
+    }
+}
@@ -3,11 +3,23 @@ package org.daojun.neutron.storage;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import org.daojun.neutron.storage.internal.DefaultDirectory;
+import org.daojun.neutron.storage.internal.DefaultEntryFile;
+import org.daojun.neutron.storage.internal.IoExecutors;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 
 @Test
@@ -22,7 +34,7 @@ public class DefaultDirectoryTest {
 
         var latch = new CountDownLatch(10);
 
-//        List<LongIntPair> positions = Collections.synchronizedList(new ArrayList<>());
+//        List<LongLongPair> positions = Collections.synchronizedList(new ArrayList<>());
 
         long start = System.currentTimeMillis();
         for (int a = 0; a < 100; a++) {
@@ -58,4 +70,362 @@ public class DefaultDirectoryTest {
 
         System.out.println();
     }
+
+    @Test
+    public void testRecycleFile() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setMaxEntryFileSize(64 * 1024);
+        config.setMaxRecycledEntryFiles(2);
+        config.setEntryFilePreallocateEnabled(true);
+        var directory = new DefaultDirectory(config, "/tmp/neutron-test/recycle", new AtomicLong(0),
+                Executors.newScheduledThreadPool(1));
+        directory.asyncInitialize().get();
+        try {
+            var positions = new ArrayList<LongLongPair>();
+            for (int i = 0; i < 256; i++) {
+                ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(1024);
+                buf.writerIndex(1024);
+                positions.add(directory.asyncAddEntry(buf).get());
+                buf.release();
+            }
+            Assert.assertTrue(directory.entryFiles().size() > 2);
+
+            var pool = new File("/tmp/neutron-test/recycle/pool");
+            var first = positions.get(0).f1;
+            directory.asyncFlush().get();
+            directory.asyncDeleteFile(first).get();
+            Assert.assertFalse(directory.containsFile(first));
+            Assert.assertFalse(new File("/tmp/neutron-test/recycle/" + first).exists());
+            Assert.assertTrue(Objects.requireNonNull(pool.list()).length >= 1);
+
+            // The current file is not sealed.
+            var last = directory.lastEntryFile().id();
+            Assert.assertThrows(ExecutionException.class, () -> directory.asyncDeleteFile(last).get());
+
+            // Rolling takes over the spare files.
+            for (int i = 0; i < 256; i++) {
+                ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(1024);
+                buf.writerIndex(1024);
+                positions.add(directory.asyncAddEntry(buf).get());
+                buf.release();
+            }
+            for (int i = 64; i < positions.size(); i++) {
+                var buf = directory.asyncReadEntry(positions.get(i)).get();
+                Assert.assertEquals(buf.readableBytes(), 1024);
+                buf.release();
+            }
+        } finally {
+            directory.asyncDelete().get();
+        }
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setMaxEntryFileSize(64 * 1024);
+        var directory = new DefaultDirectory(config, "/tmp/neutron-test/manifest", new AtomicLong(0),
+                Executors.newScheduledThreadPool(1));
+        directory.asyncInitialize().get();
+        var positions = new ArrayList<LongLongPair>();
+        for (int i = 0; i < 256; i++) {
+            ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(1024);
+            buf.writeInt(i).writerIndex(1024);
+            positions.add(directory.asyncAddEntry(buf).get());
+            buf.release();
+        }
+        directory.asyncClose().get();
+        Assert.assertTrue(new File("/tmp/neutron-test/manifest/MANIFEST").exists());
+
+        var reopened = new DefaultDirectory(config, "/tmp/neutron-test/manifest", new AtomicLong(0),
+                Executors.newScheduledThreadPool(1));
+        try {
+            reopened.asyncInitialize().get();
+            Assert.assertEquals(reopened.entryFiles().size(), directory.entryFiles().size());
+            Assert.assertEquals(reopened.used(), directory.used());
+            // The sealed files are not opened until they are read.
+            Field state = DefaultEntryFile.class.getDeclaredField("state");
+            state.setAccessible(true);
+            for (var file : reopened.entryFiles()) {
+                Assert.assertTrue(file.isReadOnly());
+                Assert.assertEquals(state.get(file).toString(), "NEW");
+            }
+            for (int i = 0; i < positions.size(); i++) {
+                var buf = reopened.asyncReadEntry(positions.get(i)).get();
+                Assert.assertEquals(buf.getInt(0), i);
+                buf.release();
+            }
+        } finally {
+            reopened.asyncDelete().get();
+        }
+    }
+
+    @Test
+    public void testChannelCache() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setMaxEntryFileSize(64 * 1024);
+        config.setMaxOpenSealedEntryFiles(2);
+        config.setSealedFileMmapEnabled(false);
+        var directory = new DefaultDirectory(config, "/tmp/neutron-test/channel", new AtomicLong(0),
+                Executors.newScheduledThreadPool(1));
+        directory.asyncInitialize().get();
+        try {
+            var positions = new ArrayList<LongLongPair>();
+            for (int i = 0; i < 512; i++) {
+                ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(1024);
+                buf.writeInt(i).writerIndex(1024);
+                positions.add(directory.asyncAddEntry(buf).get());
+                buf.release();
+            }
+            directory.asyncFlush().get();
+            Assert.assertTrue(directory.entryFiles().size() > 4);
+
+            // Concurrent reads across the files, while channels are evicted and reopened.
+            var executor = Executors.newFixedThreadPool(4);
+            var futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 4; t++) {
+                var first = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = first; i < positions.size(); i += 4) {
+                        var buf = directory.asyncReadEntry(positions.get(i)).join();
+                        Assert.assertEquals(buf.getInt(0), i);
+                        buf.release();
+                    }
+                }));
+            }
+            for (var future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            var cache = directory.channelCache();
+            Assert.assertTrue(cache.openChannels() <= 2);
+            Assert.assertTrue(cache.missCount() > 0);
+            Assert.assertTrue(cache.evictionCount() > 0);
+            Assert.assertTrue(cache.hitCount() > 0);
+        } finally {
+            directory.asyncDelete().get();
+        }
+    }
+
+    @Test
+    public void testChannelCacheMmap() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setMaxEntryFileSize(64 * 1024);
+        config.setMaxOpenSealedEntryFiles(1);
+        config.setSealedFileMmapEnabled(true);
+        var directory = new DefaultDirectory(config, "/tmp/neutron-test/channel-mmap", new AtomicLong(0),
+                Executors.newScheduledThreadPool(1));
+        directory.asyncInitialize().get();
+        try {
+            var positions = new ArrayList<LongLongPair>();
+            for (int i = 0; i < 256; i++) {
+                ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(1024);
+                buf.writeInt(i).writerIndex(1024);
+                positions.add(directory.asyncAddEntry(buf).get());
+                buf.release();
+            }
+            directory.asyncFlush().get();
+            Assert.assertTrue(directory.entryFiles().size() > 2);
+            var cache = directory.channelCache();
+            // The channels of the first sealed files are evicted before they are read.
+            Assert.assertTrue(cache.evictionCount() > 0);
+
+            // Each sealed file is mapped through a reopened channel on its first read.
+            for (int i = 0; i < positions.size(); i++) {
+                var buf = directory.asyncReadEntry(positions.get(i)).get();
+                Assert.assertEquals(buf.getInt(0), i);
+                buf.release();
+            }
+            Assert.assertTrue(cache.missCount() > 0);
+        } finally {
+            directory.asyncDelete().get();
+        }
+    }
+
+    @Test
+    public void testIoExecutors() throws Exception {
+        var completionThread = Executors.newSingleThreadExecutor();
+        var completions = new AtomicLong();
+        var config = new ManagedStorageConfig();
+        config.setMaxEntryFileSize(64 * 1024);
+        config.setGroupCommitEnabled(true);
+        config.setSealedFileMmapEnabled(false);
+        config.setIoVirtualThreadsEnabled(true);
+        config.setIoCompletionExecutor(task -> {
+            completions.incrementAndGet();
+            completionThread.execute(task);
+        });
+        var io = IoExecutors.create(config);
+        var directory = new DefaultDirectory(config, "/tmp/neutron-test/io", new AtomicLong(0),
+                Executors.newScheduledThreadPool(1), io);
+        directory.asyncInitialize().get();
+        try {
+            var positions = new ArrayList<LongLongPair>();
+            for (int i = 0; i < 256; i++) {
+                ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(1024);
+                buf.writeInt(i).writerIndex(1024);
+                positions.add(directory.asyncAddEntry(buf).get());
+                buf.release();
+            }
+            Assert.assertTrue(directory.entryFiles().size() > 2);
+            // Group commit completes the adds after the fsync, on the completion executor.
+            Assert.assertTrue(completions.get() >= positions.size());
+
+            // Flushed entries are read from the channel on the read pool.
+            var before = completions.get();
+            for (int i = 0; i < positions.size(); i++) {
+                var buf = directory.asyncReadEntry(positions.get(i)).get();
+                Assert.assertEquals(buf.getInt(0), i);
+                buf.release();
+            }
+            Assert.assertTrue(completions.get() - before >= positions.size());
+        } finally {
+            directory.asyncDelete().get();
+            io.close();
+            completionThread.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentAppends() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setMaxEntryFileSize(256 * 1024);
+        // A small queue, so that appends are rejected while the writer is behind.
+        config.setAppendQueueCapacity(16);
+        config.setAppendBatchMaxEntries(8);
+        var directory = new DefaultDirectory(config, "/tmp/neutron-test/append", new AtomicLong(0),
+                Executors.newScheduledThreadPool(1));
+        directory.asyncInitialize().get();
+        try {
+            var executor = Executors.newFixedThreadPool(8);
+            var futures = new ArrayList<Future<List<LongLongPair>>>();
+            for (int t = 0; t < 8; t++) {
+                var producer = t;
+                futures.add(executor.submit(() -> {
+                    var positions = new ArrayList<LongLongPair>();
+                    var pending = new ArrayList<CompletableFuture<LongLongPair>>();
+                    for (int i = 0; i < 512; i++) {
+                        ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(512);
+                        buf.writeInt(producer).writeInt(i).writerIndex(512);
+                        CompletableFuture<LongLongPair> f;
+                        // A rejected append is retried before the next one, to keep the appends in order.
+                        while ((f = directory.asyncAddEntry(buf)).isCompletedExceptionally()
+                                && f.exceptionNow() instanceof RejectedExecutionException) {
+                            Thread.yield();
+                        }
+                        pending.add(f);
+                        // The writer keeps its own reference.
+                        buf.release();
+                    }
+                    for (var f : pending) {
+                        positions.add(f.join());
+                    }
+                    return positions;
+                }));
+            }
+            var all = new HashSet<String>();
+            var positions = new ArrayList<List<LongLongPair>>();
+            for (var future : futures) {
+                var list = future.get();
+                // The appends of one producer are written in order.
+                for (int i = 1; i < list.size(); i++) {
+                    var prev = list.get(i - 1);
+                    var next = list.get(i);
+                    Assert.assertTrue(next.f1 > prev.f1 || (next.f1 == prev.f1 && next.f2 > prev.f2));
+                }
+                list.forEach(p -> all.add(p.f1 + ":" + p.f2));
+                positions.add(list);
+            }
+            executor.shutdown();
+            Assert.assertEquals(all.size(), 8 * 512);
+            Assert.assertTrue(directory.entryFiles().size() > 2);
+
+            for (int t = 0; t < positions.size(); t++) {
+                for (int i = 0; i < positions.get(t).size(); i++) {
+                    var buf = directory.asyncReadEntry(positions.get(t).get(i)).get();
+                    Assert.assertEquals(buf.getInt(0), t);
+                    Assert.assertEquals(buf.getInt(4), i);
+                    buf.release();
+                }
+            }
+
+        } finally {
+            directory.asyncDelete().get();
+        }
+    }
+
+    @Test
+    public void testCloseWithPendingAppends() throws Exception {
+        var config = new ManagedStorageConfig();
+        var directory = new DefaultDirectory(config, "/tmp/neutron-test/close", new AtomicLong(0),
+                Executors.newScheduledThreadPool(1));
+        directory.asyncInitialize().get();
+        var pending = new ArrayList<CompletableFuture<LongLongPair>>();
+        for (int i = 0; i < 1024; i++) {
+            ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(512);
+            buf.writeInt(i).writerIndex(512);
+            pending.add(directory.asyncAddEntry(buf));
+            buf.release();
+        }
+        // Appends published before closing are still written.
+        directory.asyncClose().get();
+        ByteBuf closed = ByteBufAllocator.DEFAULT.buffer(8);
+        Assert.assertTrue(directory.asyncAddEntry(closed.writeLong(0)).isCompletedExceptionally());
+        closed.release();
+
+        var reopened = new DefaultDirectory(config, "/tmp/neutron-test/close", new AtomicLong(0),
+                Executors.newScheduledThreadPool(1));
+        try {
+            reopened.asyncInitialize().get();
+            for (int i = 0; i < pending.size(); i++) {
+                var buf = reopened.asyncReadEntry(pending.get(i).get()).get();
+                Assert.assertEquals(buf.getInt(0), i);
+                buf.release();
+            }
+        } finally {
+            reopened.asyncDelete().get();
+        }
+    }
+
+    @Test
+    public void testRoller() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setMaxEntryFileSize(64 * 1024);
+        // Two directories with the same file ids roll independently.
+        var directories = new ArrayList<DefaultDirectory>();
+        for (int d = 0; d < 2; d++) {
+            var directory = new DefaultDirectory(config, "/tmp/neutron-test/roll" + d, new AtomicLong(0),
+                    Executors.newScheduledThreadPool(1));
+            directory.asyncInitialize().get();
+            directories.add(directory);
+        }
+        for (int i = 0; i < 256; i++) {
+            for (var directory : directories) {
+                ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(1024);
+                buf.writerIndex(1024);
+                directory.asyncAddEntry(buf).get();
+                buf.release();
+            }
+        }
+        for (var directory : directories) {
+            Assert.assertTrue(directory.entryFiles().size() > 2);
+            // The next file is created ahead, but is not a file of the directory until the roll.
+            var next = new File(directory.path(), String.valueOf(directory.lastEntryFile().id() + 1));
+            for (int i = 0; i < 100 && !next.exists(); i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(next.exists());
+            Assert.assertFalse(directory.containsFile(directory.lastEntryFile().id() + 1));
+
+            var files = directory.entryFiles().size();
+            directory.asyncClose().get();
+            // The unused next file is not left behind.
+            Assert.assertFalse(next.exists());
+            var reopened = new DefaultDirectory(config, directory.path(), new AtomicLong(0),
+                    Executors.newScheduledThreadPool(1));
+            reopened.asyncInitialize().get();
+            Assert.assertEquals(reopened.entryFiles().size(), files);
+            reopened.asyncDelete().get();
+        }
+    }
 }
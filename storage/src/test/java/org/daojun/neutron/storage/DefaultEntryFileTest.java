@@ -7,10 +7,18 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Test
 @SuppressWarnings("unchecked")
@@ -23,15 +31,15 @@ public class DefaultEntryFileTest {
         entryFile.asyncInitialize().get();
 
 
-        var offsets = new ArrayList<Integer>();
+        var offsets = new ArrayList<Long>();
         for (int i = 0; i < 100; i++) {
             ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(1024);
             for (int j = 0; j < 128; j++) {
                 buf.writeLong(i);
             }
-            int offset = entryFile.asyncAddEntry(buf).get();
+            long offset = entryFile.asyncAddEntry(buf).get();
             offsets.add(offset);
-            Assert.assertEquals(offset, 12 + i * 1028L);
+            Assert.assertEquals(offset, 24 + i * 1032L);
         }
 
         // read 100 times
@@ -60,14 +68,13 @@ public class DefaultEntryFileTest {
 
         Class<?> clazz = entryFile.getClass();
         Field flushed = clazz.getDeclaredField("flushed");
-        Field buffer = clazz.getDeclaredField("buffer");
+        Field cached = clazz.getDeclaredField("cached");
         flushed.setAccessible(true);
-        buffer.setAccessible(true);
-        AtomicInteger flushObj = (AtomicInteger) flushed.get(entryFile);
-        Assert.assertEquals(flushObj.get(), 1028 * 100 + 12);
-        @SuppressWarnings("unchecked")
-        Map<Integer, ByteBuf> bufMap = (Map<Integer, ByteBuf>) buffer.get(entryFile);
-        Assert.assertEquals(bufMap.size(), 0);
+        cached.setAccessible(true);
+        AtomicLong flushObj = (AtomicLong) flushed.get(entryFile);
+        Assert.assertEquals(flushObj.get(), 1032 * 100 + 24);
+        AtomicInteger cachedObj = (AtomicInteger) cached.get(entryFile);
+        Assert.assertEquals(cachedObj.get(), 0);
 
         for (int i = 0; i < 100; i++) {
             ByteBuf buf = entryFile.asyncReadEntry(offsets.get(i)).get();
@@ -85,6 +92,9 @@ public class DefaultEntryFileTest {
         // read 100 times
         for (int i = 0; i < 100; i++) {
             ByteBuf buf = entryFile0.asyncReadEntry(offsets.get(i)).get();
+            // Served from the mapping of the sealed file
+            Assert.assertTrue(buf.isReadOnly());
+            Assert.assertTrue(buf.isDirect());
             for (int j = 0; j < 128; j++) {
                 Assert.assertEquals(buf.readLong(), i);
             }
@@ -105,4 +115,310 @@ public class DefaultEntryFileTest {
         }
     }
 
+    @Test
+    public void testGroupCommit() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setGroupCommitEnabled(true);
+        config.setGroupCommitMaxBytes(64 * 1028);
+        config.setGroupCommitMaxDelayMicros(500);
+        var entryFile = new DefaultEntryFile(config, "/tmp/entry/", 23, Executors.newScheduledThreadPool(1));
+        try {
+            entryFile.asyncInitialize().get();
+
+            var futures = new ArrayList<CompletableFuture<Long>>();
+            for (int i = 0; i < 100; i++) {
+                ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(1024);
+                for (int j = 0; j < 128; j++) {
+                    buf.writeLong(i);
+                }
+                futures.add(entryFile.asyncAddEntry(buf));
+                buf.release();
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+            Field flushed = entryFile.getClass().getDeclaredField("flushed");
+            flushed.setAccessible(true);
+            // All the acknowledged entries are on disk.
+            Assert.assertEquals(((AtomicLong) flushed.get(entryFile)).get(), 1032 * 100 + 24);
+            for (int i = 0; i < 100; i++) {
+                Assert.assertEquals(futures.get(i).get().longValue(), 24 + i * 1032L);
+            }
+        } finally {
+            entryFile.asyncDelete().get();
+        }
+    }
+
+    @Test
+    public void testReadEntries() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setEntryFileReadaheadBytes(16 * 1028);
+        // Frames and their length prefixes cross the chunks of the write buffer.
+        config.setWriteBufferChunkSize(4001);
+        var entryFile = new DefaultEntryFile(config, "/tmp/entry/", 24, Executors.newScheduledThreadPool(1));
+        try {
+            entryFile.asyncInitialize().get();
+            for (int i = 0; i < 100; i++) {
+                ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(1024);
+                for (int j = 0; j < 128; j++) {
+                    buf.writeLong(i);
+                }
+                entryFile.asyncAddEntry(buf).get();
+                buf.release();
+            }
+
+            // Read from the buffer, then from the file channel and the readahead window.
+            for (int round = 0; round < 2; round++) {
+                long offset = 24;
+                int i = 0;
+                while (i < 100) {
+                    List<ByteBuf> entries = entryFile.asyncReadEntries(offset, 7, 5 * 1024).get();
+                    Assert.assertTrue(entries.size() <= 5);
+                    for (var buf : entries) {
+                        Assert.assertEquals(buf.readableBytes(), 1024);
+                        Assert.assertEquals(buf.getLong(0), i++);
+                        offset += buf.readableBytes() + 8;
+                        buf.release();
+                    }
+                }
+                entryFile.asyncFlush().get();
+            }
+        } finally {
+            entryFile.asyncDelete().get();
+        }
+    }
+
+    @Test
+    public void testDirectIo() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setEntryFileDirectIoEnabled(true);
+        var entryFile = new DefaultEntryFile(config, "/tmp/entry/", 25, Executors.newScheduledThreadPool(1));
+        entryFile.asyncInitialize().get();
+        // Odd sizes, flushed one by one, so that partial blocks are written again, and a frame larger than
+        // the aligned buffer.
+        var offsets = new ArrayList<Long>();
+        for (int i = 0; i < 50; i++) {
+            var size = i == 25 ? 1536 * 1024 : 1000 + i;
+            ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(size);
+            buf.writerIndex(size);
+            buf.setInt(0, i);
+            offsets.add(entryFile.asyncAddEntry(buf).get());
+            buf.release();
+            if (i % 3 == 0) {
+                entryFile.asyncFlush().get();
+            }
+        }
+        entryFile.asyncClose().get();
+        Assert.assertEquals(new java.io.File(entryFile.path()).length() % 4096, 0);
+
+        // The frames are readable with and without direct I/O.
+        for (var directIo : new boolean[]{true, false}) {
+            config.setEntryFileDirectIoEnabled(directIo);
+            config.setSealedFileMmapEnabled(false);
+            var reopened = new DefaultEntryFile(config, "/tmp/entry/", 25, Executors.newScheduledThreadPool(1));
+            reopened.asyncInitialize().get();
+            Assert.assertEquals(reopened.size(), entryFile.size());
+            for (int i = 0; i < 50; i++) {
+                ByteBuf buf = reopened.asyncReadEntry(offsets.get(i)).get();
+                Assert.assertEquals(buf.readableBytes(), i == 25 ? 1536 * 1024 : 1000 + i);
+                Assert.assertEquals(buf.getInt(0), i);
+                buf.release();
+            }
+            List<ByteBuf> entries = reopened.asyncReadEntries(offsets.get(0), 10, 8 * 1024).get();
+            Assert.assertEquals(entries.size(), 8);
+            for (int i = 0; i < entries.size(); i++) {
+                Assert.assertEquals(entries.get(i).getInt(0), i);
+                entries.get(i).release();
+            }
+            if (directIo) {
+                reopened.asyncClose().get();
+            } else {
+                reopened.asyncDelete().get();
+            }
+        }
+    }
+
+    @Test
+    public void testVersion1File() throws Exception {
+        // Header of version 1: magic, 4 bytes wrote and flushed positions
+        var file = ByteBuffer.allocate(12 + 10 * 104);
+        file.putInt(0x12345678).putInt(file.capacity()).putInt(file.capacity());
+        for (int i = 0; i < 10; i++) {
+            file.putInt(100).putLong(i).position(file.position() + 92);
+        }
+        Files.createDirectories(Path.of("/tmp/entry/"));
+        Files.write(Path.of("/tmp/entry/26"), file.array());
+
+        var entryFile = new DefaultEntryFile(null, "/tmp/entry/", 26, Executors.newScheduledThreadPool(1));
+        try {
+            entryFile.asyncInitialize().get();
+            Assert.assertTrue(entryFile.isReadOnly());
+            Assert.assertEquals(entryFile.size(), file.capacity());
+            Assert.assertEquals(entryFile.asyncAddEntry(ByteBufAllocator.DEFAULT.buffer(8).writeLong(0)).get(), -1L);
+            List<ByteBuf> entries = entryFile.asyncReadEntries(12, 100, 1024 * 1024).get();
+            Assert.assertEquals(entries.size(), 10);
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(entries.get(i).readableBytes(), 100);
+                Assert.assertEquals(entries.get(i).getLong(0), i);
+                entries.get(i).release();
+            }
+        } finally {
+            entryFile.asyncDelete().get();
+        }
+    }
+
+    @Test
+    public void testRecoverTornTail() throws Exception {
+        var entryFile = new DefaultEntryFile(null, "/tmp/entry/", 27, Executors.newScheduledThreadPool(1));
+        entryFile.asyncInitialize().get();
+        var offsets = new ArrayList<Long>();
+        for (int i = 0; i < 10; i++) {
+            ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(100);
+            buf.writeLong(i).writerIndex(100);
+            offsets.add(entryFile.asyncAddEntry(buf).get());
+            buf.release();
+        }
+        entryFile.asyncClose().get();
+
+        // Crash: the header is checkpointed after entry 4, and entry 8 is torn.
+        try (var fc = FileChannel.open(Path.of(entryFile.path()), StandardOpenOption.WRITE)) {
+            fc.write(ByteBuffer.allocate(16).putLong(entryFile.size()).putLong(offsets.get(5)).flip(), 8);
+            fc.write(ByteBuffer.allocate(1).put((byte) 1).flip(), offsets.get(8) + 8 + 50);
+        }
+
+        var recovered = new DefaultEntryFile(null, "/tmp/entry/", 27, Executors.newScheduledThreadPool(1));
+        try {
+            recovered.asyncInitialize().get();
+            Assert.assertTrue(recovered.isReadOnly());
+            Assert.assertEquals(recovered.size(), (long) offsets.get(8));
+            Assert.assertEquals(new java.io.File(recovered.path()).length(), (long) offsets.get(8));
+            for (int i = 0; i < 8; i++) {
+                ByteBuf buf = recovered.asyncReadEntry(offsets.get(i)).get();
+                Assert.assertEquals(buf.getLong(0), i);
+                buf.release();
+            }
+        } finally {
+            recovered.asyncDelete().get();
+        }
+    }
+
+    private static long flushed(DefaultEntryFile entryFile) throws Exception {
+        Field flushed = entryFile.getClass().getDeclaredField("flushed");
+        flushed.setAccessible(true);
+        return ((AtomicLong) flushed.get(entryFile)).get();
+    }
+
+    private static void awaitFlushed(DefaultEntryFile entryFile, long timeoutMillis) throws Exception {
+        var deadline = System.currentTimeMillis() + timeoutMillis;
+        while (flushed(entryFile) < entryFile.size()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "not flushed in " + timeoutMillis + "ms");
+            Thread.sleep(5);
+        }
+    }
+
+    private static void addEntries(DefaultEntryFile entryFile, int count, int size) throws Exception {
+        for (int i = 0; i < count; i++) {
+            ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(size);
+            buf.writeLong(i).writerIndex(size);
+            entryFile.asyncAddEntry(buf).get();
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testFlushMaxDelay() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setFlushMaxDelayMillis(100);
+        config.setFlushMaxBytes(Integer.MAX_VALUE);
+        config.setFlushMaxEntries(Integer.MAX_VALUE);
+        var scheduler = Executors.newScheduledThreadPool(1);
+        var entryFile = new DefaultEntryFile(config, "/tmp/entry/", 28, scheduler);
+        try {
+            entryFile.asyncInitialize().get();
+            var start = System.nanoTime();
+            addEntries(entryFile, 1, 100);
+            Assert.assertTrue(flushed(entryFile) < entryFile.size());
+            awaitFlushed(entryFile, 5000);
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+        } finally {
+            entryFile.asyncDelete().get();
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFlushMaxBytes() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setFlushMaxDelayMillis(TimeUnit.HOURS.toMillis(1));
+        config.setFlushMaxBytes(4096);
+        config.setFlushMaxEntries(Integer.MAX_VALUE);
+        var scheduler = Executors.newScheduledThreadPool(1);
+        var entryFile = new DefaultEntryFile(config, "/tmp/entry/", 29, scheduler);
+        try {
+            entryFile.asyncInitialize().get();
+            addEntries(entryFile, 3, 1024);
+            Thread.sleep(200);
+            // Below the trigger, only the max delay would flush.
+            Assert.assertTrue(flushed(entryFile) < entryFile.size());
+            addEntries(entryFile, 1, 1024);
+            awaitFlushed(entryFile, 5000);
+        } finally {
+            entryFile.asyncDelete().get();
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFlushMaxEntries() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setFlushMaxDelayMillis(TimeUnit.HOURS.toMillis(1));
+        config.setFlushMaxBytes(Integer.MAX_VALUE);
+        config.setFlushMaxEntries(10);
+        var scheduler = Executors.newScheduledThreadPool(1);
+        var entryFile = new DefaultEntryFile(config, "/tmp/entry/", 30, scheduler);
+        try {
+            entryFile.asyncInitialize().get();
+            addEntries(entryFile, 9, 16);
+            Thread.sleep(200);
+            Assert.assertTrue(flushed(entryFile) < entryFile.size());
+            addEntries(entryFile, 1, 16);
+            awaitFlushed(entryFile, 5000);
+        } finally {
+            entryFile.asyncDelete().get();
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testProducerNeverSyncs() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setGroupCommitEnabled(true);
+        config.setGroupCommitMaxDelayMicros(1000);
+        // Back pressure on every few entries
+        config.setMaxEntryCacheOfOneFile(8 * 1024);
+        var scheduler = Executors.newScheduledThreadPool(1);
+        var entryFile = new DefaultEntryFile(config, "/tmp/entry/", 31, scheduler);
+        try {
+            entryFile.asyncInitialize().get();
+            var producer = Thread.currentThread();
+            var syncedByProducer = new AtomicInteger();
+            var futures = new ArrayList<CompletableFuture<Long>>();
+            for (int i = 0; i < 100; i++) {
+                ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(1024);
+                buf.writeLong(i).writerIndex(1024);
+                // Completed by the thread that ran the fsync.
+                futures.add(entryFile.asyncAddEntry(buf).whenComplete((offset, ex) -> {
+                    if (Thread.currentThread() == producer) {
+                        syncedByProducer.incrementAndGet();
+                    }
+                }));
+                buf.release();
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(syncedByProducer.get(), 0);
+            Assert.assertEquals(flushed(entryFile), entryFile.size());
+        } finally {
+            entryFile.asyncDelete().get();
+            scheduler.shutdownNow();
+        }
+    }
 }
@@ -1,10 +1,17 @@
 package org.daojun.neutron.storage;
 
+import org.apache.commons.io.FileUtils;
+import org.daojun.neutron.common.utils.NumberUtils;
 import org.daojun.neutron.storage.internal.DefaultEntryIndex;
 import org.daojun.neutron.storage.internal.DefaultPosition;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 @Test
 public class DefaultEntryIndexTest {
 
@@ -15,14 +22,25 @@ public class DefaultEntryIndexTest {
             entryIndex = new DefaultEntryIndex(null, "/tmp");
 
             for (int i = 0; i < 100; i++) {
-                entryIndex.asyncAdd(DefaultPosition.create(100L, i), LongIntPair.create(100L, i));
+                entryIndex.asyncAdd(DefaultPosition.create(100L, i), LongLongPair.create(100L, i + (1L << 32))).get();
             }
+            // A value written with 4 bytes offset
+            var key = new byte[12];
+            NumberUtils.putLong(key, 0, 100L);
+            NumberUtils.putInt(key, 8, 100);
+            var legacyValue = new byte[12];
+            NumberUtils.putLong(legacyValue, 0, 100L);
+            NumberUtils.putInt(legacyValue, 8, 100);
+            entryIndex.index.put(key, legacyValue);
+            var legacy = entryIndex.asyncGet(DefaultPosition.create(100L, 100)).get();
+            Assert.assertEquals(legacy.f1, 100L);
+            Assert.assertEquals(legacy.f2, 100L);
 
             for (int i = 0; i < 100; i++) {
                 var value = entryIndex.asyncGet(DefaultPosition.create(100L, i)).get();
                 Assert.assertNotNull(value);
                 Assert.assertEquals(value.f1, 100L);
-                Assert.assertEquals(value.f2, i);
+                Assert.assertEquals(value.f2, i + (1L << 32));
             }
 
             entryIndex.asyncDelete(100L).get();
@@ -40,4 +58,337 @@ public class DefaultEntryIndexTest {
 
     }
 
+    @Test
+    public void testWriteBehind() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setEntryIndexWriteBehindEnabled(true);
+        config.setEntryIndexWriteBehindMaxEntries(64);
+        var entryIndex = new DefaultEntryIndex(config, "/tmp/neutron-test/write-behind");
+        try {
+            for (int i = 0; i < 10; i++) {
+                entryIndex.asyncAdd(DefaultPosition.create(200L, i), LongLongPair.create(1L, i * 100L)).get();
+            }
+            // Read from the buffer, nothing is written yet.
+            var key = new byte[12];
+            NumberUtils.putLong(key, 0, 200L);
+            NumberUtils.putInt(key, 8, 0);
+            Assert.assertNull(entryIndex.index.get(key));
+            for (int i = 0; i < 10; i++) {
+                var value = entryIndex.asyncGet(DefaultPosition.create(200L, i)).get();
+                Assert.assertEquals(value.f1, 1L);
+                Assert.assertEquals(value.f2, i * 100L);
+            }
+
+            entryIndex.asyncFlush().get();
+            Assert.assertNotNull(entryIndex.index.get(key));
+
+            // A full buffer is committed before the flush.
+            for (int i = 10; i < 1000; i++) {
+                entryIndex.asyncAdd(DefaultPosition.create(200L, i), LongLongPair.create(2L, i)).get();
+            }
+            for (int i = 10; i < 1000; i++) {
+                var value = entryIndex.asyncGet(DefaultPosition.create(200L, i)).get();
+                Assert.assertEquals(value.f1, 2L);
+                Assert.assertEquals(value.f2, i);
+            }
+
+            // The buffered additions of a deleted ledger are not written afterwards.
+            entryIndex.asyncDelete(200L).get();
+            entryIndex.asyncFlush().get();
+            for (int i = 0; i < 1000; i += 100) {
+                Assert.assertNull(entryIndex.asyncGet(DefaultPosition.create(200L, i)).get());
+            }
+        } finally {
+            entryIndex.asyncClose().get();
+        }
+    }
+
+    @Test
+    public void testGetRange() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setEntryIndexWriteBehindEnabled(true);
+        config.setEntryIndexWriteBehindMaxEntries(1 << 20);
+        var path = "/tmp/neutron-test/range";
+        FileUtils.deleteDirectory(new File(path));
+        var entryIndex = new DefaultEntryIndex(config, path);
+        try {
+            for (int i = 0; i < 100; i += 2) {
+                entryIndex.asyncAdd(DefaultPosition.create(300L, i), LongLongPair.create(1L, i + (1L << 32))).get();
+                entryIndex.asyncAdd(DefaultPosition.create(301L, i), LongLongPair.create(9L, i)).get();
+            }
+            entryIndex.asyncFlush().get();
+            // Buffered additions fill the gaps and overwrite committed ones.
+            for (int i = 1; i < 100; i += 2) {
+                entryIndex.asyncAdd(DefaultPosition.create(300L, i), LongLongPair.create(2L, i)).get();
+            }
+            entryIndex.asyncAdd(DefaultPosition.create(300L, 10), LongLongPair.create(3L, 10)).get();
+            // A value written with 4 bytes offset
+            var key = new byte[12];
+            NumberUtils.putLong(key, 0, 300L);
+            NumberUtils.putInt(key, 8, 100);
+            var legacyValue = new byte[12];
+            NumberUtils.putLong(legacyValue, 0, 4L);
+            NumberUtils.putInt(legacyValue, 8, 100);
+            entryIndex.index.put(key, legacyValue);
+
+            var range = entryIndex.asyncGetRange(300L, 5, 100).get();
+            Assert.assertEquals(range.ledgerId, 300L);
+            Assert.assertEquals(range.size, 96);
+            for (int i = 0; i < range.size; i++) {
+                var entryId = i + 5;
+                Assert.assertEquals(range.entryIds[i], entryId);
+                if (entryId == 10) {
+                    Assert.assertEquals(range.fileIds[i], 3L);
+                } else if (entryId == 100) {
+                    Assert.assertEquals(range.fileIds[i], 4L);
+                    Assert.assertEquals(range.offsets[i], 100L);
+                } else if (entryId % 2 == 0) {
+                    Assert.assertEquals(range.fileIds[i], 1L);
+                    Assert.assertEquals(range.offsets[i], entryId + (1L << 32));
+                } else {
+                    Assert.assertEquals(range.fileIds[i], 2L);
+                    Assert.assertEquals(range.offsets[i], entryId);
+                }
+            }
+
+            // The range stops at the end of the ledger.
+            entryIndex.asyncFlush().get();
+            range = entryIndex.asyncGetRange(301L, 90, Integer.MAX_VALUE).get();
+            Assert.assertEquals(range.size, 5);
+            Assert.assertEquals(range.entryIds[4], 98);
+            Assert.assertEquals(entryIndex.asyncGetRange(302L, 0, 100).get().size, 0);
+            Assert.assertEquals(entryIndex.asyncGetRange(300L, 50, 40).get().size, 0);
+
+            // The last entry, by a reverse seek, or from the buffered additions.
+            Assert.assertEquals(entryIndex.asyncGetLastEntryId(301L).get(), 98);
+            Assert.assertEquals(entryIndex.asyncGetLastEntryId(302L).get(), -1);
+            entryIndex.asyncAdd(DefaultPosition.create(301L, 200), LongLongPair.create(9L, 200)).get();
+            Assert.assertEquals(entryIndex.asyncGetLastEntryId(301L).get(), 200);
+            entryIndex.asyncFlush().get();
+            Assert.assertEquals(entryIndex.asyncGetLastEntryId(301L).get(), 200);
+        } finally {
+            entryIndex.asyncClose().get();
+        }
+    }
+
+    @Test
+    public void testLookupCache() throws Exception {
+        var config = new ManagedStorageConfig();
+        // 128 slots
+        config.setEntryIndexLookupCacheSize(4096);
+        var entryIndex = new DefaultEntryIndex(config, "/tmp/neutron-test/lookup-cache");
+        try {
+            entryIndex.asyncDelete(400L).get();
+            var cache = entryIndex.getLookupCache();
+            for (int i = 0; i < 10; i++) {
+                entryIndex.asyncAdd(DefaultPosition.create(400L, i), LongLongPair.create(1L, i + (1L << 40))).get();
+            }
+            // Populated on add
+            for (int i = 0; i < 10; i++) {
+                var value = entryIndex.asyncGet(DefaultPosition.create(400L, i)).get();
+                Assert.assertEquals(value.f1, 1L);
+                Assert.assertEquals(value.f2, i + (1L << 40));
+            }
+            Assert.assertEquals(cache.hitCount(), 10);
+
+            // Evicted entries are read from RocksDB, and cached again.
+            for (int i = 10; i < 1000; i++) {
+                entryIndex.asyncAdd(DefaultPosition.create(400L, i), LongLongPair.create(2L, i)).get();
+            }
+            Assert.assertTrue(cache.evictionCount() > 0);
+            for (int i = 10; i < 1000; i++) {
+                var value = entryIndex.asyncGet(DefaultPosition.create(400L, i)).get();
+                Assert.assertEquals(value.f1, 2L);
+                Assert.assertEquals(value.f2, i);
+            }
+            Assert.assertTrue(cache.missCount() > 0);
+            var hits = cache.hitCount();
+            Assert.assertNotNull(entryIndex.asyncGet(DefaultPosition.create(400L, 999)).get());
+            Assert.assertEquals(cache.hitCount(), hits + 1);
+            Assert.assertTrue(cache.hitRate() > 0 && cache.hitRate() < 1);
+
+            entryIndex.asyncDelete(400L).get();
+            for (int i = 0; i < 1000; i += 7) {
+                Assert.assertNull(entryIndex.asyncGet(DefaultPosition.create(400L, i)).get());
+            }
+            // Cached again once re-added, after the deletion.
+            entryIndex.asyncAdd(DefaultPosition.create(400L, 0), LongLongPair.create(3L, 0)).get();
+            hits = cache.hitCount();
+            Assert.assertEquals(entryIndex.asyncGet(DefaultPosition.create(400L, 0)).get().f1, 3L);
+            Assert.assertEquals(cache.hitCount(), hits + 1);
+        } finally {
+            entryIndex.asyncClose().get();
+        }
+    }
+
+    @Test
+    public void testGetBatch() throws Exception {
+        var config = new ManagedStorageConfig();
+        config.setEntryIndexWriteBehindEnabled(true);
+        config.setEntryIndexWriteBehindMaxEntries(1 << 20);
+        config.setEntryIndexLookupCacheSize(0);
+        var entryIndex = new DefaultEntryIndex(config, "/tmp/neutron-test/get-batch");
+        try {
+            entryIndex.asyncDelete(500L).get();
+            for (int i = 0; i < 100; i++) {
+                // Files in reverse order of entry ids, offsets in reverse order within a file
+                entryIndex.asyncAdd(DefaultPosition.create(500L, i), LongLongPair.create(9 - i / 10, 1000 - i)).get();
+            }
+            entryIndex.asyncFlush().get();
+            // Buffered
+            entryIndex.asyncAdd(DefaultPosition.create(500L, 100), LongLongPair.create(0L, 0L)).get();
+            // A value written with 4 bytes offset
+            var key = new byte[12];
+            NumberUtils.putLong(key, 0, 500L);
+            NumberUtils.putInt(key, 8, 101);
+            var legacyValue = new byte[12];
+            NumberUtils.putLong(legacyValue, 0, 5L);
+            NumberUtils.putInt(legacyValue, 8, 7);
+            entryIndex.index.put(key, legacyValue);
+
+            var positions = new ArrayList<Position>();
+            for (int i = 0; i < 100; i += 3) {
+                positions.add(DefaultPosition.create(500L, i));
+            }
+            positions.add(DefaultPosition.create(500L, 100));
+            positions.add(DefaultPosition.create(500L, 101));
+            positions.add(DefaultPosition.create(500L, 1000));
+            positions.add(DefaultPosition.create(501L, 0));
+            var locations = entryIndex.asyncGetBatch(positions).get();
+            Assert.assertEquals(locations.size, 36);
+            for (int i = 0; i < locations.size; i++) {
+                var position = locations.positions[i];
+                if (position.entryId() == 100) {
+                    Assert.assertEquals(locations.fileIds[i], 0L);
+                } else if (position.entryId() == 101) {
+                    Assert.assertEquals(locations.fileIds[i], 5L);
+                    Assert.assertEquals(locations.offsets[i], 7L);
+                } else {
+                    Assert.assertEquals(locations.fileIds[i], 9 - position.entryId() / 10);
+                    Assert.assertEquals(locations.offsets[i], 1000 - position.entryId());
+                }
+                if (i > 0) {
+                    Assert.assertTrue(locations.fileIds[i - 1] < locations.fileIds[i]
+                            || (locations.fileIds[i - 1] == locations.fileIds[i]
+                            && locations.offsets[i - 1] < locations.offsets[i]));
+                }
+            }
+            // Entries 0, 3, 6 and 9 are in file 9.
+            var start = locations.size - 4;
+            Assert.assertEquals(locations.fileIds[start], 9L);
+            Assert.assertEquals(locations.fileEnd(start), locations.size);
+            Assert.assertEquals(entryIndex.asyncGetBatch(List.of()).get().size, 0);
+
+            // More lookups than the direct buffers of a thread hold at once
+            entryIndex.asyncDelete(502L).get();
+            positions.clear();
+            for (int i = 0; i < 1000; i++) {
+                entryIndex.asyncAdd(DefaultPosition.create(502L, i), LongLongPair.create(1L, i)).get();
+                positions.add(DefaultPosition.create(502L, i));
+            }
+            entryIndex.asyncFlush().get();
+            locations = entryIndex.asyncGetBatch(positions).get();
+            Assert.assertEquals(locations.size, 1000);
+            for (int i = 0; i < locations.size; i++) {
+                Assert.assertEquals(locations.offsets[i], i);
+            }
+        } finally {
+            entryIndex.asyncClose().get();
+        }
+    }
+
+    @Test
+    public void testEntryLocationsSort() {
+        var random = new Random(7);
+        for (var size : new int[]{0, 1, 15, 16, 1000, 100_000}) {
+            var builder = EntryLocations.builder(16);
+            for (int i = 0; i < size; i++) {
+                // Few files, and some entries asked twice
+                var offset = random.nextInt(size * 4 + 1);
+                builder.add(DefaultPosition.create(offset, i), random.nextInt(8), offset);
+            }
+            var locations = builder.build();
+            Assert.assertEquals(locations.size, size);
+            Assert.assertEquals(locations.positions.length, size);
+            for (int i = 0; i < size; i++) {
+                // Each position moved along with its location
+                Assert.assertEquals(locations.positions[i].ledgerId(), locations.offsets[i]);
+                if (i > 0) {
+                    Assert.assertTrue(locations.fileIds[i - 1] < locations.fileIds[i]
+                            || (locations.fileIds[i - 1] == locations.fileIds[i]
+                            && locations.offsets[i - 1] <= locations.offsets[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTombstoneCompaction() throws Exception {
+        var path = "/tmp/neutron-test/tombstones";
+        FileUtils.deleteDirectory(new File(path));
+        var config = new ManagedStorageConfig();
+        config.setEntryIndexCompactionIntervalMs(0);
+        var entryIndex = new DefaultEntryIndex(config, path);
+        try {
+            for (long ledgerId = 600; ledgerId < 610; ledgerId++) {
+                var batch = new ArrayList<Pair<Position, LongLongPair>>();
+                for (int i = 0; i < 1000; i++) {
+                    batch.add(Pair.create(DefaultPosition.create(ledgerId, i), LongLongPair.create(ledgerId, i)));
+                }
+                entryIndex.asyncAddBatch(batch).get();
+            }
+            entryIndex.asyncFlush().get();
+            for (long ledgerId : new long[]{600, 601, 602, 603, 604, 607}) {
+                entryIndex.asyncDelete(ledgerId).get();
+            }
+            var compactor = entryIndex.getTombstoneCompactor();
+            Assert.assertEquals(compactor.tombstoneCount(), 6);
+            Assert.assertEquals(compactor.pendingTombstoneCount(), 6);
+
+            // 600 to 604 by one range, then 607
+            entryIndex.asyncCompactDeleted().get();
+            Assert.assertEquals(compactor.pendingTombstoneCount(), 0);
+            Assert.assertEquals(compactor.compactedTombstoneCount(), 6);
+            Assert.assertEquals(compactor.compactionCount(), 2);
+            // The flushed file holds every ledger, each compaction rewrites it.
+            Assert.assertTrue(compactor.compactedBytes() > 0);
+            Assert.assertTrue(compactor.compactionTimeMillis() >= 0);
+            for (long ledgerId = 600; ledgerId < 610; ledgerId++) {
+                var value = entryIndex.asyncGet(DefaultPosition.create(ledgerId, 999)).get();
+                if (ledgerId <= 604 || ledgerId == 607) {
+                    Assert.assertNull(value);
+                } else {
+                    Assert.assertEquals(value.f1, ledgerId);
+                }
+            }
+
+            // A full compaction covers the deleted ledgers too.
+            entryIndex.asyncDelete(605L).get();
+            entryIndex.asyncCompact().get();
+            Assert.assertEquals(compactor.pendingTombstoneCount(), 0);
+            Assert.assertEquals(compactor.compactedTombstoneCount(), 7);
+        } finally {
+            entryIndex.asyncClose().get();
+        }
+
+        // In the background, within the budget of each run
+        config.setEntryIndexCompactionIntervalMs(50);
+        config.setEntryIndexCompactionBytesPerSecond(1);
+        entryIndex = new DefaultEntryIndex(config, path);
+        try {
+            entryIndex.asyncDelete(606L).get();
+            entryIndex.asyncDelete(609L).get();
+            var compactor = entryIndex.getTombstoneCompactor();
+            var deadline = System.currentTimeMillis() + 10_000;
+            while (compactor.pendingTombstoneCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(compactor.pendingTombstoneCount(), 0);
+            Assert.assertEquals(compactor.compactionCount(), 2);
+            Assert.assertNull(entryIndex.asyncGet(DefaultPosition.create(609L, 0)).get());
+            Assert.assertEquals(entryIndex.asyncGet(DefaultPosition.create(608L, 0)).get().f1, 608L);
+        } finally {
+            entryIndex.asyncClose().get();
+        }
+    }
 }
@@ -0,0 +1,401 @@
+package org.daojun.neutron.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.commons.io.FileUtils;
+import org.daojun.neutron.storage.internal.DefaultDirectory;
+import org.daojun.neutron.storage.internal.DefaultEntryLogger;
+import org.daojun.neutron.storage.internal.DefaultPosition;
+import org.daojun.neutron.storage.internal.EntryIndexRecovery;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Test
+public class DefaultEntryLoggerTest {
+
+    private static ByteBuf payload(long ledgerId, int entryId) {
+        return Unpooled.wrappedBuffer(("entry-" + ledgerId + "-" + entryId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertEntry(EntryLogger logger, long ledgerId, int entryId) throws Exception {
+        var entry = logger.asyncReadEntry(DefaultPosition.create(ledgerId, entryId)).get();
+        try {
+            Assert.assertEquals(entry.toString(StandardCharsets.UTF_8), "entry-" + ledgerId + "-" + entryId);
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Test
+    public void testInterleavedLedgers() throws Exception {
+        var path = "/tmp/neutron-test/logger";
+        FileUtils.deleteDirectory(new File(path));
+        var config = new ManagedStorageConfig();
+        config.setMaxEntryFileSize(1024 * 1024);
+        config.setEntryLoggerWriteCacheMaxBytes(64 * 1024);
+        config.setEntryLoggerFlushIntervalMs(0);
+        var scheduler = Executors.newScheduledThreadPool(1);
+        var logger = new DefaultEntryLogger(config, path, scheduler);
+        var ledgers = 20;
+        var entries = 500;
+        List<LedgerHandle> handles = new ArrayList<>();
+        try {
+            logger.asyncInitialize().get();
+            for (int i = 0; i < ledgers; i++) {
+                handles.add(logger.asyncOpenLedger().get());
+            }
+            // Round robin, as low rate ledgers sharing one disk.
+            List<CompletableFuture<Position>> futures = new ArrayList<>();
+            for (int e = 0; e < entries; e++) {
+                for (var handle : handles) {
+                    futures.add(handle.asyncAddEntry(payload(handle.getId(), e)));
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                var position = futures.get(i).get();
+                Assert.assertEquals(position.entryId(), i / ledgers);
+            }
+            for (var handle : handles) {
+                Assert.assertEquals(handle.getLac(), entries - 1);
+                // Read back from the cache or the entry files.
+                assertEntry(logger, handle.getId(), entries - 1);
+            }
+            logger.asyncFlush().get();
+            Assert.assertTrue(logger.flushCount() > 1);
+            Assert.assertEquals(logger.flushedEntryCount(), ledgers * entries);
+            Assert.assertEquals(logger.writeCacheBytes(), 0);
+
+            for (var handle : handles) {
+                var range = logger.getIndex().asyncGetRange(handle.getId(), 0, Integer.MAX_VALUE).get();
+                Assert.assertEquals(range.size, entries);
+                // The entries of a ledger are written in order, and contiguous within each flush.
+                var runs = 1;
+                for (int i = 1; i < range.size; i++) {
+                    Assert.assertTrue(range.fileIds[i] > range.fileIds[i - 1]
+                            || (range.fileIds[i] == range.fileIds[i - 1] && range.offsets[i] > range.offsets[i - 1]));
+                    var contiguous = range.fileIds[i] == range.fileIds[i - 1]
+                            && range.offsets[i] - range.offsets[i - 1] < 64;
+                    runs += contiguous ? 0 : 1;
+                }
+                Assert.assertTrue(runs <= logger.flushCount(), "runs " + runs);
+                for (int e = 0; e < entries; e++) {
+                    assertEntry(logger, handle.getId(), e);
+                }
+            }
+            var deleted = handles.get(0).getId();
+            logger.asyncDeleteLedger(deleted).get();
+            Assert.assertFalse(logger.getLedgerManager().exists(deleted));
+            Assert.assertThrows(() -> logger.asyncReadEntry(DefaultPosition.create(deleted, 0)).get());
+            Assert.assertThrows(() -> logger.asyncAddEntry(DefaultPosition.create(deleted, entries),
+                    payload(deleted, entries)).get());
+        } finally {
+            logger.asyncClose().get();
+        }
+
+        var reopened = new DefaultEntryLogger(config, path, scheduler);
+        try {
+            var handle = reopened.asyncOpenLedger(handles.get(1).getId()).get();
+            Assert.assertEquals(handle.getLac(), entries - 1);
+            Assert.assertEquals(handle.asyncAddEntry(payload(handle.getId(), entries)).get().entryId(), entries);
+            assertEntry(reopened, handle.getId(), entries);
+            assertEntry(reopened, handle.getId(), 0);
+            // Ids are never reused.
+            Assert.assertEquals(reopened.asyncOpenLedger().get().getId(), ledgers);
+        } finally {
+            reopened.asyncClose().get();
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Reads the journal files as they are on disk, without the buffers of the logger.
+     */
+    private static String journalOnDisk(String path) throws Exception {
+        var content = new StringBuilder();
+        var files = new File(path, "journal").listFiles(File::isFile);
+        for (var file : files) {
+            content.append(new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1));
+        }
+        return content.toString();
+    }
+
+    @Test
+    public void testAckIsDurable() throws Exception {
+        var path = "/tmp/neutron-test/logger-durable";
+        FileUtils.deleteDirectory(new File(path));
+        var config = new ManagedStorageConfig();
+        // Neither group commit nor a background flush of the entry files before the end of the test
+        config.setGroupCommitEnabled(false);
+        config.setFlushMaxDelayMillis(60_000);
+        config.setFlushMaxBytes(Integer.MAX_VALUE);
+        config.setFlushMaxEntries(Integer.MAX_VALUE);
+        config.setEntryLoggerFlushIntervalMs(0);
+        var scheduler = Executors.newScheduledThreadPool(1);
+        var logger = new DefaultEntryLogger(config, path, scheduler);
+        try {
+            var handle = logger.asyncOpenLedger().get();
+            var ledgerId = handle.getId();
+            for (int e = 0; e < 10; e++) {
+                handle.asyncAddEntry(payload(ledgerId, e)).get();
+                // Acknowledged, so written to the journal file and fsynced.
+                Assert.assertTrue(journalOnDisk(path).contains("entry-" + ledgerId + "-" + e), "entry " + e);
+            }
+            // Not flushed to the entry files yet.
+            Assert.assertEquals(logger.flushCount(), 0);
+        } finally {
+            logger.asyncClose().get();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedFlush() throws Exception {
+        var path = "/tmp/neutron-test/logger-failed-flush";
+        FileUtils.deleteDirectory(new File(path));
+        var config = new ManagedStorageConfig();
+        config.setEntryLoggerWriteCacheMaxBytes(16 * 1024);
+        config.setEntryLoggerFlushIntervalMs(0);
+        var scheduler = Executors.newScheduledThreadPool(1);
+        var logger = new DefaultEntryLogger(config, path, scheduler);
+        try {
+            logger.asyncInitialize().get();
+            var ledgerId = logger.asyncOpenLedger().get().getId();
+            var entryId = 0;
+            for (; entryId < 100; entryId++) {
+                logger.asyncAddEntry(DefaultPosition.create(ledgerId, entryId), payload(ledgerId, entryId)).get();
+            }
+            // The checkpoint cannot be written while a directory takes the place of its temporary file.
+            var blocker = new File(path, "JOURNAL_CHECKPOINT.tmp/blocker");
+            Assert.assertTrue(blocker.mkdirs());
+            Assert.assertThrows(() -> logger.asyncFlush().get());
+
+            // The new entries are held in the active cache, up to its max bytes, then rejected.
+            var rejected = false;
+            for (; entryId < 10_000 && !rejected; entryId++) {
+                try {
+                    logger.asyncAddEntry(DefaultPosition.create(ledgerId, entryId), payload(ledgerId, entryId)).get();
+                } catch (ExecutionException ex) {
+                    rejected = true;
+                }
+            }
+            Assert.assertTrue(rejected);
+            var added = entryId - 1;
+            Assert.assertTrue(logger.writeCacheBytes() < 3 * 16 * 1024, "cached " + logger.writeCacheBytes());
+            Assert.assertEquals(logger.flushCount(), 0);
+
+            // One flush writes the failed cache, then the active one.
+            FileUtils.deleteDirectory(blocker.getParentFile());
+            logger.asyncFlush().get();
+            Assert.assertEquals(logger.flushCount(), 2);
+            Assert.assertEquals(logger.writeCacheBytes(), 0);
+            Assert.assertEquals(logger.flushedEntryCount(), added);
+            for (int e = 0; e < added; e++) {
+                assertEntry(logger, ledgerId, e);
+            }
+        } finally {
+            logger.asyncClose().get();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testReplayJournal() throws Exception {
+        var path = "/tmp/neutron-test/logger-replay";
+        FileUtils.deleteDirectory(new File(path));
+        var config = new ManagedStorageConfig();
+        config.setEntryLoggerFlushIntervalMs(0);
+        var scheduler = Executors.newScheduledThreadPool(1);
+        var logger = new DefaultEntryLogger(config, path, scheduler);
+        long live;
+        long deleted;
+        try {
+            live = logger.asyncOpenLedger().get().getId();
+            deleted = logger.asyncOpenLedger().get().getId();
+            logger.asyncAddEntry(DefaultPosition.create(live, 0), payload(live, 0)).get();
+            logger.asyncDeleteLedger(deleted).get();
+        } finally {
+            logger.asyncClose().get();
+        }
+
+        // Appended to the journal, then lost from the write cache by a crash.
+        var journal = new DefaultDirectory(config, path + "/journal", new AtomicLong(0), scheduler);
+        try {
+            for (int e = 1; e < 100; e++) {
+                for (var ledgerId : List.of(live, deleted)) {
+                    var buffer = Unpooled.buffer();
+                    EntryIndexRecovery.writeKey(buffer, ledgerId, e).writeBytes(payload(ledgerId, e));
+                    journal.asyncAddEntry(buffer).get();
+                    buffer.release();
+                }
+            }
+        } finally {
+            journal.asyncClose().get();
+        }
+
+        logger = new DefaultEntryLogger(config, path, scheduler);
+        try {
+            logger.asyncInitialize().get();
+            // Only the entries after the checkpoint, of the live ledger.
+            Assert.assertEquals(logger.flushedEntryCount(), 99);
+            for (int e = 0; e < 100; e++) {
+                assertEntry(logger, live, e);
+            }
+            Assert.assertEquals(logger.asyncGetLastEntryId(live).get(), 99);
+            Assert.assertNull(logger.getIndex().asyncGet(DefaultPosition.create(deleted, 1)).get());
+        } finally {
+            logger.asyncClose().get();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testFencedLedger() throws Exception {
+        var path = "/tmp/neutron-test/logger-fenced";
+        FileUtils.deleteDirectory(new File(path));
+        var config = new ManagedStorageConfig();
+        config.setEntryLoggerFlushIntervalMs(0);
+        var scheduler = Executors.newScheduledThreadPool(1);
+        var logger = new DefaultEntryLogger(config, path, scheduler);
+        long ledgerId;
+        try {
+            var handle = logger.asyncOpenLedger().get();
+            ledgerId = handle.getId();
+            List<CompletableFuture<Position>> adds = new ArrayList<>();
+            for (int e = 0; e < 10; e++) {
+                adds.add(handle.asyncAddEntry(payload(ledgerId, e)));
+            }
+            // Taken by another writer, so the add of the handle fails.
+            logger.asyncAddEntry(DefaultPosition.create(ledgerId, 10), payload(ledgerId, 10)).get();
+            for (int e = 10; e < 20; e++) {
+                adds.add(handle.asyncAddEntry(payload(ledgerId, e)));
+            }
+            for (int e = 0; e < 20; e++) {
+                if (e < 10) {
+                    Assert.assertEquals(adds.get(e).get().entryId(), e);
+                } else {
+                    Assert.assertThrows(adds.get(e)::get);
+                }
+            }
+            Assert.assertEquals(handle.getLac(), 9);
+            // Fenced from the failed entry on, in the cache, then once flushed.
+            Assert.assertEquals(logger.asyncGetLastEntryId(ledgerId).get(), 9);
+            Assert.assertThrows(() -> logger.asyncReadEntry(DefaultPosition.create(ledgerId, 10)).get());
+            logger.asyncFlush().get();
+            Assert.assertEquals(logger.flushedEntryCount(), 10);
+            Assert.assertEquals(logger.getIndex().asyncGetLastEntryId(ledgerId).get(), 9);
+            Assert.assertThrows(() -> logger.asyncReadEntry(DefaultPosition.create(ledgerId, 10)).get());
+            Assert.assertThrows(() -> logger.asyncAddEntry(DefaultPosition.create(ledgerId, 11),
+                    payload(ledgerId, 11)).get());
+            assertEntry(logger, ledgerId, 9);
+        } finally {
+            logger.asyncClose().get();
+        }
+
+        // Appended to the journal past a failed entry, then lost from the write cache by a crash.
+        var journal = new DefaultDirectory(config, path + "/journal", new AtomicLong(0), scheduler);
+        try {
+            for (int e = 11; e < 20; e++) {
+                var buffer = Unpooled.buffer();
+                EntryIndexRecovery.writeKey(buffer, ledgerId, e).writeBytes(payload(ledgerId, e));
+                journal.asyncAddEntry(buffer).get();
+                buffer.release();
+            }
+        } finally {
+            journal.asyncClose().get();
+        }
+
+        var reopened = new DefaultEntryLogger(config, path, scheduler);
+        try {
+            reopened.asyncInitialize().get();
+            // Entry 10 is missing, so the replayed entries after it are not flushed.
+            Assert.assertEquals(reopened.flushedEntryCount(), 0);
+            Assert.assertEquals(reopened.asyncGetLastEntryId(ledgerId).get(), 9);
+            Assert.assertThrows(() -> reopened.asyncReadEntry(DefaultPosition.create(ledgerId, 11)).get());
+            var handle = reopened.asyncOpenLedger(ledgerId).get();
+            Assert.assertEquals(handle.getLac(), 9);
+        } finally {
+            reopened.asyncClose().get();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testTailReads() throws Exception {
+        var path = "/tmp/neutron-test/logger-tail";
+        FileUtils.deleteDirectory(new File(path));
+        var config = new ManagedStorageConfig();
+        config.setEntryLoggerWriteCacheMaxBytes(16 * 1024);
+        config.setEntryLoggerFlushIntervalMs(0);
+        var scheduler = Executors.newScheduledThreadPool(1);
+        var logger = new DefaultEntryLogger(config, path, scheduler);
+        try {
+            var handle = logger.asyncOpenLedger().get();
+            var ledgerId = handle.getId();
+            Assert.assertEquals(handle.getLac(), -1);
+            // Parked before the entries are added.
+            List<CompletableFuture<ByteBuf>> reads = new ArrayList<>();
+            for (int e = 0; e < 10; e++) {
+                reads.add(handle.asyncReadEntryOrWait(e * 100, 10_000));
+            }
+            Assert.assertFalse(reads.get(0).isDone());
+
+            var count = 1000;
+            var ordered = new AtomicBoolean(true);
+            List<CompletableFuture<Position>> adds = new ArrayList<>();
+            for (int e = 0; e < count; e++) {
+                adds.add(handle.asyncAddEntry(payload(ledgerId, e)).whenComplete((position, ex) -> {
+                    // The LAC covers every completed add.
+                    if (ex != null || handle.getLac() < position.entryId()) {
+                        ordered.set(false);
+                    }
+                }));
+            }
+            for (var add : adds) {
+                add.get();
+            }
+            Assert.assertTrue(ordered.get());
+            Assert.assertEquals(handle.getLac(), count - 1);
+            for (int e = 0; e < reads.size(); e++) {
+                var entry = reads.get(e).get();
+                Assert.assertEquals(entry.toString(StandardCharsets.UTF_8), "entry-" + ledgerId + "-" + e * 100);
+                entry.release();
+            }
+
+            // Covered already
+            var entry = handle.asyncReadEntryOrWait(count - 1, 0).get();
+            Assert.assertEquals(entry.toString(StandardCharsets.UTF_8), "entry-" + ledgerId + "-" + (count - 1));
+            entry.release();
+            try {
+                handle.asyncReadEntryOrWait(count, 50).get();
+                Assert.fail("should time out");
+            } catch (ExecutionException ex) {
+                Assert.assertTrue(ex.getCause() instanceof TimeoutException);
+            }
+
+            var parked = handle.asyncReadEntryOrWait(count, 10_000);
+            handle.setLac(count);
+            // Woken, but the entry was never added.
+            Assert.assertThrows(parked::get);
+
+            var closed = handle.asyncReadEntryOrWait(count + 1, 10_000);
+            logger.asyncCloseLedger(ledgerId).get();
+            Assert.assertThrows(closed::get);
+            Assert.assertThrows(() -> handle.asyncAddEntry(payload(ledgerId, count + 1)).get());
+        } finally {
+            logger.asyncClose().get();
+            scheduler.shutdown();
+        }
+    }
+}
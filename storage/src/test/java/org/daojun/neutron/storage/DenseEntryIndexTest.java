@@ -0,0 +1,107 @@
+package org.daojun.neutron.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.daojun.neutron.storage.internal.DefaultPosition;
+import org.daojun.neutron.storage.internal.DenseEntryIndex;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.List;
+
+@Test
+public class DenseEntryIndexTest {
+
+    @Test
+    public void test() throws Exception {
+        var path = "/tmp/neutron-test/dense";
+        FileUtils.deleteDirectory(new File(path));
+        var config = new ManagedStorageConfig();
+        config.setDenseIndexSegmentEntries(1024);
+        var entryIndex = new DenseEntryIndex(config, path);
+        long count;
+        try {
+            for (int i = 0; i < 10000; i++) {
+                entryIndex.asyncAdd(DefaultPosition.create(1L, i), LongLongPair.create(i / 1000, i * 1024L)).get();
+                entryIndex.asyncAdd(DefaultPosition.create(2L, i + 5), LongLongPair.create(7L, i)).get();
+            }
+            // A gap larger than a segment goes to RocksDB.
+            entryIndex.asyncAdd(DefaultPosition.create(1L, 1_000_000), LongLongPair.create(9L, 9L)).get();
+            assertEntries(entryIndex);
+            Assert.assertNull(entryIndex.asyncGet(DefaultPosition.create(2L, 0)).get());
+            // Dense entries, then the sparse one from RocksDB.
+            var range = entryIndex.asyncGetRange(1L, 9990, Integer.MAX_VALUE).get();
+            Assert.assertEquals(range.size, 11);
+            Assert.assertEquals(range.entryIds[9], 9999);
+            Assert.assertEquals(range.offsets[9], 9999 * 1024L);
+            Assert.assertEquals(range.entryIds[10], 1_000_000);
+            Assert.assertEquals(range.fileIds[10], 9L);
+            range = entryIndex.asyncGetRange(2L, 0, 9).get();
+            Assert.assertEquals(range.size, 5);
+            Assert.assertEquals(range.entryIds[0], 5);
+            var locations = entryIndex.asyncGetBatch(List.of(DefaultPosition.create(1L, 1_000_000),
+                    DefaultPosition.create(2L, 5), DefaultPosition.create(1L, 2500), DefaultPosition.create(3L, 0))).get();
+            Assert.assertEquals(locations.size, 3);
+            Assert.assertEquals(locations.fileIds, new long[]{2L, 7L, 9L});
+            Assert.assertEquals(locations.positions[2].entryId(), 1_000_000);
+            Assert.assertNull(entryIndex.asyncGet(DefaultPosition.create(3L, 0)).get());
+            Assert.assertFalse(new File(path + "/dense/1").exists());
+            // The sparse entry is the last one.
+            Assert.assertEquals(entryIndex.asyncGetLastEntryId(1L).get(), 1_000_000);
+            Assert.assertEquals(entryIndex.asyncGetLastEntryId(2L).get(), 10004);
+            Assert.assertEquals(entryIndex.asyncGetLastEntryId(3L).get(), -1);
+            // The missing entries in between are not counted.
+            count = entryIndex.asyncGetCount().get();
+            entryIndex.asyncAdd(DefaultPosition.create(3L, 0), LongLongPair.create(1L, 0L)).get();
+            entryIndex.asyncAdd(DefaultPosition.create(3L, 5), LongLongPair.create(1L, 5L)).get();
+            entryIndex.asyncAdd(DefaultPosition.create(3L, 5), LongLongPair.create(1L, 5L)).get();
+            Assert.assertEquals(entryIndex.asyncGetCount().get(), count + 2);
+            count += 2;
+
+            entryIndex.asyncFlush().get();
+            Assert.assertTrue(new File(path + "/dense/1").length() > 10000 * 16);
+        } finally {
+            entryIndex.asyncClose().get();
+        }
+
+        // Active ledgers are loaded, sealed ones are mapped.
+        entryIndex = new DenseEntryIndex(config, path);
+        try {
+            assertEntries(entryIndex);
+            Assert.assertEquals(entryIndex.asyncGetCount().get(), count);
+            entryIndex.asyncSeal(1L).get();
+            entryIndex.asyncSeal(3L).get();
+            assertEntries(entryIndex);
+        } finally {
+            entryIndex.asyncClose().get();
+        }
+
+        entryIndex = new DenseEntryIndex(config, path);
+        try {
+            assertEntries(entryIndex);
+            Assert.assertEquals(entryIndex.asyncGetCount().get(), count);
+            entryIndex.asyncDelete(1L).get();
+            Assert.assertNull(entryIndex.asyncGet(DefaultPosition.create(1L, 0)).get());
+            Assert.assertNull(entryIndex.asyncGet(DefaultPosition.create(1L, 1_000_000)).get());
+            Assert.assertFalse(new File(path + "/dense/1").exists());
+            // A deleted ledger is indexed again from scratch.
+            entryIndex.asyncAdd(DefaultPosition.create(1L, 0), LongLongPair.create(5L, 0L)).get();
+            Assert.assertEquals(entryIndex.asyncGet(DefaultPosition.create(1L, 0)).get().f1, 5L);
+        } finally {
+            entryIndex.asyncClose().get();
+        }
+    }
+
+    private static void assertEntries(DenseEntryIndex entryIndex) throws Exception {
+        for (int i = 0; i < 10000; i++) {
+            var value = entryIndex.asyncGet(DefaultPosition.create(1L, i)).get();
+            Assert.assertEquals(value.f1, i / 1000);
+            Assert.assertEquals(value.f2, i * 1024L);
+            value = entryIndex.asyncGet(DefaultPosition.create(2L, i + 5)).get();
+            Assert.assertEquals(value.f1, 7L);
+            Assert.assertEquals(value.f2, i);
+        }
+        var sparse = entryIndex.asyncGet(DefaultPosition.create(1L, 1_000_000)).get();
+        Assert.assertEquals(sparse.f1, 9L);
+    }
+}
@@ -0,0 +1,202 @@
+package org.daojun.neutron.storage.internal;
+
+import org.apache.commons.io.FileUtils;
+import org.daojun.neutron.common.utils.NumberUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.rocksdb.FlushOptions;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the heap byte[] and the direct ByteBuffer JNI paths of the entry index keys and values.
+ * <p>
+ * Not a test, run the main method, or {@code org.openjdk.jmh.Main EntryIndexJniBenchmark}, on the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntryIndexJniBenchmark {
+    private static final String PATH = "/tmp/neutron-bench/jni";
+    private static final long LEDGER_ID = 1L;
+    private static final int ENTRIES = 100_000;
+    private static final int BATCH_SIZE = 256;
+
+    private RocksDB db;
+    private WriteOptions writeOp;
+    private ReadOptions readOp;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        FileUtils.deleteDirectory(new File(PATH));
+        FileUtils.forceMkdir(new File(PATH));
+        RocksDB.loadLibrary();
+        db = RocksDB.open(PATH);
+        writeOp = new WriteOptions().setSync(false);
+        readOp = new ReadOptions();
+        for (int i = 0; i < ENTRIES; i++) {
+            var key = LongIntBytes.get(LEDGER_ID, i);
+            var value = LongLongBytes.get(i, i * 1024L);
+            db.put(writeOp, key.memory, value.memory);
+            key.recycle();
+            value.recycle();
+        }
+        try (var flush = new FlushOptions().setWaitForFlush(true)) {
+            db.flush(flush);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        readOp.close();
+        writeOp.close();
+        db.close();
+        FileUtils.deleteDirectory(new File(PATH));
+    }
+
+    private static int nextEntry() {
+        return ThreadLocalRandom.current().nextInt(ENTRIES);
+    }
+
+    @Benchmark
+    public long getHeap() throws Exception {
+        var key = LongIntBytes.get(LEDGER_ID, nextEntry());
+        var value = LongLongBytes.get();
+        try {
+            var ret = db.get(key.memory, value.memory);
+            return value.f2(ret);
+        } finally {
+            key.recycle();
+            value.recycle();
+        }
+    }
+
+    @Benchmark
+    public long getDirect() throws Exception {
+        var key = LongIntBytes.getDirect(LEDGER_ID, nextEntry());
+        var value = LongLongBytes.get();
+        try {
+            var ret = db.get(readOp, key.buffer, value.clearDirect());
+            return value.directF2(ret);
+        } finally {
+            key.recycle();
+            value.recycle();
+        }
+    }
+
+    @Benchmark
+    public void putHeap() throws Exception {
+        var entryId = nextEntry();
+        var key = LongIntBytes.get(LEDGER_ID, entryId);
+        var value = LongLongBytes.get(entryId, entryId * 1024L);
+        try {
+            db.put(writeOp, key.memory, value.memory);
+        } finally {
+            key.recycle();
+            value.recycle();
+        }
+    }
+
+    @Benchmark
+    public void putDirect() throws Exception {
+        var entryId = nextEntry();
+        var key = LongIntBytes.getDirect(LEDGER_ID, entryId);
+        var value = LongLongBytes.getDirect(entryId, entryId * 1024L);
+        try {
+            db.put(writeOp, key.buffer, value.buffer);
+        } finally {
+            key.recycle();
+            value.recycle();
+        }
+    }
+
+    @Benchmark
+    public void batchHeap() throws Exception {
+        var from = nextEntry();
+        try (var batch = new WriteBatch()) {
+            for (int i = from; i < from + BATCH_SIZE; i++) {
+                var key = LongIntBytes.get(LEDGER_ID, i);
+                var value = LongLongBytes.get(i, i * 1024L);
+                try {
+                    batch.put(key.memory, value.memory);
+                } finally {
+                    key.recycle();
+                    value.recycle();
+                }
+            }
+            db.write(writeOp, batch);
+        }
+    }
+
+    @Benchmark
+    public void batchDirect() throws Exception {
+        var from = nextEntry();
+        var key = LongIntBytes.get();
+        var value = LongLongBytes.get();
+        try (var batch = new WriteBatch()) {
+            for (int i = from; i < from + BATCH_SIZE; i++) {
+                batch.put(key.direct(LEDGER_ID, i).buffer, value.direct(i, i * 1024L).buffer);
+            }
+            db.write(writeOp, batch);
+        } finally {
+            key.recycle();
+            value.recycle();
+        }
+    }
+
+    @Benchmark
+    public int multiGetHeap() throws Exception {
+        var from = nextEntry();
+        List<byte[]> keys = new ArrayList<>(BATCH_SIZE);
+        for (int i = from; i < from + BATCH_SIZE; i++) {
+            var key = new byte[LongIntBytes.SIZE];
+            NumberUtils.putLong(key, 0, LEDGER_ID);
+            NumberUtils.putInt(key, 8, i);
+            keys.add(key);
+        }
+        return db.multiGetAsList(readOp, keys).size();
+    }
+
+    @Benchmark
+    public int multiGetDirect() throws Exception {
+        var from = nextEntry();
+        List<ByteBuffer> keys = new ArrayList<>(BATCH_SIZE);
+        List<ByteBuffer> values = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            keys.add(LongIntBytes.directSlice(i).putLong(0, LEDGER_ID).putInt(8, from + i));
+            values.add(LongLongBytes.directSlice(i));
+        }
+        return db.multiGetByteBuffers(readOp, keys, values).size();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(EntryIndexJniBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,85 @@
+package org.daojun.neutron.storage.internal;
+
+import io.netty.buffer.ByteBufAllocator;
+import org.apache.commons.io.FileUtils;
+import org.daojun.neutron.storage.LongLongPair;
+import org.daojun.neutron.storage.ManagedStorageConfig;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Test
+public class EntryIndexRecoveryTest {
+
+    @Test
+    public void testReplay() throws Exception {
+        var path = "/tmp/neutron-test/index-recovery";
+        FileUtils.deleteDirectory(new File(path));
+        var config = new ManagedStorageConfig();
+        config.setMaxEntryFileSize(1024 * 1024);
+        config.setEntryIndexWalEnabled(false);
+        config.setEntryIndexReplayBatchEntries(1000);
+        var scheduler = Executors.newScheduledThreadPool(1);
+        var directory = new DefaultDirectory(config, path + "/entries", new AtomicLong(0), scheduler);
+        var entryIndex = new DefaultEntryIndex(config, path);
+        var count = 30000;
+        var payload = new byte[100];
+        List<LongLongPair> positions = new ArrayList<>();
+        try {
+            directory.asyncInitialize().get();
+            for (int i = 0; i < count; i++) {
+                var buffer = ByteBufAllocator.DEFAULT.buffer();
+                try {
+                    EntryIndexRecovery.writeKey(buffer, i % 3, i / 3).writeBytes(payload);
+                    positions.add(directory.asyncAddEntry(buffer).get());
+                } finally {
+                    buffer.release();
+                }
+            }
+            Assert.assertTrue(directory.entryFiles().size() > 2);
+            // Only the first half is indexed before the crash.
+            for (int i = 0; i < count / 2; i++) {
+                entryIndex.asyncAdd(DefaultPosition.create(i % 3, i / 3), positions.get(i)).get();
+            }
+            entryIndex.asyncCheckpoint(positions.get(count / 2)).get();
+            entryIndex.asyncFlush().get();
+        } finally {
+            entryIndex.asyncClose().get();
+            directory.asyncClose().get();
+        }
+
+        directory = new DefaultDirectory(config, path + "/entries", new AtomicLong(0), scheduler);
+        entryIndex = new DefaultEntryIndex(config, path);
+        try {
+            var checkpoint = entryIndex.asyncGetCheckpoint().get();
+            Assert.assertEquals(checkpoint.f1, positions.get(count / 2).f1);
+            Assert.assertEquals(checkpoint.f2, positions.get(count / 2).f2);
+            Assert.assertNull(entryIndex.asyncGet(DefaultPosition.create(0L, count / 3 - 1)).get());
+
+            // Ledger 2 is deleted.
+            var recovery = new EntryIndexRecovery(directory, entryIndex, config.getEntryIndexReplayBatchEntries());
+            Assert.assertEquals(recovery.replay(ledgerId -> ledgerId != 2), count / 2 / 3 * 2);
+            for (int i = 0; i < count; i++) {
+                var value = entryIndex.asyncGet(DefaultPosition.create(i % 3, i / 3)).get();
+                if (i % 3 == 2 && i >= count / 2) {
+                    Assert.assertNull(value);
+                    continue;
+                }
+                Assert.assertEquals(value.f1, positions.get(i).f1);
+                Assert.assertEquals(value.f2, positions.get(i).f2);
+            }
+
+            // Nothing after the new checkpoint
+            Assert.assertEquals(recovery.replay(ledgerId -> true), 0);
+        } finally {
+            entryIndex.asyncClose().get();
+            directory.asyncClose().get();
+            scheduler.shutdown();
+        }
+    }
+}